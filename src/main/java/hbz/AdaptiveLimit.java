@@ -0,0 +1,74 @@
+package hbz;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * How many requests of a tenant may be in progress at a time, adjusted to
+ * what the data API takes. The limit follows the latency of the calls to the
+ * data API: while calls take as long as when it was idle, the limit grows a
+ * little; when they take longer, because requests queue up there, it shrinks
+ * in proportion, and failed calls cut it by a tenth. So load is held back in
+ * this module, where it can be shed cheaply, before it piles up upstream.
+ *
+ * The idle latency is the lowest average of a window of calls seen so far,
+ * drifting up slowly so that a data API that became slower for good is not
+ * throttled forever.
+ *
+ * Belongs to one data API client and is used on its event loop only.
+ */
+public class AdaptiveLimit {
+
+  private static final int WINDOW = 20;
+  private static final double SMOOTHING = 0.2;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private double limit;
+  private double idleNanos = Double.MAX_VALUE;
+
+  private int samples;
+  private long windowNanos;
+  private boolean windowFailed;
+
+  public AdaptiveLimit(int initialLimit, int minLimit, int maxLimit) {
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+  }
+
+  public int get() {
+    return (int) limit;
+  }
+
+  // One call to the data API, how long it took and whether it failed
+  public void sample(long nanos, boolean failed) {
+    samples++;
+    windowNanos += nanos;
+    windowFailed |= failed;
+    if (samples < WINDOW) {
+      return;
+    }
+    double averageNanos = (double) windowNanos / samples;
+    double next;
+    if (windowFailed) {
+      next = limit * 0.9;
+    } else {
+      idleNanos = averageNanos < idleNanos ? averageNanos : idleNanos + (averageNanos - idleNanos) * 0.01;
+      double gradient = Math.max(0.5, Math.min(1.0, idleNanos / averageNanos));
+      next = limit * (1 - SMOOTHING) + (limit * gradient + Math.sqrt(limit)) * SMOOTHING;
+    }
+    limit = Math.max(minLimit, Math.min(maxLimit, next));
+    samples = 0;
+    windowNanos = 0;
+    windowFailed = false;
+  }
+
+  public JsonObject metrics() {
+    return new JsonObject()
+        .put("limit", get())
+        .put("minLimit", minLimit)
+        .put("maxLimit", maxLimit)
+        .put("idleLatencyMillis", idleNanos == Double.MAX_VALUE ? null : idleNanos / 1e6);
+  }
+
+}
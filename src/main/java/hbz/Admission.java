@@ -0,0 +1,232 @@
+package hbz;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Admission control in front of the endpoints. A request is handled at once
+ * while both its endpoint and its tenant have fewer requests in progress than
+ * their limit; otherwise it waits in a bounded queue until one of them ends.
+ * The endpoint limits are fixed by configuration, the tenant limit is the
+ * {@link AdaptiveLimit} of the tenant's data API client, so a data API that
+ * slows down lets fewer requests through.
+ *
+ * A request that cannot be handled within admission.queue.timeout is shed
+ * with 503 and Retry-After: at once when the queue is full or when the
+ * requests ahead of it will take longer than that, going by how long its
+ * endpoint took recently, else when the timeout is over.
+ *
+ * Belongs to one verticle instance and is used on its event loop only; the
+ * limits and the queue size are totals for the process, split over the
+ * instances like data.api.pool.size.
+ */
+public class Admission {
+
+  private static final String TICKET = "admission";
+  private static final double SMOOTHING = 0.1;
+
+  private final Vertx vertx;
+  private final Metrics metrics;
+  private final int endpointLimit;
+  private final Map<String, Integer> endpointLimits = new HashMap<>();
+  private final int queueSize;
+  private final long queueTimeout;
+
+  private final Map<String, Integer> endpointsInFlight = new HashMap<>();
+  private final Map<String, Integer> tenantsInFlight = new HashMap<>();
+  // recent time to answer, by endpoint
+  private final Map<String, Double> serviceNanos = new HashMap<>();
+  private final Deque<Ticket> queue = new ArrayDeque<>();
+  private long admitted;
+  private long shed;
+
+  public Admission(Vertx vertx, JsonObject config, Metrics metrics) {
+    this.vertx = vertx;
+    int instances = Math.max(1, config.getInteger("instances", 1));
+    endpointLimit = perInstance(config.getInteger("admission.endpoint.limit", 64), instances);
+    JsonObject limits = config.getJsonObject("admission.endpoints", new JsonObject());
+    for (String endpoint : limits.fieldNames()) {
+      endpointLimits.put(endpoint, perInstance(limits.getInteger(endpoint), instances));
+    }
+    queueSize = perInstance(config.getInteger("admission.queue.size", 200), instances);
+    queueTimeout = config.getLong("admission.queue.timeout", 1000L);
+    this.metrics = metrics.describe("deliver_admission_queued", "Requests waiting to be admitted, by endpoint")
+        .describe("deliver_admission_wait_seconds", "Time requests waited to be admitted, by endpoint")
+        .describe("deliver_admission_shed_total", "Requests answered with 503 without being handled, by endpoint, "
+            + "tenant and reason (full, deadline or timeout)");
+  }
+
+  private static int perInstance(int total, int instances) {
+    return Math.max(1, (total + instances - 1) / instances);
+  }
+
+  // Runs handler once the request may be handled, or answers it with 503.
+  // Every request passed in must be passed to release when it ends.
+  public void admit(RoutingContext routingContext, String endpoint, Tenant tenant, Handler<Void> handler) {
+    Ticket ticket = new Ticket(routingContext, endpoint, tenant, handler);
+    routingContext.put(TICKET, ticket);
+    if (queue.isEmpty() && fits(ticket)) {
+      start(ticket);
+      handler.handle(null);
+      return;
+    }
+    if (queue.size() >= queueSize) {
+      shed(ticket, "full", queueTimeout);
+      return;
+    }
+    long wait = estimatedWait(ticket);
+    if (wait > queueTimeout) {
+      shed(ticket, "deadline", wait);
+      return;
+    }
+    ticket.timer = vertx.setTimer(queueTimeout, timer -> {
+      if (queue.remove(ticket)) {
+        queued(ticket).decrementAndGet();
+        shed(ticket, "timeout", queueTimeout);
+      }
+    });
+    queue.add(ticket);
+    queued(ticket).incrementAndGet();
+  }
+
+  // The request ended, was answered or its connection closed; lets waiting
+  // requests in that now fit
+  public void release(RoutingContext routingContext) {
+    Ticket ticket = routingContext.get(TICKET);
+    if (ticket == null || ticket.released) {
+      return;
+    }
+    ticket.released = true;
+    if (!ticket.running) {
+      if (queue.remove(ticket)) {
+        vertx.cancelTimer(ticket.timer);
+        queued(ticket).decrementAndGet();
+      }
+      return;
+    }
+    endpointsInFlight.merge(ticket.endpoint, -1, Integer::sum);
+    tenantsInFlight.merge(ticket.tenant.getId(), -1, Integer::sum);
+    long took = System.nanoTime() - ticket.started;
+    serviceNanos.merge(ticket.endpoint, (double) took, (average, latest) -> average + (latest - average) * SMOOTHING);
+    drain();
+  }
+
+  private void drain() {
+    for (Iterator<Ticket> waiting = queue.iterator(); waiting.hasNext();) {
+      Ticket ticket = waiting.next();
+      if (!fits(ticket)) {
+        // others behind it may be of another endpoint or tenant
+        continue;
+      }
+      waiting.remove();
+      vertx.cancelTimer(ticket.timer);
+      queued(ticket).decrementAndGet();
+      start(ticket);
+      // not from within the end of the request that made room
+      vertx.runOnContext(v -> ticket.handler.handle(null));
+    }
+  }
+
+  private boolean fits(Ticket ticket) {
+    return endpointsInFlight.getOrDefault(ticket.endpoint, 0) < limitOf(ticket.endpoint)
+        && tenantsInFlight.getOrDefault(ticket.tenant.getId(), 0) < ticket.tenant.getClient().getLimit().get();
+  }
+
+  private void start(Ticket ticket) {
+    ticket.running = true;
+    ticket.started = System.nanoTime();
+    endpointsInFlight.merge(ticket.endpoint, 1, Integer::sum);
+    tenantsInFlight.merge(ticket.tenant.getId(), 1, Integer::sum);
+    admitted++;
+    metrics.histogram("deliver_admission_wait_seconds", Metrics.labels("endpoint", ticket.endpoint))
+        .recordNanos(ticket.started - ticket.arrived);
+  }
+
+  // Milliseconds until the requests of the same endpoint queued ahead are
+  // through, at the rate the endpoint answered recently
+  private long estimatedWait(Ticket ticket) {
+    Double average = serviceNanos.get(ticket.endpoint);
+    if (average == null) {
+      return 0;
+    }
+    int ahead = 0;
+    for (Ticket waiting : queue) {
+      if (waiting.endpoint.equals(ticket.endpoint)) {
+        ahead++;
+      }
+    }
+    int parallel = Math.min(limitOf(ticket.endpoint), ticket.tenant.getClient().getLimit().get());
+    return (long) (average * (ahead + 1) / parallel / 1e6);
+  }
+
+  private void shed(Ticket ticket, String reason, long retryAfter) {
+    ticket.released = true;
+    shed++;
+    metrics.counter("deliver_admission_shed_total",
+        Metrics.labels("endpoint", ticket.endpoint, "tenant", ticket.tenant.getId(), "reason", reason)).increment();
+    HttpServerResponse response = ticket.routingContext.response();
+    if (response.closed()) {
+      return;
+    }
+    response.setStatusCode(503).putHeader(HttpHeaders.CONTENT_TYPE, "text/plain")
+        .putHeader("Retry-After", String.valueOf(Math.max(1, (retryAfter + 999) / 1000)))
+        .end("Too many requests, try again later");
+  }
+
+  private int limitOf(String endpoint) {
+    return endpointLimits.getOrDefault(endpoint, endpointLimit);
+  }
+
+  private AtomicLong queued(Ticket ticket) {
+    return metrics.gauge("deliver_admission_queued", Metrics.labels("endpoint", ticket.endpoint));
+  }
+
+  public JsonObject metrics() {
+    JsonObject endpoints = new JsonObject();
+    endpointsInFlight.forEach((endpoint, inFlight) -> endpoints.put(endpoint, new JsonObject()
+        .put("inFlight", inFlight).put("limit", limitOf(endpoint))
+        .put("avgServiceMs", serviceNanos.getOrDefault(endpoint, 0.0) / 1e6)));
+    JsonObject tenants = new JsonObject();
+    tenantsInFlight.forEach(tenants::put);
+    return new JsonObject()
+        .put("admitted", admitted)
+        .put("shed", shed)
+        .put("queued", queue.size())
+        .put("queueSize", queueSize)
+        .put("queueTimeout", queueTimeout)
+        .put("endpoints", endpoints)
+        .put("tenantsInFlight", tenants);
+  }
+
+  private static class Ticket {
+
+    private final RoutingContext routingContext;
+    private final String endpoint;
+    private final Tenant tenant;
+    private final Handler<Void> handler;
+    private final long arrived = System.nanoTime();
+    private boolean running;
+    private long started;
+    private long timer;
+    private boolean released;
+
+    Ticket(RoutingContext routingContext, String endpoint, Tenant tenant, Handler<Void> handler) {
+      this.routingContext = routingContext;
+      this.endpoint = endpoint;
+      this.tenant = tenant;
+      this.handler = handler;
+    }
+  }
+
+}
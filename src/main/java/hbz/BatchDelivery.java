@@ -0,0 +1,36 @@
+package hbz;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BatchDelivery {
+
+  private String patron;
+  private List<String> items = new ArrayList<>();
+
+  public BatchDelivery() {
+    // Empty constructor needed for de-/encoding of JSON objects
+  }
+
+  public BatchDelivery(String patron, List<String> items) {
+    this.patron = patron;
+    this.items = items;
+  }
+
+  public String getPatron() {
+    return patron;
+  }
+
+  public void setPatron(String patron) {
+    this.patron = patron;
+  }
+
+  public List<String> getItems() {
+    return items;
+  }
+
+  public void setItems(List<String> items) {
+    this.items = items;
+  }
+
+}
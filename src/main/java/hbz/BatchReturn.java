@@ -0,0 +1,36 @@
+package hbz;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BatchReturn {
+
+  private List<String> items = new ArrayList<>();
+  private List<String> barcodes = new ArrayList<>();
+
+  public BatchReturn() {
+    // Empty constructor needed for de-/encoding of JSON objects
+  }
+
+  public BatchReturn(List<String> items, List<String> barcodes) {
+    this.items = items;
+    this.barcodes = barcodes;
+  }
+
+  public List<String> getItems() {
+    return items;
+  }
+
+  public void setItems(List<String> items) {
+    this.items = items;
+  }
+
+  public List<String> getBarcodes() {
+    return barcodes;
+  }
+
+  public void setBarcodes(List<String> barcodes) {
+    this.barcodes = barcodes;
+  }
+
+}
@@ -0,0 +1,84 @@
+package hbz;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Stops sending calls to a data API that keeps failing, so requests fail at
+ * once instead of each waiting for its own timeout. After failureThreshold
+ * failed calls in a row the breaker opens and {@link #allow()} refuses calls
+ * for openMillis. Then it lets a single trial call through: if that one
+ * succeeds the breaker closes again, if it fails it stays open for another
+ * openMillis.
+ *
+ * Belongs to one data API client and is used on its event loop only.
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openMillis;
+
+  private State state = State.CLOSED;
+  private int failuresInRow;
+  private long openedAt;
+  private long trialStarted;
+  private long opened;
+  private long rejected;
+
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  // Whether a call may go out now; false while the breaker is open
+  public boolean allow() {
+    long now = System.currentTimeMillis();
+    if (state == State.OPEN && now - openedAt >= openMillis) {
+      state = State.HALF_OPEN;
+      trialStarted = now;
+      return true;
+    }
+    // a trial call that never reported back does not keep the breaker half open
+    if (state == State.HALF_OPEN && now - trialStarted >= openMillis) {
+      trialStarted = now;
+      return true;
+    }
+    if (state == State.CLOSED) {
+      return true;
+    }
+    rejected++;
+    return false;
+  }
+
+  public void succeeded() {
+    failuresInRow = 0;
+    state = State.CLOSED;
+  }
+
+  public void failed() {
+    failuresInRow++;
+    if (state == State.HALF_OPEN || state == State.CLOSED && failuresInRow >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+      opened++;
+    }
+  }
+
+  public JsonObject metrics() {
+    return new JsonObject()
+        .put("state", state.name())
+        .put("failuresInRow", failuresInRow)
+        .put("failureThreshold", failureThreshold)
+        .put("openMillis", openMillis)
+        .put("opened", opened)
+        .put("rejected", rejected);
+  }
+
+}
@@ -0,0 +1,105 @@
+package hbz;
+
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.Loan;
+import org.folio.rest.jaxrs.model.Patron;
+
+/**
+ * State of a single loan, return or renewal. Every incoming request gets its
+ * own instance which is handed along the asynchronous chain, so overlapping
+ * requests never see each other's patron, item or loan.
+ *
+ * Steps taken on behalf of another node, e.g. a chunk of a batch loan, have
+ * no routing context; they only use the tenant and the request id.
+ */
+public class CirculationContext {
+
+  private final RoutingContext routingContext;
+  private final Tenant tenant;
+  private final String requestId;
+  private String patronId;
+  private Patron patron;
+  private String itemId;
+  private Item item;
+  private String loanId;
+  private Loan loan;
+
+  public CirculationContext(RoutingContext routingContext, Tenant tenant, String requestId) {
+    this.routingContext = routingContext;
+    this.tenant = tenant;
+    this.requestId = requestId;
+  }
+
+  public RoutingContext getRoutingContext() {
+    return routingContext;
+  }
+
+  public Tenant getTenant() {
+    return tenant;
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  // the data API steps, tagged with the request id
+  public DataApi dataApi() {
+    return tenant.getDataApi().forRequest(requestId);
+  }
+
+  public HttpServerResponse response() {
+    return routingContext.response();
+  }
+
+  public String getPatronId() {
+    return patronId;
+  }
+
+  public void setPatronId(String patronId) {
+    this.patronId = patronId;
+  }
+
+  public Patron getPatron() {
+    return patron;
+  }
+
+  public void setPatron(Patron patron) {
+    this.patron = patron;
+  }
+
+  public String getItemId() {
+    return itemId;
+  }
+
+  public void setItemId(String itemId) {
+    this.itemId = itemId;
+  }
+
+  public Item getItem() {
+    return item;
+  }
+
+  public void setItem(Item item) {
+    this.item = item;
+  }
+
+  public String getLoanId() {
+    return loanId;
+  }
+
+  public void setLoanId(String loanId) {
+    this.loanId = loanId;
+  }
+
+  public Loan getLoan() {
+    return loan;
+  }
+
+  public void setLoan(Loan loan) {
+    this.loan = loan;
+  }
+
+}
@@ -0,0 +1,22 @@
+package hbz;
+
+/**
+ * Failure of a circulation step, carrying the HTTP status and the message the
+ * desk gets to see.
+ */
+public class CirculationException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int statusCode;
+
+  public CirculationException(int statusCode, String message) {
+    super(message);
+    this.statusCode = statusCode;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+}
@@ -0,0 +1,277 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * What the deliver nodes behind one Okapi tell each other over the event bus.
+ * Started with -cluster, every node is a member of the Vert.x cluster and
+ * <ul>
+ * <li>publishes the rule files created through it, which the other nodes
+ * write into their own rules folder of the tenant and compile at once;</li>
+ * <li>publishes the keys of patrons, items and loans it wrote or invalidated,
+ * which the other nodes drop from their caches;</li>
+ * <li>publishes the loans it put into or removed from the due date index of a
+ * tenant, which the other nodes apply to theirs, so that whichever node is
+ * {@link #isSenior() senior} can send the notices;</li>
+ * <li>publishes a heartbeat with its health every cluster.heartbeat.interval
+ * and keeps a list of the members it heard from within three intervals.</li>
+ * </ul>
+ * Batch loans are handed out in chunks to all nodes, see {@link #BATCH_LOANS}.
+ * Without -cluster the event bus only reaches this node and nothing changes.
+ *
+ * One per Vert.x instance, shared by its verticle instances; messages are
+ * handled on the event loop of the instance that created it.
+ */
+public class Cluster {
+
+  public static final String NODES = "deliver.cluster.nodes";
+  public static final String RULES = "deliver.cluster.rules";
+  public static final String CACHES = "deliver.cluster.caches";
+  public static final String DUE_DATES = "deliver.cluster.dueDates";
+  // chunks of batch loans, answered by whichever verticle instance on whichever node gets them
+  public static final String BATCH_LOANS = "deliver.batch.loans";
+
+  private final Vertx vertx;
+  private final String node = UUID.randomUUID().toString();
+  private final String host;
+  private final int httpPort;
+  private final long started = System.currentTimeMillis();
+  private final long heartbeatInterval;
+  private final long heartbeatTimer;
+  // where a tenant's rules go on this node while the tenant is not loaded
+  private final Function<String, String> rulesFolder;
+
+  private final Map<String, LruCache<?>> caches = new ConcurrentHashMap<>();
+  private final Map<String, RuleRepository> rules = new ConcurrentHashMap<>();
+  private final Map<String, DueDateIndex> dueDates = new ConcurrentHashMap<>();
+  private final Map<String, JsonObject> members = new ConcurrentHashMap<>();
+  private final List<MessageConsumer<JsonObject>> consumers = new ArrayList<>();
+
+  private final AtomicLong invalidationsSent = new AtomicLong();
+  private final AtomicLong invalidationsReceived = new AtomicLong();
+  private final AtomicLong ruleFilesReceived = new AtomicLong();
+
+  private final Logger logger = LoggerFactory.getLogger("hbz-deliver-module");
+
+  public Cluster(Vertx vertx, JsonObject config, Function<String, String> rulesFolder) {
+    this.vertx = vertx;
+    this.rulesFolder = rulesFolder;
+    host = config.getString("cluster.host", "localhost");
+    httpPort = config.getInteger("http.port", Integer.parseInt(System.getProperty("port", "8080")));
+    heartbeatInterval = config.getLong("cluster.heartbeat.interval", 2000L);
+    EventBus eventBus = vertx.eventBus();
+    consumers.add(eventBus.consumer(NODES, this::memberSeen));
+    consumers.add(eventBus.consumer(CACHES, this::invalidated));
+    consumers.add(eventBus.consumer(RULES, this::ruleFileReceived));
+    consumers.add(eventBus.consumer(DUE_DATES, this::dueDateChanged));
+    heartbeatTimer = vertx.setPeriodic(heartbeatInterval, timer -> heartbeat());
+    heartbeat();
+  }
+
+  public String getNode() {
+    return node;
+  }
+
+  public boolean isClustered() {
+    return vertx.isClustered();
+  }
+
+  // Publishes the keys the cache reports as changed under tenant and name
+  public void register(String tenant, String name, LruCache<?> cache) {
+    caches.put(tenant + ":" + name, cache);
+    cache.onChange(key -> {
+      invalidationsSent.incrementAndGet();
+      vertx.eventBus().publish(CACHES,
+          new JsonObject().put("node", node).put("tenant", tenant).put("cache", name).put("key", key));
+    });
+  }
+
+  public void unregister(String tenant, String name) {
+    LruCache<?> cache = caches.remove(tenant + ":" + name);
+    if (cache != null) {
+      cache.onChange(key -> {
+      });
+    }
+  }
+
+  // The rule base of a loaded tenant, compiled again when another node created a rule for it
+  public void register(String tenant, RuleRepository ruleRepository) {
+    rules.put(tenant, ruleRepository);
+  }
+
+  public void unregister(String tenant) {
+    rules.remove(tenant);
+  }
+
+  // Publishes the loans put into or removed from the index of tenant
+  public void register(String tenant, DueDateIndex index) {
+    dueDates.put(tenant, index);
+    index.onChange(change -> vertx.eventBus().publish(DUE_DATES,
+        new JsonObject().put("node", node).put("tenant", tenant).put("change", change)));
+  }
+
+  public void unregister(String tenant, DueDateIndex index) {
+    if (dueDates.remove(tenant, index)) {
+      index.onChange(change -> {
+      });
+    }
+  }
+
+  // Whether no member heard from has been up longer than this node; exactly
+  // one node is, unless heartbeats are lost
+  public boolean isSenior() {
+    for (JsonObject member : members.values()) {
+      long memberStarted = member.getLong("started");
+      if (memberStarted < started || memberStarted == started && member.getString("node").compareTo(node) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // A rule file that was created and compiled here, for the other nodes
+  public void ruleFileCreated(String tenant, String file, String content) {
+    vertx.eventBus().publish(RULES,
+        new JsonObject().put("node", node).put("tenant", tenant).put("file", file).put("content", content));
+  }
+
+  private void invalidated(Message<JsonObject> message) {
+    JsonObject change = message.body();
+    if (node.equals(change.getString("node"))) {
+      return;
+    }
+    LruCache<?> cache = caches.get(change.getString("tenant") + ":" + change.getString("cache"));
+    if (cache != null) {
+      invalidationsReceived.incrementAndGet();
+      cache.discard(change.getString("key"));
+    }
+  }
+
+  private void dueDateChanged(Message<JsonObject> message) {
+    JsonObject changed = message.body();
+    DueDateIndex index = dueDates.get(changed.getString("tenant"));
+    if (index != null && !node.equals(changed.getString("node"))) {
+      index.apply(changed.getJsonObject("change"), System.currentTimeMillis() / 1000);
+    }
+  }
+
+  // Writes the file unless it is there already, e.g. on a shared folder, and
+  // compiles the tenant's rules if they are loaded; otherwise they are read
+  // from the folder when the tenant is
+  private void ruleFileReceived(Message<JsonObject> message) {
+    JsonObject created = message.body();
+    String tenant = created.getString("tenant");
+    if (node.equals(created.getString("node")) || !Tenants.TENANT_ID.matcher(tenant).matches()) {
+      return;
+    }
+    // only a plain file name, never a path
+    String name = new File(created.getString("file")).getName();
+    byte[] content = created.getString("content").getBytes(StandardCharsets.UTF_8);
+    RuleRepository ruleRepository = rules.get(tenant);
+    String folder = ruleRepository != null ? ruleRepository.getFolder() : rulesFolder.apply(tenant);
+    vertx.<Void>executeBlocking(write -> {
+      try {
+        File file = new File(folder, name);
+        if (!file.exists() || !Arrays.equals(Files.readAllBytes(file.toPath()), content)) {
+          file.getParentFile().mkdirs();
+          Files.write(file.toPath(), content);
+        }
+        write.complete();
+      } catch (IOException e) {
+        write.fail(e);
+      }
+    }, false, written -> {
+      if (written.failed()) {
+        logger.error("Could not write rule file " + name + " of tenant " + tenant + ": "
+            + written.cause().getMessage());
+        return;
+      }
+      ruleFilesReceived.incrementAndGet();
+      logger.info("Rule file " + name + " of tenant " + tenant + " created on node " + created.getString("node"));
+      if (ruleRepository != null) {
+        ruleRepository.refresh();
+      }
+    });
+  }
+
+  private void heartbeat() {
+    long now = System.currentTimeMillis();
+    members.values().removeIf(member -> member.getLong("seenAt") < now - 3 * heartbeatInterval);
+    vertx.eventBus().publish(NODES, health());
+  }
+
+  private void memberSeen(Message<JsonObject> message) {
+    JsonObject member = message.body();
+    if (member.getBoolean("leaving", false)) {
+      members.remove(member.getString("node"));
+    } else {
+      members.put(member.getString("node"), member.copy().put("seenAt", System.currentTimeMillis()));
+    }
+  }
+
+  // This node: where it answers, since when, its heap and the rules of the tenants it has loaded
+  public JsonObject health() {
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    JsonObject tenants = new JsonObject();
+    rules.forEach((tenant, ruleRepository) -> {
+      JsonObject status = ruleRepository.getStatus();
+      tenants.put(tenant, new JsonObject().put("rulesVersion", status.getString("version"))
+          .put("ruleFiles", status.getJsonArray("files")).put("ruleErrors", status.getJsonArray("errors").size()));
+    });
+    return new JsonObject()
+        .put("node", node)
+        .put("status", "UP")
+        .put("host", host)
+        .put("httpPort", httpPort)
+        .put("started", started)
+        .put("uptimeMs", System.currentTimeMillis() - started)
+        .put("heapUsed", heap.getUsed())
+        .put("heapMax", heap.getMax())
+        .put("tenants", tenants);
+  }
+
+  // The members heard from recently, this node included once its first
+  // heartbeat came round
+  public JsonObject members() {
+    JsonArray nodes = new JsonArray();
+    members.values().stream().sorted((first, second) -> Long.compare(first.getLong("started"),
+        second.getLong("started"))).forEach(nodes::add);
+    return new JsonObject()
+        .put("node", node)
+        .put("clustered", isClustered())
+        .put("members", nodes)
+        .put("invalidationsSent", invalidationsSent.get())
+        .put("invalidationsReceived", invalidationsReceived.get())
+        .put("ruleFilesReceived", ruleFilesReceived.get());
+  }
+
+  // Tells the others this node is gone, instead of letting its heartbeats run out
+  public void close() {
+    vertx.cancelTimer(heartbeatTimer);
+    vertx.eventBus().publish(NODES, new JsonObject().put("node", node).put("leaving", true));
+    consumers.forEach(MessageConsumer::unregister);
+  }
+
+}
@@ -0,0 +1,227 @@
+package hbz;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.EncodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.Loan;
+import org.folio.rest.jaxrs.model.Patron;
+
+/**
+ * Decodes and encodes one model of the data API with a reader and a writer
+ * built once, instead of looking them up on every call as Json.decodeValue
+ * and Json.encode do. Responses are parsed straight from the bytes of their
+ * Buffer, without a String copy, and listings element by element, without a
+ * JsonObject of the whole listing that is encoded again for every element.
+ *
+ * {@link #decode(String, Set)} binds only the fields asked for and skips the
+ * others while parsing, nested objects included. The skipped fields are gone,
+ * so it is only for objects that are never written back, like patrons.
+ *
+ * Uses the mapper of io.vertx.core.json.Json, so models come out as they do
+ * from Json.decodeValue and Json.encode. Thread-safe.
+ */
+public class Codec<T> {
+
+  public static final Codec<Patron> PATRON = new Codec<>(Patron.class);
+  public static final Codec<Item> ITEM = new Codec<>(Item.class);
+  public static final Codec<Loan> LOAN = new Codec<>(Loan.class);
+
+  private final JavaType type;
+  private final ObjectReader reader;
+  private final ObjectWriter writer;
+  // JSON names by bean property
+  private final Map<String, String> names = new HashMap<>();
+
+  public Codec(Class<T> type) {
+    this.type = Json.mapper.constructType(type);
+    reader = Json.mapper.readerFor(type);
+    writer = Json.mapper.writerFor(type);
+    for (BeanPropertyDefinition property : Json.mapper.getDeserializationConfig()
+        .introspect(Json.mapper.constructType(type)).findProperties()) {
+      names.put(property.getInternalName(), property.getName());
+    }
+  }
+
+  public T decode(Buffer json) {
+    try (JsonParser parser = parser(json)) {
+      return reader.readValue(parser);
+    } catch (IOException e) {
+      throw new DecodeException("Failed to decode: " + e.getMessage());
+    }
+  }
+
+  public T decode(String json) {
+    try {
+      return reader.readValue(json);
+    } catch (IOException e) {
+      throw new DecodeException("Failed to decode: " + e.getMessage());
+    }
+  }
+
+  // Only the fields with these JSON names are bound, all if fields is null
+  public T decode(String json, Set<String> fields) {
+    if (fields == null) {
+      return decode(json);
+    }
+    try (JsonParser parser = Json.mapper.getFactory().createParser(json)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new DecodeException("Failed to decode: not an object");
+      }
+      TokenBuffer bound = new TokenBuffer(parser);
+      bound.writeStartObject();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        parser.nextToken();
+        if (fields.contains(name)) {
+          bound.writeFieldName(name);
+          bound.copyCurrentStructure(parser);
+        } else {
+          parser.skipChildren();
+        }
+      }
+      bound.writeEndObject();
+      return reader.readValue(bound.asParser());
+    } catch (IOException e) {
+      throw new DecodeException("Failed to decode: " + e.getMessage());
+    }
+  }
+
+  // The objects in the array under field of a listing, e.g. "loans" of
+  // { "loans" : [ ... ], "total_records" : 2 }; none if it is missing or null
+  public List<T> decodeList(Buffer listing, String field) {
+    try (JsonParser parser = parser(listing)) {
+      return list(parser, field);
+    } catch (IOException e) {
+      throw new DecodeException("Failed to decode: " + e.getMessage());
+    }
+  }
+
+  public List<T> decodeList(String listing, String field) {
+    try (JsonParser parser = Json.mapper.getFactory().createParser(listing)) {
+      return list(parser, field);
+    } catch (IOException e) {
+      throw new DecodeException("Failed to decode: " + e.getMessage());
+    }
+  }
+
+  private List<T> list(JsonParser parser, String field) throws IOException {
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      throw new DecodeException("Failed to decode: not an object");
+    }
+    List<T> values = new ArrayList<>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (!name.equals(field) || value == JsonToken.VALUE_NULL) {
+        parser.skipChildren();
+        continue;
+      }
+      if (value != JsonToken.START_ARRAY) {
+        throw new DecodeException("Failed to decode: " + field + " is not an array");
+      }
+      for (JsonToken element = parser.nextToken(); element != JsonToken.END_ARRAY; element = parser.nextToken()) {
+        if (element != JsonToken.START_OBJECT) {
+          throw new DecodeException("Failed to decode: " + field + " holds " + element);
+        }
+        values.add(reader.readValue(parser));
+      }
+    }
+    return values;
+  }
+
+  public String encode(T value) {
+    try {
+      return writer.writeValueAsString(value);
+    } catch (JsonProcessingException e) {
+      throw new EncodeException("Failed to encode as JSON: " + e.getMessage());
+    }
+  }
+
+  // The value as a JsonObject, without writing it as text and parsing it again
+  @SuppressWarnings("unchecked")
+  public JsonObject toJson(T value) {
+    return new JsonObject(Json.mapper.convertValue(value, Map.class));
+  }
+
+  // The JSON names of bean properties, e.g. "itemStatus" may be "item_status";
+  // properties the model does not have are left out
+  public Set<String> jsonNames(Collection<String> properties) {
+    Set<String> jsonNames = new HashSet<>();
+    for (String property : properties) {
+      String name = names.get(property);
+      if (name != null) {
+        jsonNames.add(name);
+      }
+    }
+    return jsonNames;
+  }
+
+  // Reads a value by the JSON names on its path, e.g. "patron_code.value", as
+  // a String; null where a value on the way is null or the model has no such
+  // property. The getters are looked up once, here.
+  public Function<T, String> accessor(String path) {
+    List<AnnotatedMember> getters = new ArrayList<>();
+    JavaType current = type;
+    for (String name : path.split("\\.")) {
+      AnnotatedMember getter = null;
+      for (BeanPropertyDefinition property : Json.mapper.getSerializationConfig().introspect(current)
+          .findProperties()) {
+        if (property.getName().equals(name) && property.getAccessor() != null) {
+          getter = property.getAccessor();
+        }
+      }
+      if (getter == null) {
+        return value -> null;
+      }
+      getters.add(getter);
+      current = Json.mapper.constructType(getter.getRawType());
+    }
+    return value -> {
+      Object read = value;
+      for (AnnotatedMember getter : getters) {
+        if (read == null) {
+          return null;
+        }
+        read = getter.getValue(read);
+      }
+      return read == null ? null : read.toString();
+    };
+  }
+
+  // Reads the bytes of the buffer in place if they are on the heap, as they
+  // are for response bodies
+  private static JsonParser parser(Buffer buffer) throws IOException {
+    ByteBuf bytes = buffer.getByteBuf();
+    if (bytes.hasArray()) {
+      return Json.mapper.getFactory().createParser(bytes.array(), bytes.arrayOffset() + bytes.readerIndex(),
+          bytes.readableBytes());
+    }
+    return Json.mapper.getFactory().createParser(buffer.getBytes());
+  }
+
+}
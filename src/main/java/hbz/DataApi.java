@@ -0,0 +1,360 @@
+package hbz;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.Loan;
+import org.folio.rest.jaxrs.model.Patron;
+
+/**
+ * The patron, item and loan calls of the circulation flows as asynchronous
+ * steps. Every step returns a future, so independent steps can run side by
+ * side and be joined before the next one. Failures are reported as
+ * {@link CirculationException}s with the status the desk should get.
+ *
+ * Patrons and items are read through a cache. The cache holds the JSON as
+ * received, so every caller decodes its own copy and may change it freely.
+ * The loans of a patron are cached briefly as well, for screens that poll
+ * them; loans created, changed or ended through this module drop the entry.
+ * The entry keeps a tag of the listing, see {@link LoanList}, so a screen can
+ * tell whether the loans changed without going through them.
+ *
+ * With an {@link Outbox}, item updates are journaled and delivered in the
+ * background; until then reads of the item see the journaled version.
+ *
+ * With a {@link Snapshot}, every patron and item read or written is also kept
+ * there, for lending while the data API is unavailable.
+ *
+ * With a {@link DueDateIndex}, loans created, changed or ended are noted
+ * there once the data API confirmed them, for overdue notices.
+ *
+ * Models are decoded with their {@link Codec}, responses that are not cached
+ * straight from the bytes received. Patrons are never written back, so they
+ * can be bound with only the fields the rules read.
+ */
+public class DataApi {
+
+  private final DataApiClient client;
+  private final String patronApi;
+  private final String itemApi;
+  private final String loanApi;
+  private final LruCache<String> patronCache;
+  private final LruCache<String> itemCache;
+  private final LruCache<LoanList> loanCache;
+  private final Outbox outbox;
+  private final Snapshot snapshot;
+  private final DueDateIndex dueDates;
+  private final Supplier<Set<String>> patronFields;
+  private final String requestId;
+
+  private final Logger logger = LoggerFactory.getLogger("hbz-deliver-module");
+
+  // outbox may be null, then item updates are written through right away;
+  // snapshot may be null, then nothing is kept for offline lending;
+  // dueDates may be null, then loans are not indexed by due date;
+  // patronFields supplies the JSON fields patrons are bound with, null for all
+  public DataApi(DataApiClient client, String patronApi, String itemApi, String loanApi,
+      LruCache<String> patronCache, LruCache<String> itemCache, LruCache<LoanList> loanCache, Outbox outbox,
+      Snapshot snapshot, DueDateIndex dueDates, Supplier<Set<String>> patronFields) {
+    this.client = client;
+    this.patronApi = patronApi;
+    this.itemApi = itemApi;
+    this.loanApi = loanApi;
+    this.patronCache = patronCache;
+    this.itemCache = itemCache;
+    this.loanCache = loanCache;
+    this.outbox = outbox;
+    this.snapshot = snapshot;
+    this.dueDates = dueDates;
+    this.patronFields = patronFields;
+    this.requestId = null;
+  }
+
+  private DataApi(DataApi dataApi, String requestId) {
+    this.client = dataApi.client;
+    this.patronApi = dataApi.patronApi;
+    this.itemApi = dataApi.itemApi;
+    this.loanApi = dataApi.loanApi;
+    this.patronCache = dataApi.patronCache;
+    this.itemCache = dataApi.itemCache;
+    this.loanCache = dataApi.loanCache;
+    this.outbox = dataApi.outbox;
+    this.snapshot = dataApi.snapshot;
+    this.dueDates = dataApi.dueDates;
+    this.patronFields = dataApi.patronFields;
+    this.requestId = requestId;
+  }
+
+  // The same steps, with every call tagged with the id of the incoming request
+  public DataApi forRequest(String requestId) {
+    return new DataApi(this, requestId);
+  }
+
+  public Future<Patron> getPatron(String patronId) {
+    return Futures.map(readThrough(patronCache, patronId, patronApi + patronId,
+        "Could not find patron with id " + patronId), json -> {
+          Patron patron = decode(() -> Codec.PATRON.decode(json, patronFields.get()), Patron.class);
+          logger.info("Found patron with id " + patronId);
+          return patron;
+        });
+  }
+
+  public Future<Item> getItem(String itemId) {
+    return Futures.map(readThrough(itemCache, itemId, itemApi + itemId,
+        "Could not find item with id " + itemId), json -> {
+          Item item = decode(() -> Codec.ITEM.decode(json), Item.class);
+          logger.info("Found item: " + item.getId());
+          return item;
+        });
+  }
+
+  public Future<Void> putItem(Item item) {
+    String itemAsJson = Codec.ITEM.encode(item);
+    if (outbox != null) {
+      return Futures.map(outbox.add(HttpMethod.PUT, itemApi + item.getId(), itemAsJson, requestId), journaled -> {
+        itemCache.update(item.getId(), itemAsJson);
+        keep(itemApi + item.getId(), itemAsJson);
+        logger.info("Journaled item status for item " + item.getId());
+        return null;
+      });
+    }
+    // until the data API confirms the write, nobody knows the item's status
+    itemCache.invalidate(item.getId());
+    return Futures.map(call(HttpMethod.PUT, itemApi + item.getId(), itemAsJson, 204, 500,
+        "Could not update item status"), buffer -> {
+          itemCache.update(item.getId(), itemAsJson);
+          keep(itemApi + item.getId(), itemAsJson);
+          logger.info("Updated item status for item " + item.getId());
+          return null;
+        });
+  }
+
+  public Future<Loan> getLoan(String patronId, String loanId) {
+    return Futures.map(call(HttpMethod.GET, patronApi + patronId + "/loans/" + loanId, null, 200, 404,
+        "Did not find loan " + loanId + " for patron " + patronId), buffer -> {
+          Loan loan = decode(() -> Codec.LOAN.decode(buffer), Loan.class);
+          logger.info("Found loan " + loanId + " for patron " + patronId);
+          return loan;
+        });
+  }
+
+  // All loans of a patron, up to max
+  public Future<List<Loan>> getLoans(String patronId, int max) {
+    return Futures.map(getLoanList(patronId, max), LoanList::getLoans);
+  }
+
+  // The same loans with the tag of their listing, still undecoded
+  public Future<LoanList> getLoanList(String patronId, int max) {
+    LoanList cached = loanCache.get(patronId);
+    if (cached != null) {
+      return Future.succeededFuture(cached);
+    }
+    return Futures.map(call(HttpMethod.GET, patronApi + patronId + "/loans?limit=" + max, null, 200, 404,
+        "Error: No loans found"), buffer -> {
+          LoanList listing = new LoanList(buffer);
+          loanCache.put(patronId, listing);
+          return listing;
+        });
+  }
+
+  public Future<Loan> postLoan(String patronId, Loan loan) {
+    loanCache.invalidate(patronId);
+    return Futures.map(call(HttpMethod.POST, patronApi + patronId + "/loans/", Codec.LOAN.encode(loan), 201, 500,
+        "Could not create loan"), buffer -> {
+          Loan created = decode(() -> Codec.LOAN.decode(buffer), Loan.class);
+          logger.info("Created loan with id " + created.getId() + " for patron " + patronId);
+          if (dueDates != null) {
+            dueDates.put(created.getId(), created, System.currentTimeMillis() / 1000);
+          }
+          return created;
+        });
+  }
+
+  // The open loans whose field has one of the values, in one call, e.g. by
+  // itemId or itemBarcode for a cart of returned items
+  public Future<List<Loan>> findLoans(String field, List<String> values) {
+    StringBuilder query = new StringBuilder(loanApi);
+    for (String value : values) {
+      query.append(query.length() == loanApi.length() ? '?' : '&').append(field).append('=').append(encode(value));
+    }
+    return Futures.map(call(HttpMethod.GET, query.toString(), null, 200, 502,
+        "Could not look up loans by " + field), buffer -> {
+          List<Loan> loans = decodeLoans(() -> Codec.LOAN.decodeList(buffer, "loans"));
+          logger.info("Found " + loans.size() + " loans for " + values.size() + " values of " + field);
+          return loans;
+        });
+  }
+
+  // The open loans of all patrons, a page of limit after the first offset, for
+  // going through all of them
+  public Future<List<Loan>> scanLoans(int offset, int limit) {
+    return Futures.map(call(HttpMethod.GET, loanApi + "?offset=" + offset + "&limit=" + limit, null, 200, 502,
+        "Could not list loans"), buffer -> decodeLoans(() -> Codec.LOAN.decodeList(buffer, "loans")));
+  }
+
+  public Future<Void> putLoan(String patronId, String loanId, Loan loan) {
+    loanCache.invalidate(patronId);
+    return Futures.map(call(HttpMethod.PUT, patronApi + patronId + "/loans/" + loanId, Codec.LOAN.encode(loan), 204,
+        500, "Could not update loan"), buffer -> {
+          logger.info("Updated loan with id " + loanId + " for patron " + patronId);
+          if (dueDates != null) {
+            dueDates.put(loanId, loan, System.currentTimeMillis() / 1000);
+          }
+          return null;
+        });
+  }
+
+  public Future<Void> deleteLoan(String patronId, String loanId) {
+    logger.info("Deleting loan " + loanId + " for patron " + patronId);
+    loanCache.invalidate(patronId);
+    return Futures.map(call(HttpMethod.DELETE, patronApi + patronId + "/loans/" + loanId, null, 204, 500,
+        "Could not delete loan with id " + loanId), buffer -> {
+          logger.info("Deleted loan " + loanId + " for " + patronId);
+          if (dueDates != null) {
+            dueDates.remove(loanId);
+          }
+          return null;
+        });
+  }
+
+  // Patrons and items written around this module, e.g. through the sample data screen
+  public void invalidatePatron(String patronId) {
+    patronCache.invalidate(patronId);
+  }
+
+  public void invalidateItem(String itemId) {
+    itemCache.invalidate(itemId);
+  }
+
+  public void purgeExpired() {
+    patronCache.purgeExpired();
+    itemCache.purgeExpired();
+    loanCache.purgeExpired();
+  }
+
+  public JsonObject cacheMetrics() {
+    return new JsonObject().put("patrons", patronCache.metrics()).put("items", itemCache.metrics())
+        .put("loans", loanCache.metrics());
+  }
+
+  private Future<String> readThrough(LruCache<String> cache, String id, String uri, String message) {
+    String journaled = outbox == null ? null : outbox.pending(uri);
+    if (journaled != null) {
+      return Future.succeededFuture(journaled);
+    }
+    String cached = cache.get(id);
+    if (cached != null) {
+      return Future.succeededFuture(cached);
+    }
+    return Futures.map(call(HttpMethod.GET, uri, null, 200, 404, message), buffer -> {
+      String json = buffer.toString();
+      cache.put(id, json);
+      keep(uri, json);
+      return json;
+    });
+  }
+
+  private void keep(String uri, String json) {
+    if (snapshot != null) {
+      snapshot.put(uri, json);
+    }
+  }
+
+  // Sends one request and completes with the response body if the expected
+  // status came back; any other status fails with errorStatus and message,
+  // a server error or no answer at all with a DataApiUnavailableException.
+  private Future<Buffer> call(HttpMethod method, String uri, String body, int expectedStatus, int errorStatus,
+      String message) {
+    if (!client.isAvailable()) {
+      return Future.failedFuture(new DataApiUnavailableException(503, message + " (data API unavailable)"));
+    }
+    Future<Buffer> future = Future.future();
+    HttpClientRequest request = client.request(method, uri, response -> {
+      if (response.statusCode() == expectedStatus) {
+        response.bodyHandler(future::complete);
+      } else if (response.statusCode() / 100 == 5) {
+        future.fail(new DataApiUnavailableException(502, message + " (data API unavailable)"));
+      } else {
+        future.fail(new CirculationException(errorStatus, message));
+      }
+    }, cause -> {
+      logger.error(message + ": " + cause.getMessage());
+      future.fail(new DataApiUnavailableException(cause instanceof TimeoutException ? 504 : 502,
+          message + " (data API unavailable)"));
+    });
+    if (requestId != null) {
+      request.putHeader(DataApiClient.REQUEST_ID, requestId);
+    }
+    if (body == null) {
+      request.end();
+    } else {
+      request.end(body);
+    }
+    return future;
+  }
+
+  private static List<Loan> decodeLoans(Supplier<List<Loan>> decoding) {
+    try {
+      return decoding.get();
+    } catch (DecodeException e) {
+      throw new CirculationException(502, "Unexpected loan listing from data API");
+    }
+  }
+
+  /**
+   * The loans of a patron as the data API listed them, with the tag of the
+   * listing. The tag is computed once, when the listing is fetched, and is
+   * dropped with the cache entry whenever a loan of the patron is created,
+   * renewed or ended; a listing fetched again with the same loans gets the
+   * same tag.
+   */
+  public static class LoanList {
+
+    private final String json;
+    private final String tag;
+
+    LoanList(Buffer listing) {
+      this.json = listing.toString();
+      this.tag = Views.etagOf(listing);
+    }
+
+    public String getTag() {
+      return tag;
+    }
+
+    public List<Loan> getLoans() {
+      return decodeLoans(() -> Codec.LOAN.decodeList(json, "loans"));
+    }
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static <T> T decode(Supplier<T> decoding, Class<T> type) {
+    try {
+      return decoding.get();
+    } catch (DecodeException e) {
+      throw new CirculationException(502, "Unexpected " + type.getSimpleName() + " from data API");
+    }
+  }
+
+}
@@ -0,0 +1,268 @@
+package hbz;
+
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * HTTP client for all calls of one tenant against the data API (Okapi). Keeps
+ * one pool of keep-alive connections instead of opening a new client per hop
+ * and counts what goes through it.
+ *
+ * Every call reports to a {@link CircuitBreaker}; callers ask
+ * {@link #isAvailable()} before a call and fail at once while it is open.
+ * Its latency also feeds the {@link AdaptiveLimit} of the tenant, which
+ * {@link Admission} holds the tenant's requests to.
+ *
+ * The background workers of a tenant, e.g. the {@link Outbox}, have clients
+ * of their own: a small pool of data.api.worker.pool.size connections each,
+ * counted under a worker label, which leave the tenant's limit alone.
+ */
+public class DataApiClient {
+
+  // correlates a request to the deliver module with the calls it makes
+  public static final String REQUEST_ID = "X-Okapi-Request-Id";
+  // data.api.patrons, data.api.items and data.api.loans when not configured
+  public static final String PATRON_API = "/patrons/";
+  public static final String ITEM_API = "/items/";
+  public static final String LOAN_API = "/loans";
+
+  private final HttpClient httpClient;
+  private final HttpClientOptions options;
+  private final String tenant;
+  // null for the client of a verticle instance
+  private final String worker;
+  private final String authorization;
+  private final long requestTimeout;
+  private final String patronApi;
+  private final String itemApi;
+  private final String loanApi;
+  private final Metrics metrics;
+  private final CircuitBreaker breaker;
+  private final AdaptiveLimit limit;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong totalLatencyNanos = new AtomicLong();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  public DataApiClient(Vertx vertx, JsonObject config, Metrics metrics) {
+    this(vertx, config, metrics, null);
+  }
+
+  // The client of the background worker named worker, e.g. "outbox"
+  public DataApiClient(Vertx vertx, JsonObject config, Metrics metrics, String worker) {
+    // data.api.pool.size is per tenant for the whole process, split over the verticle instances;
+    // every worker runs once per tenant and process
+    int instances = Math.max(1, config.getInteger("instances", 1));
+    int poolSize = worker != null ? config.getInteger("data.api.worker.pool.size", 2)
+        : (config.getInteger("data.api.pool.size", 20) + instances - 1) / instances;
+    options = new HttpClientOptions()
+        .setDefaultHost(config.getString("data.api.server", "localhost"))
+        .setDefaultPort(config.getInteger("data.api.port", 9130))
+        .setMaxPoolSize(poolSize)
+        .setMaxWaitQueueSize(config.getInteger("data.api.pool.queue", -1))
+        .setKeepAlive(config.getBoolean("data.api.keepalive", true))
+        .setPipelining(config.getBoolean("data.api.pipelining", false))
+        .setConnectTimeout(config.getInteger("data.api.connect.timeout", 2000))
+        .setIdleTimeout(config.getInteger("data.api.idle.timeout", 60));
+    tenant = config.getString("data.api.tenant", "hbz");
+    this.worker = worker;
+    authorization = config.getString("data.api.authorization", "aaaaa");
+    requestTimeout = config.getLong("data.api.timeout", 10000L);
+    patronApi = config.getString("data.api.patrons", PATRON_API);
+    itemApi = config.getString("data.api.items", ITEM_API);
+    loanApi = config.getString("data.api.loans", LOAN_API);
+    this.metrics = metrics.describe("deliver_upstream_request_seconds",
+        "Time to the response status of calls to the data API, by API, method, status and tenant")
+        .describe("deliver_upstream_in_flight", "Calls to the data API waiting for their response, by API and tenant")
+        .describe("deliver_upstream_circuit_open", "Data API clients whose circuit breaker is open, by tenant")
+        .describe("deliver_upstream_rejected_total", "Calls not made because the circuit breaker was open, by tenant")
+        .describe("deliver_upstream_limit", "Requests of a tenant admitted at a time, adapted to the data API latency");
+    breaker = new CircuitBreaker(config.getInteger("data.api.breaker.failures", 5),
+        config.getLong("data.api.breaker.open", 10000L));
+    // admission.tenant.limit is per tenant for the whole process as well
+    int maxLimit = (config.getInteger("admission.tenant.limit", 64) + instances - 1) / instances;
+    limit = new AdaptiveLimit(maxLimit, 1, maxLimit);
+    if (worker == null) {
+      metrics.gauge("deliver_upstream_limit", Metrics.labels("tenant", tenant)).addAndGet(limit.get());
+    }
+    httpClient = vertx.createHttpClient(options);
+  }
+
+  // False while the circuit breaker is open; the caller should not make the call then
+  public boolean isAvailable() {
+    boolean wasOpen = breaker.getState() != CircuitBreaker.State.CLOSED;
+    if (breaker.allow()) {
+      return true;
+    }
+    breakerChanged(wasOpen);
+    metrics.counter("deliver_upstream_rejected_total", labels("tenant", tenant)).increment();
+    return false;
+  }
+
+  public CircuitBreaker.State getBreakerState() {
+    return breaker.getState();
+  }
+
+  public AdaptiveLimit getLimit() {
+    return limit;
+  }
+
+  public HttpClientRequest get(String uri, Handler<HttpClientResponse> responseHandler,
+      Handler<Throwable> failureHandler) {
+    return request(HttpMethod.GET, uri, responseHandler, failureHandler);
+  }
+
+  public HttpClientRequest post(String uri, Handler<HttpClientResponse> responseHandler,
+      Handler<Throwable> failureHandler) {
+    return request(HttpMethod.POST, uri, responseHandler, failureHandler);
+  }
+
+  public HttpClientRequest put(String uri, Handler<HttpClientResponse> responseHandler,
+      Handler<Throwable> failureHandler) {
+    return request(HttpMethod.PUT, uri, responseHandler, failureHandler);
+  }
+
+  public HttpClientRequest delete(String uri, Handler<HttpClientResponse> responseHandler,
+      Handler<Throwable> failureHandler) {
+    return request(HttpMethod.DELETE, uri, responseHandler, failureHandler);
+  }
+
+  // Creates a request with the Okapi headers and the per-request timeout set;
+  // the caller only has to end() it, optionally with a body.
+  public HttpClientRequest request(HttpMethod method, String uri, Handler<HttpClientResponse> responseHandler,
+      Handler<Throwable> failureHandler) {
+    final long start = System.nanoTime();
+    final String api = apiOf(uri);
+    final Completion completion = new Completion(api, method);
+    requests.incrementAndGet();
+    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+    metrics.gauge("deliver_upstream_in_flight", labels("api", api, "tenant", tenant)).incrementAndGet();
+    HttpClientRequest request = httpClient.request(method, uri, response -> {
+      if (completion.done(start, String.valueOf(response.statusCode()))) {
+        responseHandler.handle(response);
+      }
+    });
+    request.exceptionHandler(throwable -> {
+      if (completion.done(start, throwable instanceof TimeoutException ? "timeout" : "error")) {
+        failures.incrementAndGet();
+        if (throwable instanceof TimeoutException) {
+          timeouts.incrementAndGet();
+        }
+        failureHandler.handle(throwable);
+      }
+    });
+    request.setTimeout(requestTimeout);
+    return request.putHeader("content-type", "application/json").putHeader("accept", "application/json, text/plain")
+        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant);
+  }
+
+  // which of the data APIs a call goes to, as label for the metrics
+  private String apiOf(String uri) {
+    if (uri.startsWith(patronApi)) {
+      return uri.contains("/loans") ? "loans" : "patrons";
+    }
+    if (uri.startsWith(loanApi)) {
+      return "loans";
+    }
+    return uri.startsWith(itemApi) ? "items" : "other";
+  }
+
+  // the labels of this client's series; a worker's are set apart by its name
+  private String labels(String... pairs) {
+    String labels = Metrics.labels(pairs);
+    return worker == null ? labels : labels + "," + Metrics.labels("worker", worker);
+  }
+
+  public JsonObject metrics() {
+    long completed = requests.get() - inFlight.get();
+    return new JsonObject()
+        .put("tenant", tenant)
+        .put("worker", worker)
+        .put("host", options.getDefaultHost())
+        .put("port", options.getDefaultPort())
+        .put("maxPoolSize", options.getMaxPoolSize())
+        .put("keepAlive", options.isKeepAlive())
+        .put("pipelining", options.isPipelining())
+        .put("requestTimeout", requestTimeout)
+        .put("requests", requests.get())
+        .put("inFlight", inFlight.get())
+        .put("maxInFlight", maxInFlight.get())
+        .put("failures", failures.get())
+        .put("timeouts", timeouts.get())
+        .put("avgLatencyMs", completed == 0 ? 0.0 : totalLatencyNanos.get() / 1e6 / completed)
+        .put("breaker", breaker.metrics())
+        .put("limit", limit.metrics());
+  }
+
+  private void breakerChanged(boolean wasOpen) {
+    boolean open = breaker.getState() != CircuitBreaker.State.CLOSED;
+    if (open != wasOpen) {
+      metrics.gauge("deliver_upstream_circuit_open", labels("tenant", tenant)).addAndGet(open ? 1 : -1);
+    }
+  }
+
+  public void close() {
+    // a client that is gone no longer counts as open
+    boolean wasOpen = breaker.getState() != CircuitBreaker.State.CLOSED;
+    breaker.succeeded();
+    breakerChanged(wasOpen);
+    if (worker == null) {
+      metrics.gauge("deliver_upstream_limit", Metrics.labels("tenant", tenant)).addAndGet(-limit.get());
+    }
+    httpClient.close();
+  }
+
+  // A request ends exactly once, either with a response or with an exception
+  private class Completion {
+
+    private final String api;
+    private final HttpMethod method;
+    private boolean done;
+
+    Completion(String api, HttpMethod method) {
+      this.api = api;
+      this.method = method;
+    }
+
+    boolean done(long start, String status) {
+      if (done) {
+        return false;
+      }
+      done = true;
+      long took = System.nanoTime() - start;
+      inFlight.decrementAndGet();
+      totalLatencyNanos.addAndGet(took);
+      metrics.gauge("deliver_upstream_in_flight", labels("api", api, "tenant", tenant)).decrementAndGet();
+      metrics.histogram("deliver_upstream_request_seconds",
+          labels("api", api, "method", method.name(), "status", status, "tenant", tenant)).recordNanos(took);
+      boolean wasOpen = breaker.getState() != CircuitBreaker.State.CLOSED;
+      boolean failed = status.startsWith("5") || "timeout".equals(status) || "error".equals(status);
+      if (failed) {
+        breaker.failed();
+      } else {
+        breaker.succeeded();
+      }
+      breakerChanged(wasOpen);
+      int before = limit.get();
+      limit.sample(took, failed);
+      if (limit.get() != before && worker == null) {
+        metrics.gauge("deliver_upstream_limit", Metrics.labels("tenant", tenant)).addAndGet(limit.get() - before);
+      }
+      return true;
+    }
+  }
+
+}
@@ -0,0 +1,16 @@
+package hbz;
+
+/**
+ * A circulation step that failed because the data API could not be reached,
+ * did not answer in time, answered with a server error or is held off by the
+ * circuit breaker, as opposed to one the data API rejected.
+ */
+public class DataApiUnavailableException extends CirculationException {
+
+  private static final long serialVersionUID = 1L;
+
+  public DataApiUnavailableException(int statusCode, String message) {
+    super(statusCode, message);
+  }
+
+}
@@ -0,0 +1,120 @@
+package hbz;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.Patron;
+
+/**
+ * The simple loan rules a {@link Rule} can express, compiled into a hash
+ * index over (patron status, patron type, item status, item type). A loan is
+ * permitted if any rule matches, the same as with the generated DRL, but the
+ * lookup costs one hash probe per combination of attributes the rules leave
+ * open instead of a pass through the whole rule base. An attribute that is
+ * not set in a rule matches every value.
+ */
+public class DecisionTable {
+
+  private static final int ATTRIBUTES = 4;
+
+  private static final ClassValue<Method> TYPE_GETTER = new ClassValue<Method>() {
+    @Override
+    protected Method computeValue(Class<?> type) {
+      try {
+        return type.getMethod("getType");
+      } catch (NoSuchMethodException e) {
+        return null;
+      }
+    }
+  };
+
+  // rule names by attribute tuple, open attributes are null
+  private final Map<Key, String> rules = new HashMap<>();
+  // which attributes are left open, one bit per attribute, over all rules
+  private final TreeSet<Integer> masks = new TreeSet<>();
+
+  public DecisionTable(Collection<Rule> rules) {
+    for (Rule rule : rules) {
+      String[] values = { rule.getPatronStatus(), rule.getPatronType(), rule.getItemStatus(), rule.getItemType() };
+      int mask = 0;
+      for (int i = 0; i < ATTRIBUTES; i++) {
+        if (values[i] == null || values[i].isEmpty()) {
+          values[i] = null;
+          mask |= 1 << i;
+        }
+      }
+      this.rules.putIfAbsent(new Key(values), rule.getRuleName());
+      masks.add(mask);
+    }
+  }
+
+  public int size() {
+    return rules.size();
+  }
+
+  public boolean permits(Patron patron, Item item) {
+    return match(patron, item) != null;
+  }
+
+  // name of a rule that permits the loan, null if none does
+  public String match(Patron patron, Item item) {
+    if (rules.isEmpty()) {
+      return null;
+    }
+    String[] facts = { patron.getStatus(), typeOf(patron),
+        item.getItemStatus() == null ? null : item.getItemStatus().getValue(), typeOf(item) };
+    for (int mask : masks) {
+      String[] values = new String[ATTRIBUTES];
+      for (int i = 0; i < ATTRIBUTES; i++) {
+        values[i] = (mask & 1 << i) != 0 ? null : facts[i];
+      }
+      String rule = rules.get(new Key(values));
+      if (rule != null) {
+        return rule;
+      }
+    }
+    return null;
+  }
+
+  // The generated DRL calls getType(); not every patron or item model has it
+  private static String typeOf(Object fact) {
+    Method getter = TYPE_GETTER.get(fact.getClass());
+    if (getter == null) {
+      return null;
+    }
+    try {
+      Object type = getter.invoke(fact);
+      return type == null ? null : type.toString();
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      return null;
+    }
+  }
+
+  private static class Key {
+
+    private final String[] values;
+    private final int hash;
+
+    Key(String[] values) {
+      this.values = values;
+      this.hash = Arrays.hashCode(values);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key && Arrays.equals(values, ((Key) other).values);
+    }
+  }
+
+}
@@ -0,0 +1,275 @@
+package hbz;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import io.vertx.core.json.JsonObject;
+
+import org.folio.rest.jaxrs.model.Loan;
+
+/**
+ * The open loans of one tenant by the time their next notice is due, in
+ * buckets of bucketSeconds: a courtesy notice courtesySeconds before the
+ * due date, if the loan was made before then, an overdue notice at the due
+ * date and, with repeatSeconds, a reminder every repeatSeconds after it.
+ * {@link #poll} takes the loans whose notice is due from the buckets up to
+ * now and files them under their next one, so it only ever touches loans
+ * that get a notice. A renewal moves a loan to the bucket of its new due
+ * date, a return takes it out.
+ *
+ * The index is filled from the loans written through the {@link DataApi},
+ * and from scans of all open loans, when the tenant is loaded and then now
+ * and again. Loans put or removed while a scan runs are not overwritten by
+ * what it read earlier. Loans two complete scans in a row did not come
+ * across, e.g. returned around this module, are dropped; one miss may just
+ * be a page that shifted while loans were returned during the scan.
+ *
+ * Changes made here are reported to the listener set with {@link #onChange},
+ * so that the indexes of the other nodes of a cluster follow, see
+ * {@link #apply}. Safe to share between threads. Times are in seconds since
+ * the epoch, as loans keep their due dates.
+ */
+public class DueDateIndex {
+
+  public static final String COURTESY = "courtesy";
+  public static final String OVERDUE = "overdue";
+
+  private final long bucketSeconds;
+  private final long courtesySeconds;
+  private final long repeatSeconds;
+  private final TreeMap<Long, Map<String, Entry>> buckets = new TreeMap<>();
+  private final Map<String, Entry> loans = new HashMap<>();
+  // loans put or removed since the scan started and loans it read, null while none runs
+  private Set<String> touched;
+  private Set<String> seen;
+  // loans the last complete scan did not come across
+  private Set<String> missed = new HashSet<>();
+  private volatile Consumer<JsonObject> changes = change -> {
+  };
+
+  private long noticesDue;
+
+  public DueDateIndex(long bucketSeconds, long courtesySeconds, long repeatSeconds) {
+    this.bucketSeconds = Math.max(1, bucketSeconds);
+    this.courtesySeconds = courtesySeconds;
+    this.repeatSeconds = repeatSeconds;
+  }
+
+  // A loan created or renewed with its current due date, at now
+  public void put(String loanId, Loan loan, long now) {
+    JsonObject change = put(loanId, loan.getPatronId(), loan.getItemId(), loan.getDueDate(), now);
+    changes.accept(change);
+  }
+
+  // A loan returned
+  public void remove(String loanId) {
+    unindex(loanId);
+    changes.accept(new JsonObject().put("loanId", loanId).put("removed", true));
+  }
+
+  // A change reported by the index of another node; not reported again
+  public void apply(JsonObject change, long now) {
+    if (change.getBoolean("removed", false)) {
+      unindex(change.getString("loanId"));
+    } else {
+      put(change.getString("loanId"), change.getString("patronId"), change.getString("itemId"),
+          change.getDouble("dueDate"), now);
+    }
+  }
+
+  public synchronized void startScan() {
+    touched = new HashSet<>();
+    seen = new HashSet<>();
+  }
+
+  // A loan read by the scan, unless it changed meanwhile; a loan indexed
+  // already keeps the notices it got
+  public synchronized void scanned(Loan loan, long now) {
+    if (touched == null || touched.contains(loan.getId())) {
+      return;
+    }
+    seen.add(loan.getId());
+    Entry indexed = loans.get(loan.getId());
+    if (indexed == null || loan.getDueDate() == null || indexed.dueDate != loan.getDueDate().longValue()) {
+      schedule(loan.getId(), loan.getPatronId(), loan.getItemId(), loan.getDueDate(), now);
+    }
+  }
+
+  // complete if the scan went through all open loans; returns the loans dropped
+  public synchronized int endScan(boolean complete) {
+    int dropped = 0;
+    if (complete && touched != null) {
+      Set<String> missedNow = new HashSet<>();
+      for (Iterator<Entry> entries = loans.values().iterator(); entries.hasNext();) {
+        Entry entry = entries.next();
+        if (seen.contains(entry.loanId) || touched.contains(entry.loanId)) {
+          continue;
+        }
+        if (missed.contains(entry.loanId)) {
+          entries.remove();
+          unschedule(entry);
+          dropped++;
+        } else {
+          missedNow.add(entry.loanId);
+        }
+      }
+      missed = missedNow;
+    }
+    touched = null;
+    seen = null;
+    return dropped;
+  }
+
+  public void onChange(Consumer<JsonObject> listener) {
+    changes = listener;
+  }
+
+  // Up to max of the notices due by now, each as { loanId, patronId, itemId,
+  // dueDate, kind, reminder }; the loans are filed under their next notice,
+  // if they get one. A loan already past its due date gets the overdue notice
+  // instead of the courtesy one; reminders missed, e.g. while the module was
+  // down, are not made up for.
+  public synchronized List<JsonObject> poll(long now, int max) {
+    List<JsonObject> notices = new ArrayList<>();
+    while (!buckets.isEmpty() && buckets.firstKey() <= bucket(now) && notices.size() < max) {
+      Map<String, Entry> first = buckets.firstEntry().getValue();
+      List<Entry> fired = new ArrayList<>();
+      for (Iterator<Entry> entries = first.values().iterator(); entries.hasNext()
+          && notices.size() + fired.size() < max;) {
+        Entry entry = entries.next();
+        if (entry.noticeAt <= now) {
+          entries.remove();
+          fired.add(entry);
+        }
+      }
+      if (first.isEmpty()) {
+        buckets.pollFirstEntry();
+      }
+      for (Entry entry : fired) {
+        if (COURTESY.equals(entry.kind) && entry.dueDate <= now) {
+          entry.kind = OVERDUE;
+        }
+        notices.add(new JsonObject().put("loanId", entry.loanId).put("patronId", entry.patronId)
+            .put("itemId", entry.itemId).put("dueDate", entry.dueDate).put("kind", entry.kind)
+            .put("reminder", entry.reminder));
+        next(entry, now);
+      }
+      if (!first.isEmpty() && notices.size() < max) {
+        // the rest of the bucket of now is not due yet
+        break;
+      }
+    }
+    noticesDue += notices.size();
+    return notices;
+  }
+
+  public synchronized int size() {
+    return loans.size();
+  }
+
+  public synchronized JsonObject metrics() {
+    return new JsonObject()
+        .put("loans", loans.size())
+        .put("buckets", buckets.size())
+        .put("bucketSeconds", bucketSeconds)
+        .put("nextNoticeAt", buckets.isEmpty() ? null
+            : buckets.firstEntry().getValue().values().stream().mapToLong(entry -> entry.noticeAt).min().getAsLong())
+        .put("noticesDue", noticesDue)
+        .put("scanning", touched != null);
+  }
+
+  private synchronized void unindex(String loanId) {
+    if (touched != null) {
+      touched.add(loanId);
+    }
+    unschedule(loans.remove(loanId));
+  }
+
+  private JsonObject put(String loanId, String patronId, String itemId, Double dueDate, long now) {
+    synchronized (this) {
+      if (touched != null) {
+        touched.add(loanId);
+      }
+      schedule(loanId, patronId, itemId, dueDate, now);
+    }
+    return new JsonObject().put("loanId", loanId).put("patronId", patronId).put("itemId", itemId)
+        .put("dueDate", dueDate);
+  }
+
+  private void schedule(String loanId, String patronId, String itemId, Double dueDate, long now) {
+    unschedule(loans.remove(loanId));
+    if (dueDate == null) {
+      return;
+    }
+    Entry entry = new Entry(loanId, patronId, itemId, dueDate.longValue());
+    if (entry.dueDate - courtesySeconds > now && courtesySeconds > 0) {
+      entry.kind = COURTESY;
+      entry.noticeAt = entry.dueDate - courtesySeconds;
+    } else {
+      entry.kind = OVERDUE;
+      entry.noticeAt = entry.dueDate;
+    }
+    loans.put(loanId, entry);
+    file(entry);
+  }
+
+  // the notice after the one just sent at now, if any
+  private void next(Entry entry, long now) {
+    if (COURTESY.equals(entry.kind)) {
+      entry.kind = OVERDUE;
+      entry.noticeAt = entry.dueDate;
+    } else if (repeatSeconds > 0) {
+      entry.reminder = (int) ((now - entry.dueDate) / repeatSeconds) + 1;
+      entry.noticeAt = entry.dueDate + entry.reminder * repeatSeconds;
+    } else {
+      // overdue and noticed; kept until it is returned
+      return;
+    }
+    file(entry);
+  }
+
+  private void file(Entry entry) {
+    buckets.computeIfAbsent(bucket(entry.noticeAt), key -> new HashMap<>()).put(entry.loanId, entry);
+  }
+
+  private void unschedule(Entry entry) {
+    if (entry == null) {
+      return;
+    }
+    Map<String, Entry> bucket = buckets.get(bucket(entry.noticeAt));
+    if (bucket != null && bucket.remove(entry.loanId) != null && bucket.isEmpty()) {
+      buckets.remove(bucket(entry.noticeAt));
+    }
+  }
+
+  private long bucket(long time) {
+    return Math.floorDiv(time, bucketSeconds);
+  }
+
+  private static class Entry {
+
+    final String loanId;
+    final String patronId;
+    final String itemId;
+    final long dueDate;
+    String kind;
+    long noticeAt;
+    int reminder;
+
+    Entry(String loanId, String patronId, String itemId, long dueDate) {
+      this.loanId = loanId;
+      this.patronId = patronId;
+      this.itemId = itemId;
+      this.dueDate = dueDate;
+    }
+
+  }
+
+}
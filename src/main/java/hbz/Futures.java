@@ -0,0 +1,107 @@
+package hbz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+
+/**
+ * Small combinators for chaining the asynchronous circulation steps.
+ */
+public final class Futures {
+
+  private Futures() {
+  }
+
+  // Runs next with the result of future once it succeeded; any failure is passed on
+  public static <T, U> Future<U> then(Future<T> future, Function<T, Future<U>> next) {
+    Future<U> result = Future.future();
+    future.setHandler(done -> {
+      if (done.failed()) {
+        result.fail(done.cause());
+        return;
+      }
+      try {
+        next.apply(done.result()).setHandler(result.completer());
+      } catch (RuntimeException e) {
+        result.fail(e);
+      }
+    });
+    return result;
+  }
+
+  public static <T, U> Future<U> map(Future<T> future, Function<T, U> mapper) {
+    return then(future, value -> Future.succeededFuture(mapper.apply(value)));
+  }
+
+  // Waits for two independent steps running side by side. Unlike
+  // CompositeFuture.all it always waits for both, so that a failure of the
+  // first one is reported even if the second one failed earlier.
+  public static Future<Void> join(Future<?> first, Future<?> second) {
+    Future<Void> result = Future.future();
+    first.setHandler(firstDone -> second.setHandler(secondDone -> {
+      if (firstDone.failed()) {
+        result.fail(firstDone.cause());
+      } else if (secondDone.failed()) {
+        result.fail(secondDone.cause());
+      } else {
+        result.complete();
+      }
+    }));
+    return result;
+  }
+
+  public static <T, R> Future<List<AsyncResult<R>>> settleAll(List<T> inputs, int limit,
+      Function<T, Future<R>> task) {
+    return settleAll(inputs, limit, task, (input, outcome) -> {
+    });
+  }
+
+  // Runs task for every input with at most limit tasks in flight at a time.
+  // onEach is told about every outcome as soon as it is known; the returned
+  // future completes with all outcomes in input order once every task is done.
+  // Must be called on the event loop that also completes the tasks.
+  public static <T, R> Future<List<AsyncResult<R>>> settleAll(List<T> inputs, int limit,
+      Function<T, Future<R>> task, BiConsumer<T, AsyncResult<R>> onEach) {
+    Future<List<AsyncResult<R>>> result = Future.future();
+    List<AsyncResult<R>> outcomes = new ArrayList<>(Collections.nCopies(inputs.size(), null));
+    if (inputs.isEmpty()) {
+      result.complete(outcomes);
+      return result;
+    }
+    int[] next = { 0 };
+    int[] done = { 0 };
+    Runnable[] startNext = new Runnable[1];
+    startNext[0] = () -> {
+      if (next[0] == inputs.size()) {
+        return;
+      }
+      int index = next[0]++;
+      T input = inputs.get(index);
+      Future<R> outcome;
+      try {
+        outcome = task.apply(input);
+      } catch (RuntimeException e) {
+        outcome = Future.failedFuture(e);
+      }
+      outcome.setHandler(finished -> {
+        outcomes.set(index, finished);
+        onEach.accept(input, finished);
+        if (++done[0] == inputs.size()) {
+          result.complete(outcomes);
+        } else {
+          startNext[0].run();
+        }
+      });
+    };
+    for (int i = 0; i < limit; i++) {
+      startNext[0].run();
+    }
+    return result;
+  }
+
+}
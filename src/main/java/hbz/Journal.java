@@ -0,0 +1,160 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Append-only file of JSON records, one per line, for state that has to
+ * survive a restart. A record is on disk once {@link #sync(long)} returned
+ * for the position {@link #append(JsonObject)} gave; appends from several
+ * threads that wait for the disk at the same time share one force. A line
+ * cut off by a crash is skipped when the file is read again. The records
+ * still needed can be written to a fresh file that takes the place of the
+ * old one at once, see {@link #rewrite(List)}.
+ *
+ * All methods block; call them on worker threads.
+ */
+public class Journal {
+
+  private final File file;
+  private FileChannel channel;
+  // bytes known to be on disk
+  private long forced;
+  private final Object forceLock = new Object();
+
+  public Journal(File file) throws IOException {
+    this.file = file;
+    file.getAbsoluteFile().getParentFile().mkdirs();
+    channel = open(file.toPath());
+    long size = channel.size();
+    if (size > 0) {
+      ByteBuffer last = ByteBuffer.allocate(1);
+      channel.read(last, size - 1);
+      channel.position(size);
+      // start the next record on a line of its own after a cut-off one
+      if (last.get(0) != '\n') {
+        channel.write(ByteBuffer.wrap(new byte[] { '\n' }));
+        channel.force(false);
+      }
+    }
+    channel.position(channel.size());
+    forced = channel.size();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public List<JsonObject> read() throws IOException {
+    List<JsonObject> records = new ArrayList<>();
+    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+      try {
+        records.add(new JsonObject(line));
+      } catch (DecodeException e) {
+        // the tail of a record cut off by a crash; it was never on disk as a whole
+      }
+    }
+    return records;
+  }
+
+  // Writes a record and returns the position it ends at, see sync
+  public synchronized long append(JsonObject record) throws IOException {
+    ByteBuffer line = ByteBuffer.wrap((record.encode() + "\n").getBytes(StandardCharsets.UTF_8));
+    while (line.hasRemaining()) {
+      channel.write(line);
+    }
+    return channel.position();
+  }
+
+  // Forces the file up to end, unless another sync already did
+  public void sync(long end) throws IOException {
+    synchronized (forceLock) {
+      if (forced >= end) {
+        return;
+      }
+      long position;
+      synchronized (this) {
+        position = channel.position();
+      }
+      channel.force(false);
+      forced = position;
+    }
+  }
+
+  // Starts over with an empty file, once none of the records is needed any more
+  public void truncate() throws IOException {
+    synchronized (forceLock) {
+      synchronized (this) {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(false);
+        forced = 0;
+      }
+    }
+  }
+
+  // Replaces the file by one with only records, forced to disk before it is
+  // renamed over the old one and the rename forced with its directory; a
+  // crash leaves either the old or the new file
+  public void rewrite(List<JsonObject> records) throws IOException {
+    Path path = file.toPath();
+    Path fresh = path.resolveSibling(file.getName() + ".tmp");
+    synchronized (forceLock) {
+      synchronized (this) {
+        try (FileChannel out = FileChannel.open(fresh, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+          for (JsonObject record : records) {
+            ByteBuffer line = ByteBuffer.wrap((record.encode() + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+              out.write(line);
+            }
+          }
+          out.force(false);
+        }
+        Files.move(fresh, path, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(path.toAbsolutePath().getParent());
+        channel.close();
+        channel = open(path);
+        channel.position(channel.size());
+        forced = channel.size();
+      }
+    }
+  }
+
+  public synchronized long size() throws IOException {
+    return channel.isOpen() ? channel.size() : 0;
+  }
+
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  // The rename is only durable once the directory entry is on disk, too
+  private static void forceDirectory(Path dir) throws IOException {
+    try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // directories cannot be opened or forced on every platform, e.g. Windows
+      if (Files.isDirectory(dir) && !System.getProperty("os.name", "").startsWith("Windows")) {
+        throw e;
+      }
+    }
+  }
+
+  private static FileChannel open(Path path) throws IOException {
+    return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+}
@@ -0,0 +1,131 @@
+package hbz;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Picks the elements of one array out of a JSON document while it arrives in
+ * chunks, e.g. the "loans" of {"loans" : [ ... ], "total_records" : 2}. Every
+ * element is handed on as the raw JSON it was sent as, as soon as its last
+ * byte is in; nothing around it is parsed or kept. With a field of null the
+ * document itself is expected to be the array.
+ *
+ * Only the structure is tracked (nesting, strings and escapes), which is
+ * enough because all structural characters of JSON are single bytes in UTF-8.
+ */
+public class JsonArrayStream implements Handler<Buffer> {
+
+  private final String field;
+  private final Handler<Buffer> elementHandler;
+
+  private int depth;
+  private boolean inString;
+  private boolean escaped;
+  private int arrayDepth = -1;
+  private boolean finished;
+  private ByteArrayOutputStream key;
+  private String lastKey;
+  private Buffer element;
+  private boolean scalar;
+  private int count;
+
+  public JsonArrayStream(String field, Handler<Buffer> elementHandler) {
+    this.field = field;
+    this.elementHandler = elementHandler;
+  }
+
+  // number of elements handed on so far
+  public int count() {
+    return count;
+  }
+
+  // whether the closing bracket of the array has been seen
+  public boolean isFinished() {
+    return finished;
+  }
+
+  @Override
+  public void handle(Buffer chunk) {
+    if (finished) {
+      return;
+    }
+    int start = element == null ? -1 : 0;
+    int length = chunk.length();
+    for (int i = 0; i < length && !finished; i++) {
+      byte c = chunk.getByte(i);
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (c == '\\') {
+          escaped = true;
+        } else if (c == '"') {
+          inString = false;
+          if (key != null) {
+            lastKey = new String(key.toByteArray(), StandardCharsets.UTF_8);
+            key = null;
+          }
+        }
+        if (key != null && inString) {
+          key.write(c);
+        }
+        continue;
+      }
+      boolean inArray = arrayDepth != -1 && depth == arrayDepth;
+      if (inArray && element != null && scalar && (c == ',' || c == ']')) {
+        emit(chunk, start, i);
+        start = -1;
+      }
+      if (inArray && element == null && c != ',' && c != ']' && !isWhitespace(c)) {
+        element = Buffer.buffer();
+        scalar = c != '{' && c != '[';
+        start = i;
+      }
+      switch (c) {
+        case '"':
+          inString = true;
+          if (arrayDepth == -1 && depth == 1 && field != null) {
+            key = new ByteArrayOutputStream();
+          }
+          break;
+        case '{':
+          depth++;
+          break;
+        case '[':
+          depth++;
+          if (arrayDepth == -1 && (field == null ? depth == 1 : depth == 2 && field.equals(lastKey))) {
+            arrayDepth = depth;
+          }
+          break;
+        case '}':
+        case ']':
+          depth--;
+          if (arrayDepth != -1 && element != null && !scalar && depth == arrayDepth) {
+            emit(chunk, start, i + 1);
+            start = -1;
+          } else if (arrayDepth != -1 && depth == arrayDepth - 1) {
+            finished = true;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    if (element != null && start != -1) {
+      element.appendBuffer(chunk.getBuffer(start, length));
+    }
+  }
+
+  private void emit(Buffer chunk, int start, int end) {
+    elementHandler.handle(element.appendBuffer(chunk.getBuffer(start, end)));
+    element = null;
+    count++;
+  }
+
+  private static boolean isWhitespace(byte c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+}
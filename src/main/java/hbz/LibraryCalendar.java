@@ -0,0 +1,106 @@
+package hbz;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The days one library is open, as tables over the days from horizon days
+ * before to horizon days after the day they were built: the next open day
+ * for every day, and the open days before it. Due dates and fines are looked
+ * up there; only days outside the tables are walked day by day, which is
+ * counted, see {@link #getWalks()}.
+ *
+ * Days are epoch days. Immutable apart from the counter.
+ */
+class LibraryCalendar {
+
+  private final Set<DayOfWeek> closedWeekdays;
+  private final Set<Long> closedDays;
+  private final long firstDay;
+  // the first open day on or after firstDay + i
+  private final long[] nextOpen;
+  // open days from firstDay to before firstDay + i
+  private final int[] openBefore;
+  private final AtomicLong walks = new AtomicLong();
+
+  LibraryCalendar(Set<DayOfWeek> closedWeekdays, Set<Long> closedDays, long today, int horizon) {
+    if (closedWeekdays.size() == DayOfWeek.values().length) {
+      throw new IllegalArgumentException("closed on every day of the week");
+    }
+    this.closedWeekdays = closedWeekdays.isEmpty() ? Collections.emptySet() : EnumSet.copyOf(closedWeekdays);
+    this.closedDays = closedDays;
+    firstDay = today - horizon;
+    int days = 2 * horizon + 1;
+    nextOpen = new long[days];
+    long next = walk(firstDay + days);
+    for (int i = days - 1; i >= 0; i--) {
+      if (isOpen(firstDay + i)) {
+        next = firstDay + i;
+      }
+      nextOpen[i] = next;
+    }
+    openBefore = new int[days + 1];
+    for (int i = 0; i < days; i++) {
+      openBefore[i + 1] = openBefore[i] + (isOpen(firstDay + i) ? 1 : 0);
+    }
+  }
+
+  // Open every day, e.g. for libraries without a calendar
+  static LibraryCalendar open(long today, int horizon) {
+    return new LibraryCalendar(Collections.emptySet(), Collections.emptySet(), today, horizon);
+  }
+
+  boolean isOpen(long day) {
+    return !closedDays.contains(day) && !closedWeekdays.contains(LocalDate.ofEpochDay(day).getDayOfWeek());
+  }
+
+  long nextOpen(long day) {
+    int i = (int) (day - firstDay);
+    if (day >= firstDay && i < nextOpen.length) {
+      return nextOpen[i];
+    }
+    walks.incrementAndGet();
+    return walk(day);
+  }
+
+  // The open days after one day up to and including another
+  long openDays(long after, long until) {
+    if (until <= after) {
+      return 0;
+    }
+    if (after + 1 >= firstDay && until + 1 - firstDay < openBefore.length) {
+      return openBefore[(int) (until + 1 - firstDay)] - openBefore[(int) (after + 1 - firstDay)];
+    }
+    walks.incrementAndGet();
+    long open = 0;
+    for (long day = after + 1; day <= until; day++) {
+      open += isOpen(day) ? 1 : 0;
+    }
+    return open;
+  }
+
+  long getFirstDay() {
+    return firstDay;
+  }
+
+  long getLastDay() {
+    return firstDay + nextOpen.length - 1;
+  }
+
+  long getWalks() {
+    return walks.get();
+  }
+
+  // ends, as at least one day of the week is open
+  private long walk(long day) {
+    while (!isOpen(day)) {
+      day++;
+    }
+    return day;
+  }
+
+}
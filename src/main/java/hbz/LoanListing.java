@@ -0,0 +1,159 @@
+package hbz;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.ItemStatus;
+import org.folio.rest.jaxrs.model.Loan;
+
+/**
+ * One page of the loans of a patron, joined with their items, as the staff
+ * screens ask for it. The query parameters are
+ * <ul>
+ * <li>overdue=true|false, only loans that are or are not overdue</li>
+ * <li>itemStatus=value, only loans of items with that status, e.g. 02</li>
+ * <li>sort=dueDate|loanDate|itemId|title, with a - in front for descending
+ * order; by dueDate if not given</li>
+ * <li>limit, the page size, and after, the cursor the previous page ended
+ * with</li>
+ * </ul>
+ * The cursor holds the sort value and id of the last loan on the page, so the
+ * next page starts at the right place even if loans were returned meanwhile.
+ */
+public class LoanListing {
+
+  private static final int MAX_LIMIT = 500;
+
+  private final boolean descending;
+  private final String sortField;
+  private final Boolean overdue;
+  private final String itemStatus;
+  private final int limit;
+  private final JsonObject after;
+
+  // Reads the query; fails with 400 for parameters that make no sense
+  public LoanListing(MultiMap params) {
+    String sort = params.get("sort") == null ? "dueDate" : params.get("sort");
+    descending = sort.startsWith("-");
+    sortField = descending ? sort.substring(1) : sort;
+    if (!sortField.matches("dueDate|loanDate|itemId|title")) {
+      throw new CirculationException(400, "Cannot sort loans by " + sortField);
+    }
+    String overdueParam = params.get("overdue");
+    overdue = overdueParam == null ? null : Boolean.valueOf(overdueParam);
+    itemStatus = params.get("itemStatus");
+    String limitParam = params.get("limit");
+    if (limitParam != null && !limitParam.matches("\\d{1,9}")) {
+      throw new CirculationException(400, "Invalid limit " + limitParam);
+    }
+    limit = limitParam == null ? 50 : Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(limitParam)));
+    after = params.get("after") == null ? null : decodeCursor(params.get("after"));
+  }
+
+  // The page as JSON: the loans, each with its item and whether it is overdue,
+  // the number of loans that passed the filters and the cursor of the next page
+  public JsonObject page(List<Loan> loans, Map<String, Item> items, long now) {
+    Comparator<Loan> order = Comparator.comparing((Loan loan) -> sortKey(loan), LoanListing::compareKeys)
+        .thenComparing(Loan::getId, Comparator.nullsLast(Comparator.naturalOrder()));
+    if (descending) {
+      order = order.reversed();
+    }
+    List<Loan> selected = loans.stream()
+        .filter(loan -> overdue == null || overdue == isOverdue(loan, now))
+        .filter(loan -> itemStatus == null || itemStatus.equals(statusOf(items.get(loan.getItemId()))))
+        .sorted(order).collect(Collectors.toList());
+    List<Loan> page = new ArrayList<>();
+    boolean more = false;
+    for (Loan loan : selected) {
+      if (after != null && !isAfterCursor(loan)) {
+        continue;
+      }
+      if (page.size() == limit) {
+        more = true;
+        break;
+      }
+      page.add(loan);
+    }
+    JsonArray entries = new JsonArray();
+    for (Loan loan : page) {
+      JsonObject entry = Codec.LOAN.toJson(loan).put("overdue", isOverdue(loan, now));
+      Item item = items.get(loan.getItemId());
+      if (item != null) {
+        entry.put("item", Codec.ITEM.toJson(item));
+      }
+      entries.add(entry);
+    }
+    JsonObject result = new JsonObject().put("loans", entries).put("total", selected.size());
+    if (more) {
+      result.put("next", encodeCursor(page.get(page.size() - 1)));
+    }
+    return result;
+  }
+
+  // Due dates are in seconds, see MainVerticle.createLoanObject
+  static boolean isOverdue(Loan loan, long now) {
+    return loan.getDueDate() != null && loan.getDueDate() < now / 1000;
+  }
+
+  private boolean isAfterCursor(Loan loan) {
+    int byKey = compareKeys(sortKey(loan), after.getValue("key"));
+    if (byKey == 0) {
+      byKey = String.valueOf(loan.getId()).compareTo(after.getString("id", ""));
+    }
+    return descending ? byKey < 0 : byKey > 0;
+  }
+
+  private Object sortKey(Loan loan) {
+    switch (sortField) {
+    case "loanDate":
+      return loan.getLoanDate();
+    case "itemId":
+      return loan.getItemId();
+    case "title":
+      return loan.getTitle();
+    default:
+      return loan.getDueDate();
+    }
+  }
+
+  // Numbers by value, anything else as text; loans without a value come last
+  private static int compareKeys(Object first, Object second) {
+    if (first == null || second == null) {
+      return first == second ? 0 : first == null ? 1 : -1;
+    }
+    if (first instanceof Number && second instanceof Number) {
+      return Double.compare(((Number) first).doubleValue(), ((Number) second).doubleValue());
+    }
+    return first.toString().compareTo(second.toString());
+  }
+
+  private static String statusOf(Item item) {
+    ItemStatus status = item == null ? null : item.getItemStatus();
+    return status == null ? null : status.getValue();
+  }
+
+  private String encodeCursor(Loan last) {
+    JsonObject cursor = new JsonObject().put("key", sortKey(last)).put("id", last.getId());
+    return Base64.getUrlEncoder().encodeToString(cursor.encode().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static JsonObject decodeCursor(String cursor) {
+    try {
+      return new JsonObject(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+    } catch (IllegalArgumentException | DecodeException e) {
+      throw new CirculationException(400, "Invalid cursor");
+    }
+  }
+
+}
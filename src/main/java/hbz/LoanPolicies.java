@@ -0,0 +1,314 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.Patron;
+
+/**
+ * The loan policies and library calendars of one tenant, read from
+ * policies.json in its rules folder:
+ *
+ * { "policies" : [ { "name" : "students", "patronType" : "S", "loanDays" : 28,
+ *     "maxRenewals" : 2, "finePerDay" : 50, "maxFine" : 1000 }, ... ],
+ *   "calendars" : { "88" : { "closedWeekdays" : [ "SUNDAY" ],
+ *     "closedDays" : [ "2026-12-24" ] }, "*" : { ... } } }
+ *
+ * A loan gets the policy that names the most of its patron type, item type
+ * and library; among equally specific ones the first in the file wins, and
+ * without any the default of 14 days. Its library gets the calendar under
+ * its name, else the one under "*", else it is open every day.
+ *
+ * Everything that can be worked out ahead is: the calendars are turned into
+ * tables when the file is read and again when the day they were built for is
+ * half their horizon ago, and the terms of every patron type, item type and
+ * library are resolved once and remembered. A loan, return or renewal only
+ * reads three attributes and looks up a map. The file is watched like the
+ * rules, see {@link RuleRepository}; a changed file drops the remembered
+ * terms, a file that does not load keeps the previous policies.
+ */
+public class LoanPolicies {
+
+  public static final String FILE = "policies.json";
+  // the calendar of libraries that have none of their own
+  public static final String ANY_LIBRARY = "*";
+  private static final LoanPolicy DEFAULT = new LoanPolicy("default", 14);
+  private static final LoanTerms DEFAULT_TERMS = new LoanTerms(DEFAULT,
+      LibraryCalendar.open(LocalDate.now().toEpochDay(), 400), ZoneId.systemDefault());
+
+  private final Vertx vertx;
+  private final File file;
+  private final ZoneId zone;
+  private final int horizon;
+  private final int cacheSize;
+  private final Function<Patron, String> patronType;
+  private final Set<String> patronFields;
+  private final Function<Item, String> itemType;
+  private final Function<Item, String> library;
+
+  private long stamp = -1;
+  private volatile Loaded loaded;
+  private volatile JsonObject status = new JsonObject();
+  private long timerId = -1;
+
+  private final Logger logger = LoggerFactory.getLogger("hbz-deliver-module");
+
+  // Reads folder/policies.json if there is one; do not call it on an event loop
+  public LoanPolicies(Vertx vertx, String folder, JsonObject config) {
+    this.vertx = vertx;
+    this.file = new File(folder, FILE);
+    String timezone = config.getString("policies.timezone", "");
+    this.zone = timezone.isEmpty() ? ZoneId.systemDefault() : ZoneId.of(timezone);
+    this.horizon = config.getInteger("policies.horizon.days", 400);
+    this.cacheSize = config.getInteger("policies.cache.size", 10000);
+    String patronTypePath = config.getString("policies.patron.type", "patron_code.value");
+    this.patronType = Codec.PATRON.accessor(patronTypePath);
+    this.patronFields = Collections.singleton(patronTypePath.split("\\.")[0]);
+    this.itemType = Codec.ITEM.accessor(config.getString("policies.item.type", "material_type.value"));
+    this.library = Codec.ITEM.accessor(config.getString("policies.item.library", "library_id"));
+    scan();
+    if (loaded == null) {
+      throw new IllegalStateException("Loan policies could not be read: " + status.getJsonArray("errors").encode());
+    }
+  }
+
+  // The default policy, open every day, for loans made without a tenant
+  public static LoanTerms defaultTerms() {
+    return DEFAULT_TERMS;
+  }
+
+  // The terms of a loan of item to patron; a null patron, e.g. on a return,
+  // is any patron type
+  public LoanTerms termsFor(Patron patron, Item item) {
+    Loaded current = loaded;
+    List<String> key = Arrays.asList(patron == null ? null : patronType.apply(patron), itemType.apply(item),
+        library.apply(item));
+    LoanTerms terms = current.terms.get(key);
+    if (terms == null) {
+      terms = current.resolve(key.get(0), key.get(1), key.get(2));
+      if (current.terms.size() < cacheSize) {
+        current.terms.put(key, terms);
+      }
+    }
+    return terms;
+  }
+
+  // The JSON fields of patrons the policies read, to be bound even when
+  // patrons are bound with only the fields needed
+  public Set<String> getPatronFields() {
+    return patronFields;
+  }
+
+  public String getFile() {
+    return file.getPath();
+  }
+
+  public JsonObject getStatus() {
+    Loaded current = loaded;
+    long walks = 0;
+    for (LibraryCalendar calendar : current.calendars.values()) {
+      walks += calendar.getWalks();
+    }
+    return status.copy().put("termsCached", current.terms.size()).put("calendarWalks", walks);
+  }
+
+  public void startWatching(long interval) {
+    timerId = vertx.setPeriodic(interval, timer -> refresh());
+  }
+
+  public void stopWatching() {
+    if (timerId != -1) {
+      vertx.cancelTimer(timerId);
+    }
+  }
+
+  // Rereads the file if it changed and rebuilds the calendar tables if they
+  // are due. Completes with true if the file loads, with false if it has errors.
+  public Future<Boolean> refresh() {
+    Future<Boolean> result = Future.future();
+    vertx.<Boolean>executeBlocking(future -> future.complete(scan()), true, result.completer());
+    return result;
+  }
+
+  private synchronized boolean scan() {
+    long today = LocalDate.now(zone).toEpochDay();
+    long current = file.isFile() ? file.lastModified() * 31 + file.length() : 0;
+    if (loaded != null && current == stamp) {
+      if (today >= loaded.builtDay + horizon / 2) {
+        loaded = new Loaded(loaded.policies, loaded.closed, today);
+        logger.info("Calendar tables of " + file + " rebuilt for " + LocalDate.ofEpochDay(today));
+        status = status.copy().put("tablesFrom", LocalDate.ofEpochDay(today - horizon).toString())
+            .put("tablesUntil", LocalDate.ofEpochDay(today + horizon).toString());
+      }
+      return status.getJsonArray("errors").isEmpty();
+    }
+    stamp = current;
+    long started = System.currentTimeMillis();
+    JsonArray errors = new JsonArray();
+    List<LoanPolicy> policies = new ArrayList<>();
+    Map<String, Closed> closed = new HashMap<>();
+    if (current != 0) {
+      try {
+        read(new JsonObject(new String(Files.readAllBytes(file.toPath()), "UTF-8")), policies, closed, errors);
+      } catch (IOException | DecodeException e) {
+        errors.add(new JsonObject().put("file", FILE).put("message", e.getMessage()));
+      }
+    }
+    if (errors.isEmpty()) {
+      loaded = new Loaded(policies, closed, today);
+      logger.info("Loan policies of " + file + " are live: " + policies.size() + " policies, " + closed.size()
+          + " calendars");
+    } else {
+      logger.error("Loan policies in " + file + " do not load, keeping the previous ones: " + errors.encode());
+    }
+    Loaded live = loaded;
+    status = new JsonObject().put("file", file.getPath()).put("loadedAt", started).put("errors", errors)
+        .put("timezone", zone.getId())
+        .put("policies", live == null ? 0 : live.policies.size())
+        .put("calendars", live == null ? new JsonArray() : new JsonArray(new ArrayList<>(live.closed.keySet())))
+        .put("tablesFrom", LocalDate.ofEpochDay(today - horizon).toString())
+        .put("tablesUntil", LocalDate.ofEpochDay(today + horizon).toString());
+    return errors.isEmpty();
+  }
+
+  private static void read(JsonObject content, List<LoanPolicy> policies, Map<String, Closed> closed,
+      JsonArray errors) {
+    JsonArray entries = content.getJsonArray("policies", new JsonArray());
+    for (int i = 0; i < entries.size(); i++) {
+      LoanPolicy policy;
+      try {
+        policy = Json.decodeValue(entries.getJsonObject(i).encode(), LoanPolicy.class);
+      } catch (DecodeException | ClassCastException e) {
+        errors.add(error("policy " + i + ": " + e.getMessage()));
+        continue;
+      }
+      String name = policy.getName() != null ? policy.getName() : "policy " + i;
+      if (policy.getLoanDays() == null || policy.getLoanDays() < 0) {
+        errors.add(error(name + ": loanDays must be set and not negative"));
+      }
+      for (Integer value : Arrays.asList(policy.getRenewalDays(), policy.getMaxRenewals(), policy.getFinePerDay(),
+          policy.getMaxFine())) {
+        if (value != null && value < 0) {
+          errors.add(error(name + ": renewalDays, maxRenewals, finePerDay and maxFine must not be negative"));
+          break;
+        }
+      }
+      policies.add(policy);
+    }
+    JsonObject calendars = content.getJsonObject("calendars", new JsonObject());
+    for (String name : calendars.fieldNames()) {
+      try {
+        JsonObject calendar = calendars.getJsonObject(name);
+        Set<DayOfWeek> weekdays = EnumSet.noneOf(DayOfWeek.class);
+        for (Object weekday : calendar.getJsonArray("closedWeekdays", new JsonArray())) {
+          weekdays.add(DayOfWeek.valueOf(weekday.toString().toUpperCase()));
+        }
+        if (weekdays.size() == DayOfWeek.values().length) {
+          errors.add(error("calendar " + name + ": closed on every day of the week"));
+          continue;
+        }
+        Set<Long> days = new HashSet<>();
+        for (Object day : calendar.getJsonArray("closedDays", new JsonArray())) {
+          days.add(LocalDate.parse(day.toString()).toEpochDay());
+        }
+        closed.put(name, new Closed(weekdays, days));
+      } catch (ClassCastException | IllegalArgumentException | DateTimeException e) {
+        errors.add(error("calendar " + name + ": " + e.getMessage()));
+      }
+    }
+  }
+
+  private static JsonObject error(String message) {
+    return new JsonObject().put("file", FILE).put("message", message);
+  }
+
+  private static boolean matches(String wanted, String actual) {
+    return wanted == null || wanted.isEmpty() || wanted.equals(actual);
+  }
+
+  private static int specificity(LoanPolicy policy) {
+    int set = 0;
+    for (String attribute : Arrays.asList(policy.getPatronType(), policy.getItemType(), policy.getLibrary())) {
+      set += attribute == null || attribute.isEmpty() ? 0 : 1;
+    }
+    return set;
+  }
+
+  // the days a library is closed, as read from the file
+  private static class Closed {
+
+    final Set<DayOfWeek> weekdays;
+    final Set<Long> days;
+
+    Closed(Set<DayOfWeek> weekdays, Set<Long> days) {
+      this.weekdays = weekdays;
+      this.days = days;
+    }
+
+  }
+
+  // The policies and calendar tables in use, with the terms resolved so far
+  private class Loaded {
+
+    final List<LoanPolicy> policies;
+    final Map<String, Closed> closed;
+    final long builtDay;
+    final Map<String, LibraryCalendar> calendars = new HashMap<>();
+    final LibraryCalendar open;
+    final Map<List<String>, LoanTerms> terms = new ConcurrentHashMap<>();
+
+    Loaded(List<LoanPolicy> policies, Map<String, Closed> closed, long today) {
+      this.policies = Collections.unmodifiableList(policies);
+      this.closed = closed;
+      this.builtDay = today;
+      closed.forEach((name, days) -> calendars.put(name, new LibraryCalendar(days.weekdays, days.days, today,
+          horizon)));
+      open = LibraryCalendar.open(today, horizon);
+    }
+
+    LoanTerms resolve(String patronType, String itemType, String library) {
+      LoanPolicy best = DEFAULT;
+      int bestSpecificity = -1;
+      for (LoanPolicy policy : policies) {
+        if (matches(policy.getPatronType(), patronType) && matches(policy.getItemType(), itemType)
+            && matches(policy.getLibrary(), library) && specificity(policy) > bestSpecificity) {
+          best = policy;
+          bestSpecificity = specificity(policy);
+        }
+      }
+      LibraryCalendar calendar = library != null ? calendars.get(library) : null;
+      if (calendar == null) {
+        calendar = calendars.getOrDefault(ANY_LIBRARY, open);
+      }
+      return new LoanTerms(best, calendar, zone);
+    }
+
+  }
+
+}
@@ -0,0 +1,105 @@
+package hbz;
+
+/**
+ * One loan policy of policies.json, see {@link LoanPolicies}. patronType,
+ * itemType and library say which loans it is for; those not set match any.
+ * Periods are in days, fines in the smallest unit of the currency.
+ */
+public class LoanPolicy {
+
+  private String name;
+  private String patronType;
+  private String itemType;
+  private String library;
+  private Integer loanDays;
+  // the loan period if not set
+  private Integer renewalDays;
+  // unlimited if not set
+  private Integer maxRenewals;
+  // per day the library is open while the item is overdue
+  private Integer finePerDay;
+  // no limit if not set
+  private Integer maxFine;
+
+  public LoanPolicy() {
+    // Empty constructor needed for de-/encoding of JSON objects
+  }
+
+  public LoanPolicy(String name, int loanDays) {
+    this.name = name;
+    this.loanDays = loanDays;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public String getPatronType() {
+    return patronType;
+  }
+
+  public void setPatronType(String patronType) {
+    this.patronType = patronType;
+  }
+
+  public String getItemType() {
+    return itemType;
+  }
+
+  public void setItemType(String itemType) {
+    this.itemType = itemType;
+  }
+
+  public String getLibrary() {
+    return library;
+  }
+
+  public void setLibrary(String library) {
+    this.library = library;
+  }
+
+  public Integer getLoanDays() {
+    return loanDays;
+  }
+
+  public void setLoanDays(Integer loanDays) {
+    this.loanDays = loanDays;
+  }
+
+  public Integer getRenewalDays() {
+    return renewalDays;
+  }
+
+  public void setRenewalDays(Integer renewalDays) {
+    this.renewalDays = renewalDays;
+  }
+
+  public Integer getMaxRenewals() {
+    return maxRenewals;
+  }
+
+  public void setMaxRenewals(Integer maxRenewals) {
+    this.maxRenewals = maxRenewals;
+  }
+
+  public Integer getFinePerDay() {
+    return finePerDay;
+  }
+
+  public void setFinePerDay(Integer finePerDay) {
+    this.finePerDay = finePerDay;
+  }
+
+  public Integer getMaxFine() {
+    return maxFine;
+  }
+
+  public void setMaxFine(Integer maxFine) {
+    this.maxFine = maxFine;
+  }
+
+}
@@ -0,0 +1,64 @@
+package hbz;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * What one {@link LoanPolicy} means for loans at one library: due dates that
+ * fall on open days of its {@link LibraryCalendar}, the renewal limit and
+ * fines. Due dates are in seconds since the epoch, as the data API keeps
+ * them. Immutable.
+ */
+public class LoanTerms {
+
+  private final LoanPolicy policy;
+  private final LibraryCalendar calendar;
+  private final ZoneId zone;
+
+  LoanTerms(LoanPolicy policy, LibraryCalendar calendar, ZoneId zone) {
+    this.policy = policy;
+    this.calendar = calendar;
+    this.zone = zone;
+  }
+
+  public LoanPolicy getPolicy() {
+    return policy;
+  }
+
+  // The loan period on from the day of the loan, moved on to the next open
+  // day, at the time of day of the loan
+  public long dueDate(long loanMillis) {
+    return due(loanMillis, policy.getLoanDays());
+  }
+
+  public long renewalDueDate(long renewedMillis) {
+    return due(renewedMillis, policy.getRenewalDays() != null ? policy.getRenewalDays() : policy.getLoanDays());
+  }
+
+  // whether a loan renewed renewCount times may be renewed once more
+  public boolean mayRenew(Integer renewCount) {
+    return policy.getMaxRenewals() == null || (renewCount == null ? 0 : renewCount) < policy.getMaxRenewals();
+  }
+
+  // finePerDay for every open day after the due day up to the day of the
+  // return, at most maxFine; nothing if returned before the due date
+  public int fine(Double dueDate, long returnedMillis) {
+    Integer finePerDay = policy.getFinePerDay();
+    if (dueDate == null || finePerDay == null || finePerDay == 0 || returnedMillis / 1000 <= dueDate) {
+      return 0;
+    }
+    long dueDay = Instant.ofEpochSecond(dueDate.longValue()).atZone(zone).toLocalDate().toEpochDay();
+    long returnDay = Instant.ofEpochMilli(returnedMillis).atZone(zone).toLocalDate().toEpochDay();
+    long fine = calendar.openDays(dueDay, returnDay) * finePerDay;
+    return (int) Math.min(fine, policy.getMaxFine() != null ? policy.getMaxFine() : Integer.MAX_VALUE);
+  }
+
+  private long due(long millis, int days) {
+    ZonedDateTime from = Instant.ofEpochMilli(millis).atZone(zone);
+    long dueDay = calendar.nextOpen(from.toLocalDate().toEpochDay() + days);
+    return ZonedDateTime.of(LocalDate.ofEpochDay(dueDay), from.toLocalTime(), zone).toEpochSecond();
+  }
+
+}
@@ -0,0 +1,147 @@
+package hbz;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Bounded in-memory cache with least-recently-used eviction and a time to
+ * live per entry. Safe to share between threads. A cache with a size of 0
+ * keeps nothing, one without a time to live keeps entries until they are
+ * evicted.
+ *
+ * Keys invalidated or updated after a write are reported to the listener set
+ * with {@link #onChange}, so that copies of the cache elsewhere, e.g. on the
+ * other nodes of a cluster, can drop them too.
+ */
+public class LruCache<V> {
+
+  private final int maxSize;
+  private final long ttlMillis;
+  private final LinkedHashMap<String, Entry<V>> entries;
+  private volatile Consumer<String> changes = key -> {
+  };
+
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long expirations;
+  private long invalidations;
+
+  public LruCache(int maxSize) {
+    this(maxSize, Long.MAX_VALUE);
+  }
+
+  public LruCache(int maxSize, long ttlMillis) {
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+    entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+        if (size() > LruCache.this.maxSize) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  public synchronized V get(String key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    if (entry.expires < System.currentTimeMillis()) {
+      entries.remove(key);
+      expirations++;
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.value;
+  }
+
+  public synchronized void put(String key, V value) {
+    if (maxSize > 0) {
+      long expires = ttlMillis == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + ttlMillis;
+      entries.put(key, new Entry<>(value, expires));
+    }
+  }
+
+  // The value written for key, which copies elsewhere no longer have
+  public void update(String key, V value) {
+    put(key, value);
+    changes.accept(key);
+  }
+
+  public void invalidate(String key) {
+    discard(key);
+    changes.accept(key);
+  }
+
+  // Drops key without reporting it, for changes reported from elsewhere
+  public synchronized void discard(String key) {
+    if (entries.remove(key) != null) {
+      invalidations++;
+    }
+  }
+
+  public void onChange(Consumer<String> listener) {
+    changes = listener;
+  }
+
+  public synchronized void invalidateAll() {
+    invalidations += entries.size();
+    entries.clear();
+  }
+
+  // Drops expired entries; lookups do this lazily, this keeps idle entries from piling up
+  public synchronized void purgeExpired() {
+    long now = System.currentTimeMillis();
+    Iterator<Entry<V>> values = entries.values().iterator();
+    while (values.hasNext()) {
+      if (values.next().expires < now) {
+        values.remove();
+        expirations++;
+      }
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized JsonObject metrics() {
+    long lookups = hits + misses;
+    return new JsonObject()
+        .put("size", entries.size())
+        .put("maxSize", maxSize)
+        .put("ttlMillis", ttlMillis)
+        .put("hits", hits)
+        .put("misses", misses)
+        .put("hitRatio", lookups == 0 ? 0.0 : (double) hits / lookups)
+        .put("evictions", evictions)
+        .put("expirations", expirations)
+        .put("invalidations", invalidations);
+  }
+
+  private static class Entry<V> {
+
+    private final V value;
+    private final long expires;
+
+    Entry(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+}
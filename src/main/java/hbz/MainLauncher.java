@@ -1,12 +1,54 @@
 package hbz;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Scanner;
+
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Launcher;
+import io.vertx.core.json.JsonObject;
 
+/**
+ * Deploys the MainVerticle once per core, or as often as "instances" in the
+ * configuration says. Without -conf, conf/application.conf from the class path
+ * is used. The resolved number of instances is put into the configuration so
+ * the instances can split per-process limits between them.
+ */
 public class MainLauncher extends Launcher {
 
+  private static final String DEFAULT_CONF = "conf/application.conf";
+
   public static void main(String[] args) {
     MainLauncher mainLauncher = new MainLauncher();
     mainLauncher.dispatch(args);
   }
 
-}
\ No newline at end of file
+  @Override
+  public void beforeDeployingVerticle(DeploymentOptions deploymentOptions) {
+    JsonObject config = deploymentOptions.getConfig();
+    if (config == null || config.isEmpty()) {
+      config = defaultConfig();
+      deploymentOptions.setConfig(config);
+    }
+    // -instances on the command line wins over the configuration
+    if (deploymentOptions.getInstances() == DeploymentOptions.DEFAULT_INSTANCES) {
+      int instances = config.getInteger("instances", 0);
+      deploymentOptions.setInstances(instances > 0 ? instances : Runtime.getRuntime().availableProcessors());
+    }
+    config.put("instances", deploymentOptions.getInstances());
+  }
+
+  private static JsonObject defaultConfig() {
+    try (InputStream in = MainLauncher.class.getClassLoader().getResourceAsStream(DEFAULT_CONF)) {
+      if (in == null) {
+        return new JsonObject();
+      }
+      try (Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A")) {
+        return new JsonObject(scanner.hasNext() ? scanner.next() : "{}");
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read " + DEFAULT_CONF, e);
+    }
+  }
+
+}
@@ -1,21 +1,44 @@
 package hbz;
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
-import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerResponse;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import org.folio.rest.jaxrs.model.CircDesk;
 import org.folio.rest.jaxrs.model.Item;
@@ -25,200 +48,315 @@ import org.folio.rest.jaxrs.model.Library;
 import org.folio.rest.jaxrs.model.Loan;
 import org.folio.rest.jaxrs.model.LocationCode;
 import org.folio.rest.jaxrs.model.Patron;
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.kie.api.KieServices;
-import org.kie.api.builder.KieFileSystem;
-import org.kie.api.runtime.KieContainer;
-import org.kie.api.runtime.KieSession;
 
 
 import io.vertx.ext.web.templ.ThymeleafTemplateEngine;
 
 public class MainVerticle extends AbstractVerticle {
 
-  private String dataApiServer;
-  private int dataApiPort;
+  private static final String ENDPOINT = "endpoint";
+  private static final String TENANT = "tenant";
+  private static final String TENANT_HEADER = "X-Okapi-Tenant";
+
   private String patronApi;
   private String itemApi;
-  private String tenant;
-
-  private Delivery delivery;
-  private String patronId;
-  private Patron patron;
-  private String itemId;
-  private Item item;
-  private String loanId;
-  private Loan loan;
-  private String authorization = "aaaaa";
-
-  KieServices kieServices = KieServices.Factory.get();
-  KieContainer kContainer = kieServices.getKieClasspathContainer();
+  private Tenants tenants;
+  private int batchFanOut;
+  private int batchChunk;
+  private int batchChunksParallel;
+  private long batchChunkTimeout;
+  private int returnLookupChunk;
+  private int listingMax;
+  private long cachePurgeTimer;
+  private long eventLoopTimer;
+  private Metrics metrics;
+  private Admission admission;
 
   private final Logger logger = LoggerFactory.getLogger("hbz-deliver-module");
-  private final ThymeleafTemplateEngine engine = ThymeleafTemplateEngine.create();
+  private Views views;
 
   private void initConfiguration() {
-    dataApiServer = config().getString("data.api.server", "localhost");
-    dataApiPort = config().getInteger("data.api.port", 9130);
-    patronApi = config().getString("data.api.patrons", "/patrons/");
-    itemApi = config().getString("data.api.items", "/items/");
-    tenant = config().getString("data.api.tenant", "hbz");
+    patronApi = config().getString("data.api.patrons", DataApiClient.PATRON_API);
+    itemApi = config().getString("data.api.items", DataApiClient.ITEM_API);
+    metrics = Metrics.shared(vertx)
+        .describe("deliver_http_request_seconds", "Time to answer requests to the deliver module, by endpoint")
+        .describe("deliver_http_requests_in_flight", "Requests to the deliver module not answered yet")
+        .describe("deliver_event_loop_delay_seconds", "How late the event loop ran a timer; the sum is time blocked");
+    // every instance has its own HTTP clients, bound to its event loop; the
+    // caches, the rules and the template engine are shared by all instances
+    tenants = new Tenants(vertx, config(), metrics);
+    admission = new Admission(vertx, config(), metrics);
+    views = Shared.acquire(vertx, "views", () -> new Views(ThymeleafTemplateEngine.create()));
+    batchFanOut = config().getInteger("batch.fanout", 8);
+    batchChunk = Math.max(1, config().getInteger("batch.chunk.size", 25));
+    batchChunksParallel = config().getInteger("batch.chunk.parallel", 4);
+    batchChunkTimeout = config().getLong("batch.chunk.timeout", 60000L);
+    returnLookupChunk = config().getInteger("batch.return.lookup", 50);
+    listingMax = config().getInteger("loans.listing.max", 1000);
   }
 
   @Override
   public void start(Future<Void> fut) {
     initConfiguration();
     Router router = Router.router(vertx);
-    final int port = Integer.parseInt(System.getProperty("port", "8080"));
+    final int port = config().getInteger("http.port", Integer.parseInt(System.getProperty("port", "8080")));
+    router.route().handler(this::trace);
     router.route("/deliver*").handler(BodyHandler.create());
-    router.get("/deliver/loan").handler(this::showLoanScreen);
-    router.post("/deliver/loan").handler(this::loan);
-    router.post("/deliver/return").handler(this::returnItem);
-    router.post("/deliver/renew").handler(this::renew);
-    router.get("/deliver/loans/:patronId").handler(this::getLoansForPatron);
-    router.get("/deliver/listLoans").handler(this::showLoanListScreen);
+    router.route("/deliver*").handler(this::resolveTenant);
+    router.get("/deliver/loan").handler(endpoint(this::showLoanScreen));
+    router.post("/deliver/loan").handler(endpoint(this::loan));
+    router.post("/deliver/loans/batch").handler(endpoint(this::loanBatch));
+    router.post("/deliver/return").handler(endpoint(this::returnItem));
+    router.post("/deliver/returns/batch").handler(endpoint(this::returnBatch));
+    router.post("/deliver/renew").handler(endpoint(this::renew));
+    router.get("/deliver/loans/:patronId").handler(endpoint(this::getLoansForPatron));
+    router.get("/deliver/loans/:patronId/enriched").handler(endpoint(this::listLoans));
+    router.get("/deliver/listLoans").handler(endpoint(this::showLoanListScreen));
 
     // routes for sample data
-    router.get("/deliver/sampleData").handler(this::showSampleDataScreen);
-    router.post("/deliver/createPatron").handler(this::createPatron);
-    router.post("/deliver/createItem").handler(this::createItem);
-    router.delete("/deliver/deletePatron").handler(this::deletePatron);
-    router.delete("/deliver/deleteItem").handler(this::deleteItem);
+    router.get("/deliver/sampleData").handler(endpoint(this::showSampleDataScreen));
+    router.get("/deliver/sampleData/patrons").handler(endpoint(this::listPatrons));
+    router.get("/deliver/sampleData/items").handler(endpoint(this::listItems));
+    router.post("/deliver/createPatron").handler(endpoint(this::createPatron));
+    router.post("/deliver/createItem").handler(endpoint(this::createItem));
+    router.delete("/deliver/deletePatron").handler(endpoint(this::deletePatron));
+    router.delete("/deliver/deleteItem").handler(endpoint(this::deleteItem));
 
     // routes for rule management
-    router.post("/deliver/createRule").handler(this::createRule);
-    router.get("/deliver/rules").handler(this::showRuleScreen);
+    router.post("/deliver/createRule").handler(endpoint(this::createRule));
+    router.get("/deliver/rules").handler(endpoint(this::showRuleScreen));
+    router.get("/deliver/rules/status").handler(monitor(this::showRuleStatus));
+    router.get("/deliver/policies").handler(monitor(this::showPolicies));
 
-    vertx.createHttpServer().requestHandler(router::accept).listen(port, result -> {
-      if (result.succeeded()) {
-        fut.complete();
-      } else {
-        fut.fail(result.cause());
+    router.get("/deliver/metrics").handler(monitor(this::scrapeMetrics));
+    router.get("/deliver/metrics/dataApi").handler(monitor(this::showDataApiMetrics));
+    router.get("/deliver/metrics/rules").handler(monitor(this::showRuleMetrics));
+    router.get("/deliver/metrics/cache").handler(monitor(this::showCacheMetrics));
+    router.get("/deliver/metrics/tenants").handler(monitor(this::showTenantMetrics));
+    router.get("/deliver/metrics/admission").handler(monitor(this::showAdmissionMetrics));
+    router.get("/deliver/offline").handler(monitor(this::showOfflineStatus));
+    router.get("/deliver/overdue").handler(monitor(this::showOverdueStatus));
+    router.get("/deliver/cluster").handler(monitor(this::showCluster));
+    router.get("/deliver/health").handler(monitor(this::showHealth));
+    // every instance on every node takes chunks of batch loans, see loanBatch
+    vertx.eventBus().consumer(Cluster.BATCH_LOANS, this::loanChunk);
+    cachePurgeTimer = vertx.setPeriodic(60000, timer -> tenants.purgeExpired());
+    watchEventLoop(config().getLong("metrics.eventloop.interval", 100L));
+
+    // load the default tenant before taking requests, so broken rules fail the deployment;
+    // other tenants are loaded on their first request
+    tenants.get(tenants.getDefaultTenant()).setHandler(loaded -> {
+      if (loaded.failed()) {
+        fut.fail(loaded.cause());
+        return;
+      }
+      // the screens and listings compress well; gzip is used when the client accepts it
+      HttpServerOptions options = new HttpServerOptions()
+          .setCompressionSupported(config().getBoolean("http.compression", true));
+      vertx.createHttpServer(options).requestHandler(router::accept).listen(port, result -> {
+        if (result.succeeded()) {
+          fut.complete();
+        } else {
+          fut.fail(result.cause());
+        }
+      });
+    });
+  }
+
+  @Override
+  public void stop() {
+    vertx.cancelTimer(cachePurgeTimer);
+    vertx.cancelTimer(eventLoopTimer);
+    tenants.close();
+    Shared.release(vertx, "views");
+  }
+
+  // Times every request and gives it a request id (the caller's, if it sent
+  // one) that is passed on to the data API and returned in the response
+  private void trace(RoutingContext routingContext) {
+    String requestId = routingContext.request().getHeader(DataApiClient.REQUEST_ID);
+    if (requestId == null) {
+      requestId = UUID.randomUUID().toString();
+    }
+    routingContext.put(DataApiClient.REQUEST_ID, requestId);
+    routingContext.response().putHeader(DataApiClient.REQUEST_ID, requestId);
+
+    long started = System.nanoTime();
+    AtomicLong inFlight = metrics.gauge("deliver_http_requests_in_flight", "");
+    inFlight.incrementAndGet();
+    boolean[] done = { false };
+    Handler<Void> finished = end -> {
+      if (done[0]) {
+        return;
+      }
+      done[0] = true;
+      inFlight.decrementAndGet();
+      admission.release(routingContext);
+      Tenant tenant = routingContext.get(TENANT);
+      if (tenant != null) {
+        tenant.end();
+      }
+      String endpoint = routingContext.get(ENDPOINT);
+      String labels = Metrics.labels("endpoint", endpoint == null ? "other" : endpoint,
+          "method", routingContext.request().method().name(),
+          "status", String.valueOf(routingContext.response().getStatusCode()));
+      metrics.histogram("deliver_http_request_seconds", labels).recordNanos(System.nanoTime() - started);
+    };
+    routingContext.addBodyEndHandler(finished);
+    routingContext.response().closeHandler(finished);
+    routingContext.next();
+  }
+
+  // A timer on this verticle's event loop; how late it fires is how long the
+  // loop was busy or blocked. The histogram is scraped from the start, before
+  // the first tick.
+  private void watchEventLoop(long interval) {
+    Metrics.Histogram delay = metrics.histogram("deliver_event_loop_delay_seconds", "");
+    long[] expected = { System.nanoTime() + interval * 1000000 };
+    eventLoopTimer = vertx.setPeriodic(interval, timer -> {
+      long now = System.nanoTime();
+      delay.recordNanos(Math.max(0, now - expected[0]));
+      expected[0] = now + interval * 1000000;
+    });
+  }
+
+  // Finds the tenant of the request, loading it on its first request; it is
+  // not unloaded before the response is sent, see trace
+  private void resolveTenant(RoutingContext routingContext) {
+    tenants.get(routingContext.request().getHeader(TENANT_HEADER)).setHandler(loaded -> {
+      if (loaded.failed()) {
+        int statusCode = statusCodeOf(loaded.cause());
+        routingContext.response().setStatusCode(statusCode == 500 ? 503 : statusCode)
+            .putHeader(HttpHeaders.CONTENT_TYPE, "text/plain").end(loaded.cause().getMessage());
+        return;
+      }
+      if (routingContext.response().closed()) {
+        return;
       }
+      loaded.result().begin();
+      routingContext.put(TENANT, loaded.result());
+      routingContext.next();
     });
   }
 
+  private static Tenant tenant(RoutingContext routingContext) {
+    return routingContext.get(TENANT);
+  }
+
+  // Notes the path of the route that answers, e.g. /deliver/loans/:patronId,
+  // as endpoint label of the request metrics, and handles the request once
+  // admission lets it in
+  private Handler<RoutingContext> endpoint(Handler<RoutingContext> handler) {
+    return routingContext -> {
+      String endpoint = routingContext.currentRoute().getPath();
+      routingContext.put(ENDPOINT, endpoint);
+      admission.admit(routingContext, endpoint, tenant(routingContext), admitted -> handler.handle(routingContext));
+    };
+  }
+
+  // Like endpoint, but always handled at once: metrics and status must still
+  // answer when the module is overloaded
+  private static Handler<RoutingContext> monitor(Handler<RoutingContext> handler) {
+    return routingContext -> {
+      routingContext.put(ENDPOINT, routingContext.currentRoute().getPath());
+      handler.handle(routingContext);
+    };
+  }
+
+  private static String requestId(RoutingContext routingContext) {
+    return routingContext.get(DataApiClient.REQUEST_ID);
+  }
+
+  // the data API steps, tagged with the request id of the incoming request
+  private DataApi dataApi(RoutingContext routingContext) {
+    return tenant(routingContext).getDataApi().forRequest(requestId(routingContext));
+  }
+
+  private static CirculationContext circulation(RoutingContext routingContext) {
+    return new CirculationContext(routingContext, tenant(routingContext), requestId(routingContext));
+  }
+
   private void showLoanScreen(RoutingContext routingContext) {
-    engine.render(routingContext, "templates/loan.html", response -> routingContext.response().setStatusCode(200)
-        .putHeader(HttpHeaders.CONTENT_TYPE, "text/html").end(response.result()));
+    views.serve(routingContext, "templates/loan.html", tenant(routingContext).getId());
   }
 
   private void loan(RoutingContext routingContext) {
-    delivery = Json.decodeValue(routingContext.getBodyAsString(), Delivery.class);
-    patronId = delivery.getPatron();
-    itemId = delivery.getItem();
-    retrievePatron(routingContext);
-  }
-
-  private void retrievePatron(RoutingContext routingContext) {
-    HttpClient httpClient = vertx.createHttpClient();
-    httpClient.get(dataApiPort, dataApiServer, patronApi + patronId, response -> {
-      if (response.statusCode() == 200) {
-        response.bodyHandler(buffer -> {
-          patron = Json.decodeValue(buffer.toString(), Patron.class);
-          logger.info("Found patron with id " + patronId);
-          retrieveItem(routingContext);
-        });
-      } else {
-        routingContext.response().setStatusCode(404).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-            .end("Could not find patron with id " + patronId);
-      }
-    }).putHeader("content-type", "application/json").putHeader("accept", "application/json")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
-  }
-
-  private void retrieveItem(RoutingContext routingContext) {
-    HttpClient httpClient = vertx.createHttpClient();
-    httpClient.get(dataApiPort, dataApiServer, itemApi + itemId, response -> {
-      if (response.statusCode() == 200) {
-        response.bodyHandler(buffer -> {
-          item = Json.decodeValue(buffer.toString(), Item.class);
-          logger.info("Found item: " + item.getId());
-          processLoan(routingContext);
-        });
+    Delivery delivery = Json.decodeValue(routingContext.getBodyAsString(), Delivery.class);
+    CirculationContext context = circulation(routingContext);
+    context.setPatronId(delivery.getPatron());
+    context.setItemId(delivery.getItem());
+
+    // patron and item do not depend on each other, so fetch them side by side
+    DataApi api = dataApi(routingContext);
+    Future<Patron> patron = api.getPatron(context.getPatronId());
+    Future<Item> item = api.getItem(context.getItemId());
+    OfflineCirculation offline = tenant(routingContext).getOffline();
+    Futures.join(patron, item).setHandler(fetched -> {
+      if (fetched.succeeded()) {
+        context.setPatron(patron.result());
+        context.setItem(item.result());
+        respond(context, processLoan(context));
+      } else if (offline != null && fetched.cause() instanceof DataApiUnavailableException) {
+        // the rules are local, so the desk can go on lending from the snapshot
+        respond(context, 202, offline.loan(context.getPatronId(), context.getItemId(),
+            tenant(routingContext).getRuleEngine(), requestId(routingContext)));
       } else {
-        routingContext.response().setStatusCode(404).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-            .end("Could not find item with id " + itemId);
+        respond(context, Future.failedFuture(fetched.cause()));
       }
-    }).putHeader("content-type", "application/json").putHeader("accept", "application/json")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
+    });
   }
 
-  private void processLoan(RoutingContext routingContext) {
+  private Future<String> processLoan(CirculationContext context) {
     logger.info("Processing loan...");
     logger.info("Checking rules...");
-    LoanPermission loanPermission = new LoanPermission();
-    KieSession kSession = kContainer.newKieSession("ksession-rules");
-    kSession.insert(patron);
-    kSession.insert(item);
-    kSession.insert(loanPermission);
-    kSession.fireAllRules();
-    if (loanPermission.isPermitted() == true) {
-      createLoanForPatron(routingContext);
-    } else {
-      routingContext.response().setStatusCode(400)
-          .end("Cannot loan! Either item is loaned or patron is not allowed.");
-    }
-    kSession.destroy();
-  }
-
-  private void createLoanForPatron(RoutingContext routingContext) {
-    HttpClient httpClient = vertx.createHttpClient();
-    loan = createLoanObject();
-    String loanAsJson = Json.encode(loan);
-    httpClient.post(dataApiPort, dataApiServer, patronApi + patronId + "/loans/", response -> {
-      if (response.statusCode() == 201) {
-        response.bodyHandler(buffer -> {
-          loan = Json.decodeValue(buffer.toString(), Loan.class);
-          logger.info("Created loan with id " + loan.getId() + " for patron " + patronId);
-        });
-        itemId = item.getId();
-        updateItemStatus("02", "ITEM_STATUS_ON_LOAN", routingContext);
+    RuleEngine ruleEngine = context.getTenant().getRuleEngine();
+    return Futures.then(ruleEngine.evaluate(context.getPatron(), context.getItem()), loanPermission -> {
+      if (loanPermission.isPermitted() == true) {
+        return createLoanForPatron(context);
       } else {
-        routingContext.response().setStatusCode(500).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-            .end("Could not create loan");
+        return Future.failedFuture(
+            new CirculationException(400, "Cannot loan! Either item is loaned or patron is not allowed."));
       }
-    }).putHeader("content-type", "application/json").putHeader("accept", "text/plain")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end(loanAsJson);
+    });
+  }
+
+  private Future<String> createLoanForPatron(CirculationContext context) {
+    LoanTerms terms = context.getTenant().getPolicies().termsFor(context.getPatron(), context.getItem());
+    context.setLoan(createLoanObject(context.getPatronId(), context.getItem(), terms, System.currentTimeMillis()));
+    Future<Loan> created = context.dataApi().postLoan(context.getPatronId(), context.getLoan());
+    return Futures.then(created, loan -> {
+      context.setLoan(loan);
+      context.setItemId(context.getItem().getId());
+      return updateItemStatus("02", "ITEM_STATUS_ON_LOAN", context);
+    });
   }
 
-  private void updateItemStatus(String statusValue, String statusDescription, RoutingContext routingContext) {
-    HttpClient httpClient = vertx.createHttpClient();
+  private Future<String> updateItemStatus(String statusValue, String statusDescription,
+      CirculationContext context) {
     ItemStatus status = new ItemStatus();
     status.setValue(statusValue);
     status.setDesc(statusDescription);
-    item.setItemStatus(status);
-    String itemAsJson = Json.encode(item);
-    httpClient.put(dataApiPort, dataApiServer, itemApi + itemId, response -> {
-      if (response.statusCode() == 204) {
-        logger.info("Updated item status for item " + itemId);
-        routingContext.response().setStatusCode(200)
-            .end("Updated item status for item " + itemId + " to " + statusDescription);
-      } else {
-        routingContext.response().setStatusCode(500).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-            .end("Could not update item status");
-      }
-    }).putHeader("content-type", "application/json").putHeader("accept", "text/plain")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end(itemAsJson);
-
+    context.getItem().setItemStatus(status);
+    return Futures.map(context.dataApi().putItem(context.getItem()),
+        updated -> "Updated item status for item " + context.getItemId() + " to " + statusDescription);
   }
 
-  // This is just a dummy implementation to create a loan quickly
-  private Loan createLoanObject() {
+  // A loan made at loanDate, in milliseconds, due as the terms say; item
+  // policy, desk and location are still placeholders
+  static Loan createLoanObject(String patronId, Item item, LoanTerms terms, long loanDate) {
     Loan newLoan = new Loan();
     newLoan.setPatronId(patronId);
     newLoan.setItemBarcode(item.getBarcode());
     newLoan.setItemId(item.getId());
-    newLoan.setDueDate((double) (System.currentTimeMillis() / 1000 + 1209600));
+    newLoan.setDueDate((double) terms.dueDate(loanDate));
     newLoan.setItemPolicy(new ItemPolicy());
     newLoan.setCircDesk(new CircDesk());
     newLoan.setLoanStatus("loanStatus");
     newLoan.setTitle("title");
     newLoan.setLocationCode(new LocationCode());
-    newLoan.setLoanFine(123);
-    newLoan.setRenewable(true);
-    newLoan.setLoanDate((double) System.currentTimeMillis());
+    newLoan.setLoanFine(0);
+    newLoan.setRenewable(terms.mayRenew(0));
+    newLoan.setLoanDate((double) loanDate);
     newLoan.setLibrary(new Library());
     newLoan.setRenewCount(0);
     return newLoan;
@@ -226,140 +364,503 @@ public class MainVerticle extends AbstractVerticle {
 
   private void returnItem(RoutingContext routingContext) {
     final ReturnRenewal itemReturn = Json.decodeValue(routingContext.getBodyAsString(), ReturnRenewal.class);
-    patronId = itemReturn.getPatron();
-    loanId = itemReturn.getLoan();
-    HttpClient httpClient = vertx.createHttpClient();
-    httpClient.get(dataApiPort, dataApiServer, patronApi + patronId + "/loans/" + loanId, response -> {
-      if (response.statusCode() == 200) {
-        response.bodyHandler(buffer -> {
-          loan = Json.decodeValue(buffer.toString(), Loan.class);
-          logger.info("Found loan " + loanId + " for patron " + patronId);
-          itemId = loan.getItemId();
-          deleteLoanForPatron(routingContext);
-        });
-      } else {
-        routingContext.response().setStatusCode(404).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-            .end("Did not find loan " + loanId + " for patron " + patronId);
-      }
-    }).putHeader("content-type", "application/json").putHeader("accept", "application/json")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
+    CirculationContext context = circulation(routingContext);
+    context.setPatronId(itemReturn.getPatron());
+    context.setLoanId(itemReturn.getLoan());
+    Future<Loan> found = dataApi(routingContext).getLoan(context.getPatronId(), context.getLoanId());
+    respond(context, Futures.then(found, loan -> {
+      context.setLoan(loan);
+      context.setItemId(loan.getItemId());
+      return deleteLoanForPatron(context);
+    }));
   }
 
-  private void deleteLoanForPatron(RoutingContext routingContext) {
-    logger.info("Deleting loan " + loanId + " for patron " + patronId);
-    HttpClient httpClient = vertx.createHttpClient();
-    httpClient.delete(dataApiPort, dataApiServer, patronApi + patronId + "/loans/" + loanId, response -> {
-      if (response.statusCode() == 204) {
-        logger.info("Deleted loan " + loanId + " for " + patronId);
-
-        // retrieve item for return, todo: refactor!
-        HttpClient httpClient2 = vertx.createHttpClient();
-        httpClient2.get(dataApiPort, dataApiServer, itemApi + itemId, response2 -> {
-          if (response2.statusCode() == 200) {
-            response2.bodyHandler(buffer -> {
-              item = Json.decodeValue(buffer.toString(), Item.class);
-              logger.info("Found item for return: " + item.getId());
-              updateItemStatus("03", "ITEM_STATUS_AVAILABLE", routingContext);
-            });
-          } else {
-            routingContext.response().setStatusCode(404).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-                .end("Could not find item for return with id " + itemId);
-          }
-        }).putHeader("content-type", "text/plain").putHeader("accept", "application/json")
-            .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
-      } else {
-        routingContext.response().setStatusCode(500).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-            .end("Could not delete loan with id " + loanId);
+  private Future<String> deleteLoanForPatron(CirculationContext context) {
+    // the item is known from the loan, so it is fetched while the loan is deleted
+    DataApi api = context.dataApi();
+    Future<Void> deleted = api.deleteLoan(context.getPatronId(), context.getLoanId());
+    Future<Item> item = api.getItem(context.getItemId());
+    // an overdue loan owes a fine by the policy of the patron's type, so the
+    // patron is needed then; without it the fine is that of any patron type
+    long returned = System.currentTimeMillis();
+    Double dueDate = context.getLoan() == null ? null : context.getLoan().getDueDate();
+    Future<Patron> patron = Future.future();
+    if (dueDate == null || returned / 1000 <= dueDate) {
+      patron.complete();
+    } else {
+      api.getPatron(context.getPatronId()).setHandler(found -> patron.complete(found.result()));
+    }
+    return Futures.then(Futures.join(Futures.join(deleted, item), patron), joined -> {
+      context.setItem(item.result());
+      int fine = dueDate == null ? 0 : context.getTenant().getPolicies().termsFor(patron.result(), item.result())
+          .fine(dueDate, returned);
+      return Futures.map(updateItemStatus("03", "ITEM_STATUS_AVAILABLE", context),
+          updated -> fine == 0 ? updated : updated + "; overdue fine " + fine);
+    });
+  }
+
+  // Checks in a cart of items, e.g. from the book drop, by item id or barcode.
+  // Their open loans are looked up a chunk of items per call, then ended with
+  // bounded fan-out; the outcome of every item is streamed as it is known.
+  private void returnBatch(RoutingContext routingContext) {
+    BatchReturn batch = Json.decodeValue(routingContext.getBodyAsString(), BatchReturn.class);
+    DataApi api = dataApi(routingContext);
+    Future<Map<String, Loan>> byItem = openLoans(api, "itemId", batch.getItems(), Loan::getItemId);
+    Future<Map<String, Loan>> byBarcode = openLoans(api, "itemBarcode", batch.getBarcodes(), Loan::getItemBarcode);
+    Futures.join(byItem, byBarcode).setHandler(joined -> {
+      if (joined.failed()) {
+        respond(circulation(routingContext), Future.failedFuture(joined.cause()));
+        return;
       }
-    }).putHeader("content-type", "application/json").putHeader("accept", "text/plain")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
+      HttpServerResponse response = routingContext.response().setChunked(true)
+          .putHeader(HttpHeaders.CONTENT_TYPE, "application/json").write("[");
+      boolean[] first = { true };
+      BiConsumer<JsonObject, AsyncResult<String>> writeResult = (result, outcome) -> {
+        result.put("status", outcome.succeeded() ? 200 : statusCodeOf(outcome.cause()))
+            .put("message", outcome.succeeded() ? outcome.result() : outcome.cause().getMessage());
+        response.write((first[0] ? "" : ",") + result.encode());
+        first[0] = false;
+      };
+
+      // an item listed by id and by barcode is returned once
+      Map<String, CirculationContext> returns = new LinkedHashMap<>();
+      BiConsumer<String, Loan> collect = (key, loan) -> {
+        if (loan == null) {
+          writeResult.accept(new JsonObject().put("item", key),
+              Future.failedFuture(new CirculationException(404, "No open loan for " + key)));
+        } else if (!returns.containsKey(loan.getId())) {
+          CirculationContext context = circulation(routingContext);
+          context.setPatronId(loan.getPatronId());
+          context.setLoanId(loan.getId());
+          context.setLoan(loan);
+          context.setItemId(loan.getItemId());
+          returns.put(loan.getId(), context);
+        }
+      };
+      batch.getItems().forEach(itemId -> collect.accept(itemId, byItem.result().get(itemId)));
+      batch.getBarcodes().forEach(barcode -> collect.accept(barcode, byBarcode.result().get(barcode)));
+      Futures.settleAll(new ArrayList<>(returns.values()), batchFanOut, this::deleteLoanForPatron,
+          (context, outcome) -> writeResult.accept(new JsonObject().put("item", context.getItemId())
+              .put("barcode", context.getLoan().getItemBarcode()), outcome))
+          .setHandler(done -> response.end("]"));
+    });
+  }
 
+  // The open loans with one of the keys in field, by key
+  private Future<Map<String, Loan>> openLoans(DataApi api, String field, List<String> keys,
+      Function<Loan, String> keyOf) {
+    List<List<String>> chunks = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i += returnLookupChunk) {
+      chunks.add(keys.subList(i, Math.min(keys.size(), i + returnLookupChunk)));
+    }
+    return Futures.then(Futures.settleAll(chunks, batchFanOut, chunk -> api.findLoans(field, chunk)), found -> {
+      Map<String, Loan> loans = new HashMap<>();
+      for (AsyncResult<List<Loan>> chunk : found) {
+        if (chunk.failed()) {
+          return Future.failedFuture(chunk.cause());
+        }
+        chunk.result().forEach(loan -> loans.put(keyOf.apply(loan), loan));
+      }
+      return Future.succeededFuture(loans);
+    });
   }
 
+  // Streams the loans to the client as they come in from the data API
   private void getLoansForPatron(RoutingContext routingContext) {
-    patronId = routingContext.request().getParam("patronId");
-    HttpClient httpClient = vertx.createHttpClient();
-    httpClient.get(dataApiPort, dataApiServer, patronApi + patronId + "/loans",
-        response -> response.bodyHandler(buffer -> {
-          try {
-            JSONObject bufferAsJson = new JSONObject(buffer.toString());
-            JSONArray loans = bufferAsJson.getJSONArray("loans");
-            if (loans.length() > 0) {
-              routingContext.response().end(loans.toString());
-            } else {
-              routingContext.response().setStatusCode(404).end("Error: No loans found");
-            }
-          } catch (Exception e) {
-            logger.error(e);
+    if (unavailable(routingContext, "Could not retrieve loans")) {
+      return;
+    }
+    String patronId = routingContext.request().getParam("patronId");
+    HttpServerResponse out = routingContext.response();
+    tenant(routingContext).getClient().get(paged(patronApi + patronId + "/loans", routingContext), response -> {
+      if (response.statusCode() != 200) {
+        out.setStatusCode(response.statusCode() == 404 ? 404 : 502)
+            .end(response.statusCode() == 404 ? "Error: No loans found" : "Could not retrieve loans");
+        return;
+      }
+      JsonArrayStream loans = new JsonArrayStream("loans", loan -> {
+        if (out.isChunked()) {
+          out.write(",");
+        } else {
+          out.setChunked(true).putHeader(HttpHeaders.CONTENT_TYPE, "application/json").write("[");
+        }
+        out.write(loan);
+        if (out.writeQueueFull()) {
+          response.pause();
+          out.drainHandler(drained -> response.resume());
+        }
+      });
+      response.handler(loans);
+      response.exceptionHandler(cause -> {
+        logger.error("Loans of patron " + patronId + " broke off: " + cause.getMessage());
+        out.close();
+      });
+      response.endHandler(end -> {
+        if (loans.count() > 0) {
+          out.end("]");
+        } else {
+          out.setStatusCode(404).end("Error: No loans found");
+        }
+      });
+    }, cause -> dataApiFailure(routingContext, "Could not retrieve loans", cause))
+        .putHeader(DataApiClient.REQUEST_ID, requestId(routingContext)).end();
+  }
+
+  // The loans of a patron with their items and overdue flags, filtered, sorted
+  // and paged as LoanListing describes. The items come through the item cache,
+  // fetched side by side. The ETag is derived from the tag of the patron's
+  // loans, the query and how many of the loans are overdue, so a client that
+  // sends the tag of its last copy gets 304 before any item is fetched. It is
+  // weak: changes to the items alone, e.g. a new title, do not change it.
+  private void listLoans(RoutingContext routingContext) {
+    String patronId = routingContext.request().getParam("patronId");
+    LoanListing listing;
+    try {
+      listing = new LoanListing(routingContext.request().params());
+    } catch (CirculationException e) {
+      respond(circulation(routingContext), Future.failedFuture(e));
+      return;
+    }
+    DataApi api = dataApi(routingContext);
+    String query = String.valueOf(routingContext.request().query());
+    String[] etag = new String[1];
+    Future<String> page = Futures.then(api.getLoanList(patronId, listingMax), loanList -> {
+      List<Loan> loans = loanList.getLoans();
+      long now = System.currentTimeMillis();
+      // loans only become overdue as time passes, so the count tells whether any flag changed
+      long overdue = loans.stream().filter(loan -> LoanListing.isOverdue(loan, now)).count();
+      etag[0] = "W/" + Views.etagOf(Buffer.buffer(loanList.getTag() + "\n" + query + "\n" + overdue));
+      if (etag[0].equals(routingContext.request().getHeader(HttpHeaders.IF_NONE_MATCH))) {
+        return Future.succeededFuture();
+      }
+      List<String> itemIds = loans.stream().map(Loan::getItemId).distinct().collect(Collectors.toList());
+      return Futures.map(Futures.settleAll(itemIds, batchFanOut, api::getItem), items -> {
+        Map<String, Item> found = new HashMap<>();
+        for (int i = 0; i < itemIds.size(); i++) {
+          if (items.get(i).succeeded()) {
+            found.put(itemIds.get(i), items.get(i).result());
           }
-        })).putHeader("content-type", "application/json").putHeader("accept", "application/json")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
+        }
+        return listing.page(loans, found, now).encode();
+      });
+    });
+    page.setHandler(done -> {
+      if (done.failed()) {
+        respond(circulation(routingContext), Future.failedFuture(done.cause()));
+        return;
+      }
+      HttpServerResponse response = routingContext.response().putHeader(HttpHeaders.ETAG, etag[0])
+          .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+      if (done.result() == null) {
+        response.setStatusCode(304).end();
+      } else {
+        response.setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json").end(done.result());
+      }
+    });
   }
 
   private void showLoanListScreen(RoutingContext routingContext) {
-    engine.render(routingContext, "templates/loans.html", response -> routingContext.response().setStatusCode(200)
-        .putHeader(HttpHeaders.CONTENT_TYPE, "text/html").end(response.result()));
+    views.serve(routingContext, "templates/loans.html", tenant(routingContext).getId());
   }
 
   private void renew(RoutingContext routingContext) {
     final ReturnRenewal itemReturn = Json.decodeValue(routingContext.getBodyAsString(), ReturnRenewal.class);
-    patronId = itemReturn.getPatron();
-    loanId = itemReturn.getLoan();
-    retrievePatronForRenewal(routingContext);
-  }
-
-  // This method is recreating code; todo: find some way to reconcile them
-  private void retrievePatronForRenewal(RoutingContext routingContext) {
-    HttpClient httpClient = vertx.createHttpClient();
-    httpClient.get(dataApiPort, dataApiServer, patronApi + patronId, response -> {
-      if (response.statusCode() == 200) {
-        response.bodyHandler(buffer -> {
-          patron = Json.decodeValue(buffer.toString(), Patron.class);
-          logger.info("Found patron with id " + patronId);
-          retrieveLoanForRenewal(routingContext);
-        });
-      } else {
-        routingContext.response().setStatusCode(404).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-            .end("Could not find patron with id " + patronId);
+    CirculationContext context = circulation(routingContext);
+    context.setPatronId(itemReturn.getPatron());
+    context.setLoanId(itemReturn.getLoan());
+
+    DataApi api = dataApi(routingContext);
+    Future<Patron> patron = api.getPatron(context.getPatronId());
+    Future<Loan> loan = api.getLoan(context.getPatronId(), context.getLoanId());
+    respond(context, Futures.then(Futures.join(patron, loan), joined -> {
+      context.setPatron(patron.result());
+      context.setLoan(loan.result());
+      return renewLoan(context);
+    }));
+  }
+
+  // The item is fetched for its type and library; the patron is already there
+  private Future<String> renewLoan(CirculationContext context) {
+    Loan loan = context.getLoan();
+    return Futures.then(context.dataApi().getItem(loan.getItemId()), item -> {
+      LoanTerms terms = context.getTenant().getPolicies().termsFor(context.getPatron(), item);
+      if (!terms.mayRenew(loan.getRenewCount())) {
+        return Future.failedFuture(new CirculationException(400,
+            "Cannot renew! Loan was renewed " + loan.getRenewCount() + " times, the limit of its policy."));
       }
-    }).putHeader("content-type", "application/json").putHeader("accept", "application/json")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
-  }
-
-  // Same concern as above
-  private void retrieveLoanForRenewal(RoutingContext routingContext) {
-    HttpClient httpClient = vertx.createHttpClient();
-    httpClient.get(dataApiPort, dataApiServer, patronApi + patronId + "/loans/" + loanId, response -> {
-      if (response.statusCode() == 200) {
-        response.bodyHandler(buffer -> {
-          loan = Json.decodeValue(buffer.toString(), Loan.class);
-          logger.info("Found loan with id " + loan.getId());
-          renewLoan(routingContext);
-        });
+      int renewCount = (loan.getRenewCount() == null ? 0 : loan.getRenewCount()) + 1;
+      loan.setDueDate((double) terms.renewalDueDate(System.currentTimeMillis()));
+      loan.setRenewCount(renewCount);
+      loan.setRenewable(terms.mayRenew(renewCount));
+      return Futures.map(context.dataApi().putLoan(context.getPatronId(), context.getLoanId(), loan),
+          updated -> "Renewed loan with id " + context.getLoanId());
+    });
+  }
+
+  // Ends a loan, return or renewal with the message of its last step, or with
+  // the status and message of the step that failed
+  private void respond(CirculationContext context, Future<String> outcome) {
+    respond(context, 200, outcome);
+  }
+
+  private void respond(CirculationContext context, int successStatus, Future<String> outcome) {
+    outcome.setHandler(result -> {
+      if (result.succeeded()) {
+        context.response().setStatusCode(successStatus).end(result.result());
       } else {
-        routingContext.response().setStatusCode(404).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-            .end("Could not find loan with id " + loanId);
+        int statusCode = statusCodeOf(result.cause());
+        if (statusCode == 500) {
+          logger.error(result.cause());
+        }
+        context.response().setStatusCode(statusCode).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
+            .end(result.cause().getMessage());
       }
-    }).putHeader("content-type", "application/json").putHeader("accept", "application/json")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
+    });
   }
 
-  private void renewLoan(RoutingContext routingContext) {
-    HttpClient httpClient = vertx.createHttpClient();
-    loan.setDueDate((double) (System.currentTimeMillis() / 1000 + 1209600));
-    String loanAsJson = Json.encode(loan);
-    httpClient.put(dataApiPort, dataApiServer, patronApi + patronId + "/loans/" + loanId, response -> {
-      if (response.statusCode() == 204) {
-        response.bodyHandler(buffer -> {
-          logger.info("Updated loan with id " + loanId + " for patron " + patronId);
-          routingContext.response().setStatusCode(200).end("Renewed loan with id " + loanId);
+  private static int statusCodeOf(Throwable failure) {
+    return failure instanceof CirculationException ? ((CirculationException) failure).getStatusCode() : 500;
+  }
+
+  // Lends the items in chunks of batch.chunk.size, handed out over the event
+  // bus to the verticle instances of all nodes, see loanChunk. The patron is
+  // fetched once here and sent along with every chunk. The response streams
+  // the outcome of every item as soon as its chunk is done.
+  private void loanBatch(RoutingContext routingContext) {
+    BatchDelivery batch = Json.decodeValue(routingContext.getBodyAsString(), BatchDelivery.class);
+    // an unknown patron fails the whole batch at once
+    dataApi(routingContext).getPatron(batch.getPatron()).setHandler(patron -> {
+      if (patron.failed()) {
+        respond(circulation(routingContext), Future.failedFuture(patron.cause()));
+        return;
+      }
+      HttpServerResponse response = routingContext.response().setChunked(true)
+          .putHeader(HttpHeaders.CONTENT_TYPE, "application/json").write("[");
+      boolean[] first = { true };
+      Consumer<JsonObject> write = result -> {
+        response.write((first[0] ? "" : ",") + result.encode());
+        first[0] = false;
+      };
+      List<List<String>> chunks = new ArrayList<>();
+      for (int i = 0; i < batch.getItems().size(); i += batchChunk) {
+        chunks.add(new ArrayList<>(batch.getItems().subList(i, Math.min(batch.getItems().size(), i + batchChunk))));
+      }
+      DeliveryOptions options = new DeliveryOptions().setSendTimeout(batchChunkTimeout);
+      Futures.settleAll(chunks, batchChunksParallel, chunk -> {
+        Future<JsonArray> lent = Future.future();
+        JsonObject request = new JsonObject().put("tenant", tenant(routingContext).getId())
+            .put("patron", batch.getPatron()).put("patronRecord", Codec.PATRON.toJson(patron.result()))
+            .put("items", new JsonArray(chunk))
+            .put("requestId", requestId(routingContext));
+        vertx.eventBus().<JsonArray>send(Cluster.BATCH_LOANS, request, options, reply -> {
+          if (reply.succeeded()) {
+            lent.complete(reply.result().body());
+          } else {
+            lent.fail(reply.cause());
+          }
         });
-      } else {
-        routingContext.response().setStatusCode(500).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-            .end("Could not update loan");
+        return lent;
+      }, (chunk, outcome) -> {
+        if (outcome.succeeded()) {
+          outcome.result().forEach(result -> write.accept((JsonObject) result));
+        } else {
+          chunk.forEach(itemId -> write.accept(new JsonObject().put("item", itemId)
+              .put("status", replyStatusOf(outcome.cause())).put("message", outcome.cause().getMessage())));
+        }
+      }).setHandler(done -> response.end("]"));
+    });
+  }
+
+  // One chunk of a batch loan, from this node or another one: {tenant,
+  // patron, patronRecord, items, requestId}, patronRecord being the patron
+  // loanBatch resolved. Answers with the outcome of every item.
+  private void loanChunk(Message<JsonObject> message) {
+    JsonObject chunk = message.body();
+    tenants.get(chunk.getString("tenant")).setHandler(loaded -> {
+      if (loaded.failed()) {
+        message.fail(statusCodeOf(loaded.cause()), loaded.cause().getMessage());
+        return;
+      }
+      Tenant tenant = loaded.result();
+      Patron patron = Codec.PATRON.decode(chunk.getJsonObject("patronRecord").encode());
+      tenant.begin();
+      List<String> itemIds = new ArrayList<>();
+      chunk.getJsonArray("items").forEach(itemId -> itemIds.add((String) itemId));
+      CirculationContext batchContext = new CirculationContext(null, tenant, chunk.getString("requestId"));
+      lendAll(batchContext, chunk.getString("patron"), patron, itemIds).setHandler(done -> {
+        tenant.end();
+        if (done.succeeded()) {
+          message.reply(done.result());
+        } else {
+          message.fail(statusCodeOf(done.cause()), done.cause().getMessage());
+        }
+      });
+    });
+  }
+
+  // Lends the items to the patron loanBatch resolved; the items are fetched with bounded fan-out
+  private Future<JsonArray> lendAll(CirculationContext batchContext, String patronId, Patron patron,
+      List<String> itemIds) {
+    JsonArray results = new JsonArray();
+    BiConsumer<String, AsyncResult<String>> addResult = (itemId, outcome) -> results.add(new JsonObject()
+        .put("item", itemId)
+        .put("status", outcome.succeeded() ? 200 : statusCodeOf(outcome.cause()))
+        .put("message", outcome.succeeded() ? outcome.result() : outcome.cause().getMessage()));
+    DataApi api = batchContext.dataApi();
+    return Futures.then(Futures.settleAll(itemIds, batchFanOut, api::getItem), items -> {
+      List<CirculationContext> found = new ArrayList<>();
+      for (int i = 0; i < itemIds.size(); i++) {
+        AsyncResult<Item> item = items.get(i);
+        if (item.succeeded()) {
+          CirculationContext context = new CirculationContext(null, batchContext.getTenant(),
+              batchContext.getRequestId());
+          context.setPatronId(patronId);
+          context.setPatron(patron);
+          context.setItemId(itemIds.get(i));
+          context.setItem(item.result());
+          found.add(context);
+        } else {
+          addResult.accept(itemIds.get(i), Future.failedFuture(item.cause()));
+        }
+      }
+
+      List<Item> facts = found.stream().map(CirculationContext::getItem).collect(Collectors.toList());
+      Future<JsonArray> lent = Future.future();
+      batchContext.getTenant().getRuleEngine().evaluateAll(patron, facts).setHandler(evaluated -> {
+        List<CirculationContext> permitted = new ArrayList<>();
+        for (int i = 0; i < found.size(); i++) {
+          if (evaluated.failed()) {
+            addResult.accept(found.get(i).getItemId(), Future.failedFuture(evaluated.cause()));
+          } else if (evaluated.result().get(i).isPermitted()) {
+            permitted.add(found.get(i));
+          } else {
+            addResult.accept(found.get(i).getItemId(), Future.failedFuture(
+                new CirculationException(400, "Cannot loan! Either item is loaned or patron is not allowed.")));
+          }
+        }
+        Futures.settleAll(permitted, batchFanOut, this::createLoanForPatron,
+            (context, outcome) -> addResult.accept(context.getItemId(), outcome))
+            .setHandler(done -> lent.complete(results));
+      });
+      return lent;
+    });
+  }
+
+  // The status of a chunk that was not answered: what the chunk failed
+  // with, or 503 if no node took it in time
+  private static int replyStatusOf(Throwable failure) {
+    if (failure instanceof ReplyException) {
+      ReplyException reply = (ReplyException) failure;
+      switch (reply.failureType()) {
+      case RECIPIENT_FAILURE:
+        return reply.failureCode();
+      case TIMEOUT:
+        return 504;
+      default:
+        return 503;
+      }
+    }
+    return statusCodeOf(failure);
+  }
+
+  // Answers the desk when the data API could not be reached or did not answer in time
+  private void dataApiFailure(RoutingContext routingContext, String message, Throwable cause) {
+    logger.error(message + ": " + cause.getMessage());
+    if (!routingContext.response().ended()) {
+      routingContext.response().setStatusCode(cause instanceof DataApiUnavailableException ? statusCodeOf(cause)
+          : cause instanceof TimeoutException ? 504 : 502)
+          .putHeader(HttpHeaders.CONTENT_TYPE, "text/html").end(message + " (data API unavailable)");
+    }
+  }
+
+  // Passes limit and offset of the request on to the data API, if they are numbers
+  private static String paged(String uri, RoutingContext routingContext) {
+    StringBuilder query = new StringBuilder();
+    for (String name : Arrays.asList("limit", "offset")) {
+      String value = routingContext.request().getParam(name);
+      if (value != null && value.matches("\\d+")) {
+        query.append(query.length() == 0 ? '?' : '&').append(name).append('=').append(value);
       }
-    }).putHeader("content-type", "application/json").putHeader("accept", "text/plain")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end(loanAsJson);
+    }
+    return uri + query;
+  }
+
+  // Answers 503 at once while the circuit breaker of the tenant's data API is open
+  private boolean unavailable(RoutingContext routingContext, String message) {
+    if (tenant(routingContext).getClient().isAvailable()) {
+      return false;
+    }
+    routingContext.response().setStatusCode(503).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
+        .end(message + " (data API unavailable)");
+    return true;
+  }
+
+  private void scrapeMetrics(RoutingContext routingContext) {
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "text/plain; version=0.0.4")
+        .end(metrics.scrape());
+  }
+
+  private void showDataApiMetrics(RoutingContext routingContext) {
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(tenant(routingContext).getClient().metrics().encodePrettily());
+  }
+
+  private void showRuleMetrics(RoutingContext routingContext) {
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(tenant(routingContext).getRuleEngine().metrics().encodePrettily());
+  }
+
+  private void showCacheMetrics(RoutingContext routingContext) {
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(tenant(routingContext).getDataApi().cacheMetrics().encodePrettily());
+  }
+
+  private void showTenantMetrics(RoutingContext routingContext) {
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(tenants.metrics().encodePrettily());
+  }
+
+  // of the verticle instance that answers
+  private void showAdmissionMetrics(RoutingContext routingContext) {
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(admission.metrics().put("tenantLimit", tenant(routingContext).getClient().getLimit().metrics())
+            .encodePrettily());
+  }
+
+  // The nodes of the cluster heard from recently; only this node without -cluster
+  private void showCluster(RoutingContext routingContext) {
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(tenants.getCluster().members().encodePrettily());
+  }
+
+  // For the load balancer in front of the nodes
+  private void showHealth(RoutingContext routingContext) {
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(tenants.getCluster().health().encodePrettily());
+  }
+
+  // Offline loans still to be synced and the ones the data API could not take
+  private void showOfflineStatus(RoutingContext routingContext) {
+    Tenant tenant = tenant(routingContext);
+    if (tenant.getOffline() == null) {
+      routingContext.response().setStatusCode(404).putHeader(HttpHeaders.CONTENT_TYPE, "text/plain")
+          .end("Offline lending is not configured");
+      return;
+    }
+    JsonObject status = tenant.getOffline().status().put("breaker", tenant.getClient().getBreakerState().name());
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(status.encodePrettily());
+  }
+
+  private void showOverdueStatus(RoutingContext routingContext) {
+    Tenant tenant = tenant(routingContext);
+    if (tenant.getOverdue() == null) {
+      routingContext.response().setStatusCode(404).putHeader(HttpHeaders.CONTENT_TYPE, "text/plain")
+          .end("Overdue notices are not enabled");
+      return;
+    }
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(tenant.getOverdue().status().encodePrettily());
   }
 
   /*
@@ -369,43 +870,63 @@ public class MainVerticle extends AbstractVerticle {
    ******************************************************************************************
    */
 
+  // The page loads the patrons and items itself, see listSampleData
   private void showSampleDataScreen(RoutingContext routingContext) {
-    HttpClient httpClient = vertx.createHttpClient();
-    httpClient.get(dataApiPort, dataApiServer, patronApi, response -> response.bodyHandler(buffer -> {
-      try {
-        JSONObject bufferAsJson = new JSONObject(buffer.toString());
-        JSONArray patrons = bufferAsJson.getJSONArray("patrons");
-        routingContext.put("patrons", patrons.toString(2));
-
-        httpClient
-            .get(dataApiPort, dataApiServer, itemApi, itemResponse -> itemResponse.bodyHandler(itemBuffer -> {
-              try {
-                JSONObject itemBufferAsJson = new JSONObject(itemBuffer.toString());
-                JSONArray items = itemBufferAsJson.getJSONArray("items");
-                routingContext.put("items", items.toString(2));
-
-                engine.render(routingContext, "templates/sampleData.html",
-                    engineResponse -> routingContext.response().setStatusCode(200)
-                        .putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-                        .end(engineResponse.result()));
-
-              } catch (Exception e) {
-                logger.error(e);
-              }
-            })).putHeader("content-type", "application/json").putHeader("accept", "application/json")
-            .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
-
-      } catch (Exception e) {
-        logger.error(e);
+    views.serve(routingContext, "templates/sampleData.html", tenant(routingContext).getId());
+  }
+
+  private void listPatrons(RoutingContext routingContext) {
+    listSampleData(routingContext, patronApi, "patrons");
+  }
+
+  private void listItems(RoutingContext routingContext) {
+    listSampleData(routingContext, itemApi, "items");
+  }
+
+  // Streams the patrons or items of the data API to the client as a JSON
+  // array, with its limit and offset, as they come in
+  private void listSampleData(RoutingContext routingContext, String api, String field) {
+    if (unavailable(routingContext, "Could not retrieve " + field)) {
+      return;
+    }
+    HttpServerResponse out = routingContext.response();
+    tenant(routingContext).getClient().get(paged(api, routingContext), response -> {
+      if (response.statusCode() != 200) {
+        dataApiFailure(routingContext, "Could not retrieve " + field,
+            new CirculationException(response.statusCode(), "Data API answered " + response.statusCode()));
+        return;
       }
-    })).putHeader("content-type", "application/json").putHeader("accept", "application/json")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
+      out.setChunked(true).putHeader(HttpHeaders.CONTENT_TYPE, "application/json").write("[");
+      boolean[] first = { true };
+      JsonArrayStream elements = new JsonArrayStream(field, element -> {
+        if (!first[0]) {
+          out.write(",");
+        }
+        first[0] = false;
+        out.write(element);
+        if (out.writeQueueFull()) {
+          response.pause();
+          out.drainHandler(drained -> response.resume());
+        }
+      });
+      response.handler(elements);
+      response.exceptionHandler(cause -> {
+        logger.error("Listing of " + field + " broke off: " + cause.getMessage());
+        out.close();
+      });
+      response.endHandler(end -> out.end("]"));
+    }, cause -> dataApiFailure(routingContext, "Could not retrieve " + field, cause))
+        .putHeader(DataApiClient.REQUEST_ID, requestId(routingContext)).end();
   }
 
   private void createPatron(RoutingContext routingContext) {
+    if (unavailable(routingContext, "Error creating patron")) {
+      return;
+    }
     String patron = routingContext.getBodyAsString();
-    HttpClient httpClient = vertx.createHttpClient();
-    httpClient.post(dataApiPort, dataApiServer, patronApi, response -> {
+    Tenant tenant = tenant(routingContext);
+    tenant.getClient().post(patronApi, response -> {
+      invalidate(patron, tenant.getDataApi()::invalidatePatron);
       if (response.statusCode() == 201) {
         routingContext.response().setStatusCode(201).putHeader(HttpHeaders.CONTENT_TYPE, "text/plain")
             .end("Patron created");
@@ -413,15 +934,19 @@ public class MainVerticle extends AbstractVerticle {
         routingContext.response().setStatusCode(500).putHeader(HttpHeaders.CONTENT_TYPE, "text/plain")
             .end("Error creating patron. Try again. Typos?");
       }
-    }).putHeader("content-type", "application/json").putHeader("accept", "application/json")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end(patron);
+    }, cause -> dataApiFailure(routingContext, "Error creating patron", cause))
+        .putHeader(DataApiClient.REQUEST_ID, requestId(routingContext)).end(patron);
 
   }
 
   private void createItem(RoutingContext routingContext) {
+    if (unavailable(routingContext, "Error creating item")) {
+      return;
+    }
     String patron = routingContext.getBodyAsString();
-    HttpClient httpClient = vertx.createHttpClient();
-    httpClient.post(dataApiPort, dataApiServer, itemApi, response -> {
+    Tenant tenant = tenant(routingContext);
+    tenant.getClient().post(itemApi, response -> {
+      invalidate(patron, tenant.getDataApi()::invalidateItem);
       if (response.statusCode() == 201) {
         routingContext.response().setStatusCode(201).putHeader(HttpHeaders.CONTENT_TYPE, "text/plain")
             .end("Item created");
@@ -429,51 +954,68 @@ public class MainVerticle extends AbstractVerticle {
         routingContext.response().setStatusCode(500).putHeader(HttpHeaders.CONTENT_TYPE, "text/plain")
             .end("Error creating item. Try again. Typos?");
       }
-    }).putHeader("content-type", "application/json").putHeader("accept", "application/json")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end(patron);
+    }, cause -> dataApiFailure(routingContext, "Error creating item", cause))
+        .putHeader(DataApiClient.REQUEST_ID, requestId(routingContext)).end(patron);
 
   }
 
+  // Drops the cached copy of a patron or item posted through the sample data screen
+  private void invalidate(String body, Consumer<String> invalidation) {
+    try {
+      String id = new JsonObject(body).getString("id");
+      if (id != null) {
+        invalidation.accept(id);
+      }
+    } catch (DecodeException | ClassCastException e) {
+      // the data API rejects it anyway
+    }
+  }
+
   private void deletePatron(RoutingContext routingContext) {
+    if (unavailable(routingContext, "Error deleting patron")) {
+      return;
+    }
     String patronId = routingContext.getBodyAsString();
-    HttpClient httpClient = vertx.createHttpClient();
-
-    // check whether patron has open loans
-    httpClient.get(dataApiPort, dataApiServer, patronApi + patronId + "/loans",
-        loanResponse -> loanResponse.bodyHandler(buffer -> {
-          try {
-            JSONObject bufferAsJson = new JSONObject(buffer.toString());
-            JSONArray loans = bufferAsJson.getJSONArray("loans");
-            if (loans.length() == 0) {
-
-              httpClient.delete(dataApiPort, dataApiServer, patronApi + patronId, response -> {
-                if (response.statusCode() == 204) {
-                  routingContext.response().setStatusCode(204)
-                      .putHeader(HttpHeaders.CONTENT_TYPE, "text/plain").end("Patron deleted");
-                } else {
-                  routingContext.response().setStatusCode(500)
-                      .putHeader(HttpHeaders.CONTENT_TYPE, "text/plain")
-                      .end("Error deleting patron");
-                }
-              }).putHeader("content-type", "application/json").putHeader("accept", "text/plain")
-                  .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant)
-                  .end();
+    Tenant tenant = tenant(routingContext);
+
+    // check whether patron has open loans; the first one is enough to know
+    tenant.getClient().get(patronApi + patronId + "/loans?limit=1", loanResponse -> {
+      JsonArrayStream loans = new JsonArrayStream("loans", loan -> {
+      });
+      loanResponse.handler(loans);
+      loanResponse.endHandler(end -> {
+        if (loans.count() == 0) {
+
+          tenant.getClient().delete(patronApi + patronId, response -> {
+            tenant.getDataApi().invalidatePatron(patronId);
+            if (response.statusCode() == 204) {
+              routingContext.response().setStatusCode(204)
+                  .putHeader(HttpHeaders.CONTENT_TYPE, "text/plain").end("Patron deleted");
             } else {
-              routingContext.response().setStatusCode(404)
-                  .end("Error: Patron has still open loans! Return items first");
+              routingContext.response().setStatusCode(500)
+                  .putHeader(HttpHeaders.CONTENT_TYPE, "text/plain")
+                  .end("Error deleting patron");
             }
-          } catch (Exception e) {
-            logger.error(e);
-          }
-        })).putHeader("content-type", "application/json").putHeader("accept", "application/json")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
+          }, cause -> dataApiFailure(routingContext, "Error deleting patron", cause))
+              .putHeader(DataApiClient.REQUEST_ID, requestId(routingContext)).end();
+        } else {
+          routingContext.response().setStatusCode(404)
+              .end("Error: Patron has still open loans! Return items first");
+        }
+      });
+    }, cause -> dataApiFailure(routingContext, "Error deleting patron", cause))
+        .putHeader(DataApiClient.REQUEST_ID, requestId(routingContext)).end();
 
   }
 
   private void deleteItem(RoutingContext routingContext) {
+    if (unavailable(routingContext, "Error deleting item")) {
+      return;
+    }
     String itemId = routingContext.getBodyAsString();
-    HttpClient httpClient = vertx.createHttpClient();
-    httpClient.delete(dataApiPort, dataApiServer, itemApi + itemId, response -> {
+    Tenant tenant = tenant(routingContext);
+    tenant.getClient().delete(itemApi + itemId, response -> {
+      tenant.getDataApi().invalidateItem(itemId);
       if (response.statusCode() == 204) {
         routingContext.response().setStatusCode(204).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
             .end("Item deleted");
@@ -481,8 +1023,8 @@ public class MainVerticle extends AbstractVerticle {
         routingContext.response().setStatusCode(500).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
             .end("Error deleting item");
       }
-    }).putHeader("content-type", "application/json").putHeader("accept", "text/plain")
-        .putHeader("authorization", authorization).putHeader("X-Okapi-Tenant", tenant).end();
+    }, cause -> dataApiFailure(routingContext, "Error deleting item", cause))
+        .putHeader(DataApiClient.REQUEST_ID, requestId(routingContext)).end();
   }
 
   /*
@@ -492,45 +1034,88 @@ public class MainVerticle extends AbstractVerticle {
    */
 
   private void createRule(RoutingContext routingContext) {
-    String ruleAsJson = routingContext.getBodyAsString();
-    Rule rule = Json.decodeValue(ruleAsJson, Rule.class);
-    String ruleFileName = rule.getRuleName().replace(" ", "_") + ".drl";
-    String rulesFile = config().getString("rules.folder", "/tmp") + "/" + ruleFileName;
-    if (new File(rulesFile).exists()) {
+    Rule rule;
+    try {
+      rule = Json.decodeValue(routingContext.getBodyAsString(), Rule.class);
+    } catch (DecodeException e) {
       routingContext.response().setStatusCode(400).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-          .end("Rule already exists. Choose different name.");
-    } else {
-      try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(rulesFile))) {
-        StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append("package rules;\n");
-        stringBuilder.append("import com.sling.rest.jaxrs.model.Patron;\n");
-        stringBuilder.append("import com.sling.rest.jaxrs.model.Item;\n");
-        stringBuilder.append("import com.sling.rest.jaxrs.model.Status;\n");
-        stringBuilder.append("import hbz.LoanPermission;\n\n");
-        stringBuilder.append("rule \"" + rule.getRuleName() + "\"\n");
-        stringBuilder.append("$p : Patron(getStatus().equals(\"" + rule.getPatronStatus() + "\"), getType().equals(\"" + rule.getPatronType() + "\"))\n");
-        stringBuilder.append("$i : Item(getStatus().getValue().equals(\"" + rule.getItemStatus() + "\")), getType().equals(\"" + rule.getItemType() + "\"))\n");
-        stringBuilder.append("$l : LoanPermission()\n");
-        stringBuilder.append("then\n");
-        stringBuilder.append("$l.setPermitted(true);\n");
-        stringBuilder.append("end");
-        
-        KieFileSystem kfs = kieServices.newKieFileSystem().write(rulesFile, stringBuilder.toString());
-        kieServices.newKieBuilder(kfs).buildAll();
-        
-        routingContext.response().setStatusCode(201).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
-            .end("Rule created.");
+          .end("Rule could not be read.");
+      return;
+    }
+    // the name becomes a file name in the tenant's folder, never a path
+    if (rule.getRuleName() == null || !RuleRepository.RULE_NAME.matcher(rule.getRuleName()).matches()) {
+      routingContext.response().setStatusCode(400).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
+          .end("Rule names may only have letters, digits, spaces, '-' and '_'.");
+      return;
+    }
+    Tenant tenant = tenant(routingContext);
+    RuleRepository ruleRepository = tenant.getRuleRepository();
+    String baseName = rule.getRuleName().replace(" ", "_");
+    // in table mode the rule goes into the decision table instead of Drools
+    boolean asTable = "table".equals(tenant.getConfig().getString("rules.mode", "drools"));
+    File rulesFile = new File(ruleRepository.getFolder(), baseName + (asTable ? RuleRepository.RULE_JSON
+        : RuleRepository.DRL));
+    String content = asTable ? Json.encodePrettily(rule) : RuleRepository.toDrl(rule);
+    vertx.<Boolean>executeBlocking(write -> {
+      File folder = new File(ruleRepository.getFolder());
+      if (new File(folder, baseName + RuleRepository.DRL).exists()
+          || new File(folder, baseName + RuleRepository.RULE_JSON).exists()) {
+        write.complete(false);
+        return;
+      }
+      // a tenant's folder is created with its first rule
+      folder.mkdirs();
+      try {
+        Files.write(rulesFile.toPath(), content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+        write.complete(true);
       } catch (IOException e) {
+        write.fail(e);
+      }
+    }, false, written -> {
+      if (written.failed()) {
+        logger.error("Rule " + rulesFile + " could not be created: " + written.cause().getMessage());
         routingContext.response().setStatusCode(500).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
             .end("Rule could not be created.");
-        e.printStackTrace();
+        return;
       }
-    }
+      if (!written.result()) {
+        routingContext.response().setStatusCode(400).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
+            .end("Rule already exists. Choose different name.");
+        return;
+      }
+      // compile right away instead of waiting for the next scan; a rule that
+      // breaks the rule base is removed again so the folder stays loadable
+      ruleRepository.refresh().setHandler(compiled -> {
+        if (compiled.succeeded() && compiled.result()) {
+          // the other nodes get the same rule
+          tenants.getCluster().ruleFileCreated(tenant.getId(), rulesFile.getName(), content);
+          routingContext.response().setStatusCode(201).putHeader(HttpHeaders.CONTENT_TYPE, "text/html")
+              .end("Rule created.");
+        } else {
+          JsonObject status = ruleRepository.getStatus();
+          vertx.<Void>executeBlocking(delete -> {
+            rulesFile.delete();
+            delete.complete();
+          }, false, deleted -> ruleRepository.refresh());
+          routingContext.response().setStatusCode(400).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+              .end(status.encodePrettily());
+        }
+      });
+    });
+  }
+
+  private void showRuleStatus(RoutingContext routingContext) {
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(tenant(routingContext).getRuleRepository().getStatus().encodePrettily());
+  }
+
+  private void showPolicies(RoutingContext routingContext) {
+    routingContext.response().setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(tenant(routingContext).getPolicies().getStatus().encodePrettily());
   }
 
   private void showRuleScreen(RoutingContext routingContext) {
-    engine.render(routingContext, "templates/rulesEditor.html", response -> routingContext.response().setStatusCode(200)
-        .putHeader(HttpHeaders.CONTENT_TYPE, "text/html").end(response.result()));
+    views.serve(routingContext, "templates/rulesEditor.html", tenant(routingContext).getId());
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+package hbz;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.Vertx;
+
+/**
+ * Counters, gauges and latency histograms of the deliver module. There is one
+ * registry per Vert.x instance, shared by all verticle instances, so a scrape
+ * of any of them sees the whole process. {@link #scrape()} renders it in the
+ * Prometheus text format.
+ *
+ * A series is a metric name plus its labels, e.g.
+ * deliver_upstream_request_seconds{api="items",method="GET",status="200"}.
+ */
+public class Metrics {
+
+  // upper bounds of the histogram buckets in seconds
+  private static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+  private final ConcurrentMap<String, ConcurrentMap<String, LongAdder>> counters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> gauges = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> histograms = new ConcurrentHashMap<>();
+  private final Map<String, String> help = new ConcurrentHashMap<>();
+
+  public static Metrics shared(Vertx vertx) {
+    return Shared.acquire(vertx, "metrics", Metrics::new);
+  }
+
+  // label pairs as name, value, name, value, ...
+  public static String labels(String... pairs) {
+    StringBuilder labels = new StringBuilder();
+    for (int i = 0; i + 1 < pairs.length; i += 2) {
+      if (labels.length() > 0) {
+        labels.append(',');
+      }
+      labels.append(pairs[i]).append("=\"")
+          .append(pairs[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    }
+    return labels.toString();
+  }
+
+  public Metrics describe(String name, String description) {
+    help.put(name, description);
+    return this;
+  }
+
+  public LongAdder counter(String name, String labels) {
+    return counters.computeIfAbsent(name, series -> new ConcurrentHashMap<>())
+        .computeIfAbsent(labels, series -> new LongAdder());
+  }
+
+  public AtomicLong gauge(String name, String labels) {
+    return gauges.computeIfAbsent(name, series -> new ConcurrentHashMap<>())
+        .computeIfAbsent(labels, series -> new AtomicLong());
+  }
+
+  public Histogram histogram(String name, String labels) {
+    return histograms.computeIfAbsent(name, series -> new ConcurrentHashMap<>())
+        .computeIfAbsent(labels, series -> new Histogram());
+  }
+
+  public String scrape() {
+    StringBuilder out = new StringBuilder();
+    for (Map.Entry<String, Map<String, LongAdder>> metric : sorted(counters).entrySet()) {
+      header(out, metric.getKey(), "counter");
+      metric.getValue().forEach((labels, value) -> sample(out, metric.getKey(), labels, value.sum()));
+    }
+    for (Map.Entry<String, Map<String, AtomicLong>> metric : sorted(gauges).entrySet()) {
+      header(out, metric.getKey(), "gauge");
+      metric.getValue().forEach((labels, value) -> sample(out, metric.getKey(), labels, value.get()));
+    }
+    for (Map.Entry<String, Map<String, Histogram>> metric : sorted(histograms).entrySet()) {
+      String name = metric.getKey();
+      header(out, name, "histogram");
+      metric.getValue().forEach((labels, histogram) -> {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS.length; i++) {
+          cumulative += histogram.buckets[i].sum();
+          sample(out, name + "_bucket", labels + separator + "le=\"" + BUCKETS[i] + "\"", cumulative);
+        }
+        sample(out, name + "_bucket", labels + separator + "le=\"+Inf\"", histogram.count.sum());
+        sample(out, name + "_sum", labels, histogram.sum.sum());
+        sample(out, name + "_count", labels, histogram.count.sum());
+      });
+    }
+    return out.toString();
+  }
+
+  private void header(StringBuilder out, String name, String type) {
+    String description = help.get(name);
+    if (description != null) {
+      out.append("# HELP ").append(name).append(' ').append(description).append('\n');
+    }
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, Number value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  private static <T> Map<String, Map<String, T>> sorted(ConcurrentMap<String, ConcurrentMap<String, T>> metrics) {
+    Map<String, Map<String, T>> sorted = new TreeMap<>();
+    metrics.forEach((name, series) -> sorted.put(name, new TreeMap<>(series)));
+    return sorted;
+  }
+
+  /**
+   * Latency distribution over fixed buckets, see BUCKETS.
+   */
+  public static class Histogram {
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    public void recordNanos(long nanos) {
+      double seconds = nanos / 1e9;
+      for (int i = 0; i < BUCKETS.length; i++) {
+        if (seconds <= BUCKETS[i]) {
+          buckets[i].increment();
+          break;
+        }
+      }
+      count.increment();
+      sum.add(seconds);
+    }
+  }
+
+}
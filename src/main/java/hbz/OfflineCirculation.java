@@ -0,0 +1,408 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.ItemStatus;
+import org.folio.rest.jaxrs.model.Loan;
+import org.folio.rest.jaxrs.model.Patron;
+
+/**
+ * Lending while the data API is unavailable. Patron and item come from the
+ * {@link Snapshot}, the loan rules are local anyway; a permitted loan is
+ * recorded in a {@link Journal} and the desk is answered once it is on disk.
+ * When the data API is back, a worker creates the recorded loans there, oldest
+ * first, and sets the item status; a loan created is noted in the journal
+ * before the item status is set, so that a sync cut off in between only sets
+ * the status when it is tried again. A loan that cannot be created any more, e.g.
+ * because the item was lent elsewhere meanwhile or the patron is gone, is a
+ * conflict: it is kept in a conflicts file and shown on /deliver/offline for
+ * staff to sort out.
+ *
+ * One per tenant, shared by all verticle instances; the worker runs on the
+ * event loop that started it.
+ */
+public class OfflineCirculation {
+
+  private static final String SEQ = "seq";
+  private static final String DONE = "done";
+  private static final String POSTED = "posted";
+  private static final String LOAN_ID = "loanId";
+  private static final int RECENT_CONFLICTS = 100;
+
+  private final Vertx vertx;
+  private final JsonObject config;
+  private final Metrics metrics;
+  private final String tenant;
+  private final String patronApi;
+  private final String itemApi;
+  private final Journal journal;
+  private final Journal conflictLog;
+  private final Snapshot snapshot;
+
+  // recorded loans not yet created in the data API, oldest first
+  private final Map<Long, JsonObject> pending = new LinkedHashMap<>();
+  // items of those loans, and of loans being recorded
+  private final Set<String> itemsOnLoan = new HashSet<>();
+  private final Deque<JsonObject> conflicts = new ArrayDeque<>();
+  private long seq;
+
+  // worker state, only touched on the worker's context
+  private Context worker;
+  private DataApiClient client;
+  private DataApi dataApi;
+  private LoanPolicies policies;
+  private long syncTimer = -1;
+  private long snapshotTimer = -1;
+  private boolean syncing;
+  private volatile boolean closed;
+
+  private final Logger logger = LoggerFactory.getLogger("hbz-deliver-module");
+
+  // Opens the journals and the snapshot in folder; do not call it on an event loop
+  public OfflineCirculation(Vertx vertx, File folder, JsonObject config, Metrics metrics) {
+    this.vertx = vertx;
+    this.config = config;
+    this.tenant = config.getString("data.api.tenant", "hbz");
+    this.patronApi = config.getString("data.api.patrons", DataApiClient.PATRON_API);
+    this.itemApi = config.getString("data.api.items", DataApiClient.ITEM_API);
+    this.metrics = metrics.describe("deliver_offline_loans_total", "Loans recorded while the data API was unavailable")
+        .describe("deliver_offline_pending", "Offline loans not yet created in the data API, by tenant")
+        .describe("deliver_offline_conflicts_total", "Offline loans the data API could not take any more, by tenant");
+    try {
+      journal = new Journal(new File(folder, tenant + ".offline"));
+      conflictLog = new Journal(new File(folder, tenant + ".conflicts"));
+      snapshot = new Snapshot(new File(folder, tenant + ".snapshot"),
+          config.getInteger("offline.snapshot.size", 100000));
+      replay();
+    } catch (IOException e) {
+      throw new IllegalStateException("Offline store in " + folder + " could not be opened", e);
+    }
+  }
+
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  // Starts syncing on the calling verticle's event loop, through a data API
+  // built around a client of its own; synced loans get the terms of policies.
+  // Later calls do nothing.
+  public synchronized void start(Function<DataApiClient, DataApi> dataApiFactory, LoanPolicies policies) {
+    if (worker != null || closed) {
+      return;
+    }
+    worker = vertx.getOrCreateContext();
+    client = new DataApiClient(vertx, config, metrics, "offline");
+    dataApi = dataApiFactory.apply(client);
+    this.policies = policies;
+    syncTimer = vertx.setPeriodic(config.getLong("offline.sync.interval", 5000L), tick -> sync());
+    snapshotTimer = vertx.setPeriodic(config.getLong("offline.snapshot.interval", 60000L), tick -> saveSnapshot());
+  }
+
+  public synchronized void close() {
+    closed = true;
+    if (worker != null) {
+      vertx.cancelTimer(syncTimer);
+      vertx.cancelTimer(snapshotTimer);
+      client.close();
+    }
+    saveSnapshot();
+    try {
+      journal.close();
+      conflictLog.close();
+    } catch (IOException e) {
+      logger.error("Offline store of tenant " + tenant + " could not be closed: " + e.getMessage());
+    }
+  }
+
+  // Lends an item from the snapshot; completes once the loan is on disk
+  public Future<String> loan(String patronId, String itemId, RuleEngine ruleEngine, String requestId) {
+    Patron patron;
+    Item item;
+    try {
+      patron = fromSnapshot(patronApi + patronId, Patron.class, "patron " + patronId);
+      item = fromSnapshot(itemApi + itemId, Item.class, "item " + itemId);
+    } catch (CirculationException e) {
+      return Future.failedFuture(e);
+    }
+    if (!reserve(itemId)) {
+      return Future.failedFuture(
+          new CirculationException(400, "Cannot loan! Either item is loaned or patron is not allowed."));
+    }
+    Future<String> result = Future.future();
+    Futures.then(ruleEngine.evaluate(patron, item), loanPermission -> {
+      if (!loanPermission.isPermitted()) {
+        return Future.<String>failedFuture(
+            new CirculationException(400, "Cannot loan! Either item is loaned or patron is not allowed."));
+      }
+      JsonObject entry = new JsonObject().put("patronId", patronId).put("itemId", itemId)
+          .put("loanDate", System.currentTimeMillis());
+      if (requestId != null) {
+        entry.put("requestId", requestId);
+      }
+      return Futures.map(record(entry), recorded -> {
+        ItemStatus status = new ItemStatus();
+        status.setValue("02");
+        status.setDesc("ITEM_STATUS_ON_LOAN");
+        item.setItemStatus(status);
+        snapshot.put(itemApi + itemId, Json.encode(item));
+        metrics.counter("deliver_offline_loans_total", Metrics.labels("tenant", tenant)).increment();
+        logger.info("Loaned item " + itemId + " to patron " + patronId + " offline");
+        return "Loaned item " + itemId + " offline; the loan is synced when the data API is back";
+      });
+    }).setHandler(done -> {
+      if (done.failed()) {
+        release(itemId);
+      }
+      result.completer().handle(done);
+    });
+    return result;
+  }
+
+  public synchronized JsonObject status() {
+    JsonArray loans = new JsonArray();
+    pending.values().forEach(loans::add);
+    JsonArray recentConflicts = new JsonArray();
+    conflicts.forEach(recentConflicts::add);
+    return new JsonObject()
+        .put("pending", loans)
+        .put("conflicts", recentConflicts)
+        .put("conflictLog", conflictLog.getFile().getPath())
+        .put("snapshotEntries", snapshot.size());
+  }
+
+  private <T> T fromSnapshot(String uri, Class<T> type, String what) {
+    String json = snapshot.get(uri);
+    if (json == null) {
+      throw new CirculationException(503, "Data API unavailable and " + what + " not known offline");
+    }
+    try {
+      return Json.decodeValue(json, type);
+    } catch (DecodeException e) {
+      throw new CirculationException(503, "Data API unavailable and " + what + " not known offline");
+    }
+  }
+
+  private synchronized boolean reserve(String itemId) {
+    return itemsOnLoan.add(itemId);
+  }
+
+  private synchronized void release(String itemId) {
+    itemsOnLoan.remove(itemId);
+  }
+
+  private Future<Void> record(JsonObject entry) {
+    Future<Void> result = Future.future();
+    vertx.<Void>executeBlocking(done -> {
+      try {
+        long end;
+        synchronized (this) {
+          entry.put(SEQ, ++seq);
+          end = journal.append(entry);
+          pending.put(entry.getLong(SEQ), entry);
+          pendingChanged();
+        }
+        journal.sync(end);
+        done.complete();
+      } catch (IOException e) {
+        logger.error("Could not record offline loan: " + e.getMessage());
+        done.fail(new CirculationException(500, "Could not record the loan offline"));
+      }
+    }, false, result.completer());
+    return result;
+  }
+
+  private void replay() throws IOException {
+    for (JsonObject record : journal.read()) {
+      if (record.containsKey(DONE)) {
+        JsonObject done = pending.remove(record.getLong(DONE));
+        if (done != null) {
+          itemsOnLoan.remove(done.getString("itemId"));
+        }
+      } else if (record.containsKey(POSTED)) {
+        JsonObject posted = pending.get(record.getLong(POSTED));
+        if (posted != null) {
+          posted.put(LOAN_ID, record.getString(LOAN_ID));
+        }
+      } else {
+        pending.put(record.getLong(SEQ), record);
+        itemsOnLoan.add(record.getString("itemId"));
+        seq = Math.max(seq, record.getLong(SEQ));
+      }
+    }
+    if (pending.isEmpty()) {
+      journal.truncate();
+    }
+    for (JsonObject conflict : conflictLog.read()) {
+      recentConflict(conflict);
+    }
+    pendingChanged();
+    if (!pending.isEmpty()) {
+      logger.info("Tenant " + tenant + " has " + pending.size() + " offline loans to sync");
+    }
+  }
+
+  // Creates the recorded loans in the data API one after the other, until
+  // none is left or the data API fails again; while the breaker is open the
+  // first call fails at once
+  private void sync() {
+    if (syncing || closed) {
+      return;
+    }
+    JsonObject next;
+    synchronized (this) {
+      next = pending.isEmpty() ? null : pending.values().iterator().next();
+    }
+    if (next == null) {
+      return;
+    }
+    syncing = true;
+    reconcile(next).setHandler(reconciled -> {
+      if (reconciled.failed() && reconciled.cause() instanceof DataApiUnavailableException) {
+        syncing = false;
+        return;
+      }
+      String conflict = reconciled.failed() ? reconciled.cause().getMessage() : null;
+      vertx.<Void>executeBlocking(done -> {
+        try {
+          synced(next, conflict);
+          done.complete();
+        } catch (IOException e) {
+          done.fail(e);
+        }
+      }, false, noted -> {
+        syncing = false;
+        if (noted.failed()) {
+          logger.error("Could not note synced offline loan: " + noted.cause().getMessage());
+        } else {
+          sync();
+        }
+      });
+    });
+  }
+
+  private Future<Void> reconcile(JsonObject loan) {
+    String patronId = loan.getString("patronId");
+    String itemId = loan.getString("itemId");
+    long loanDate = loan.getLong("loanDate");
+    // what the data API has now, not what was cached before the outage
+    dataApi.invalidatePatron(patronId);
+    dataApi.invalidateItem(itemId);
+    DataApi api = dataApi.forRequest(loan.getString("requestId"));
+    if (loan.containsKey(LOAN_ID)) {
+      // created before the data API failed again; only the item status is left
+      return Futures.then(api.getItem(itemId), current -> lent(api, current, patronId));
+    }
+    Future<Patron> patron = api.getPatron(patronId);
+    Future<Item> item = api.getItem(itemId);
+    return Futures.then(Futures.join(patron, item), joined -> {
+      ItemStatus current = item.result().getItemStatus();
+      if (current != null && "02".equals(current.getValue())) {
+        return Future.failedFuture(new CirculationException(409, "Item " + itemId + " was lent elsewhere meanwhile"));
+      }
+      // due from the day of the offline loan, not of the sync
+      Loan created = MainVerticle.createLoanObject(patronId, item.result(),
+          policies.termsFor(patron.result(), item.result()), loanDate);
+      return Futures.then(Futures.then(api.postLoan(patronId, created), posted -> posted(loan, posted.getId())),
+          noted -> lent(api, item.result(), patronId));
+    });
+  }
+
+  // Notes that the loan was created in the data API as loanId; if that
+  // cannot be journaled, it is still known until a restart
+  private Future<Void> posted(JsonObject loan, String loanId) {
+    Future<Void> result = Future.future();
+    vertx.<Void>executeBlocking(done -> {
+      try {
+        long end;
+        synchronized (this) {
+          loan.put(LOAN_ID, loanId);
+          if (closed) {
+            done.complete();
+            return;
+          }
+          end = journal.append(new JsonObject().put(POSTED, loan.getLong(SEQ)).put(LOAN_ID, loanId));
+        }
+        journal.sync(end);
+      } catch (IOException e) {
+        logger.error("Could not note created offline loan " + loanId + ": " + e.getMessage());
+      }
+      done.complete();
+    }, false, result.completer());
+    return result;
+  }
+
+  private Future<Void> lent(DataApi api, Item item, String patronId) {
+    ItemStatus status = new ItemStatus();
+    status.setValue("02");
+    status.setDesc("ITEM_STATUS_ON_LOAN");
+    item.setItemStatus(status);
+    logger.info("Synced offline loan of item " + item.getId() + " to patron " + patronId);
+    return api.putItem(item);
+  }
+
+  private synchronized void synced(JsonObject loan, String conflict) throws IOException {
+    if (closed) {
+      return;
+    }
+    if (conflict != null) {
+      JsonObject report = loan.copy().put("conflict", conflict).put("reported", System.currentTimeMillis());
+      conflictLog.sync(conflictLog.append(report));
+      recentConflict(report);
+      metrics.counter("deliver_offline_conflicts_total", Metrics.labels("tenant", tenant)).increment();
+      logger.error("Offline loan of item " + loan.getString("itemId") + " could not be synced: " + conflict);
+    }
+    journal.append(new JsonObject().put(DONE, loan.getLong(SEQ)));
+    pending.remove(loan.getLong(SEQ));
+    itemsOnLoan.remove(loan.getString("itemId"));
+    if (pending.isEmpty()) {
+      journal.truncate();
+    }
+    pendingChanged();
+  }
+
+  private void recentConflict(JsonObject conflict) {
+    conflicts.addLast(conflict);
+    if (conflicts.size() > RECENT_CONFLICTS) {
+      conflicts.removeFirst();
+    }
+  }
+
+  private void saveSnapshot() {
+    vertx.executeBlocking(done -> {
+      try {
+        snapshot.save();
+        done.complete();
+      } catch (IOException e) {
+        done.fail(e);
+      }
+    }, false, saved -> {
+      if (saved.failed()) {
+        logger.error("Snapshot of tenant " + tenant + " could not be saved: " + saved.cause().getMessage());
+      }
+    });
+  }
+
+  private void pendingChanged() {
+    metrics.gauge("deliver_offline_pending", Metrics.labels("tenant", tenant)).set(pending.size());
+  }
+
+}
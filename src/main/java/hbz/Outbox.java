@@ -0,0 +1,345 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * Writes to the data API that the desk does not have to wait for, e.g. the
+ * item status after a loan or return. A write is appended to a {@link Journal}
+ * and counts as done once the journal is forced to disk; a worker sends the
+ * journaled writes to the data API in batches and notes each one as delivered
+ * in the same journal. When the data API fails, the worker backs off
+ * exponentially and tries again. On start the journal is replayed, so writes
+ * not delivered before a restart are sent then.
+ *
+ * Only the latest write per URI is kept: writes are full PUTs, a later one
+ * makes an earlier one pointless. {@link #pending(String)} gives callers the
+ * journaled body until it is delivered, so they read their own writes.
+ *
+ * One journal per tenant, shared by all verticle instances; appends can come
+ * from any event loop, the worker runs on the one that started it.
+ */
+public class Outbox {
+
+  private static final String SEQ = "seq";
+  private static final String DONE = "done";
+
+  private final Vertx vertx;
+  private final Journal journal;
+  private final JsonObject config;
+  private final String tenant;
+  private final Metrics metrics;
+  private final int batchSize;
+  private final int fanOut;
+  private final long retryInitial;
+  private final long retryMax;
+  private final long compactSize;
+
+  // latest undelivered write by URI, oldest first
+  private final Map<String, JsonObject> pending = new LinkedHashMap<>();
+  private long seq;
+  // journal size after the last compaction
+  private long compacted;
+
+  private final AtomicLong appended = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  // worker state, only touched on the worker's context
+  private volatile Context worker;
+  private DataApiClient client;
+  private long timer = -1;
+  private boolean draining;
+  private int failuresInRow;
+  private long nextAttempt;
+  private volatile boolean closed;
+
+  private final Logger logger = LoggerFactory.getLogger("hbz-deliver-module");
+
+  // Opens the journal and replays what it holds; do not call it on an event loop
+  public Outbox(Vertx vertx, File file, JsonObject config, Metrics metrics) {
+    this.vertx = vertx;
+    this.config = config;
+    this.tenant = config.getString("data.api.tenant", "hbz");
+    this.metrics = metrics.describe("deliver_outbox_pending", "Journaled writes not yet delivered, by tenant")
+        .describe("deliver_outbox_append_seconds", "Time to append a write to the journal and force it to disk")
+        .describe("deliver_outbox_sent_total", "Journaled writes delivered to the data API, by tenant")
+        .describe("deliver_outbox_retries_total", "Outbox batches that failed and are tried again, by tenant")
+        .describe("deliver_outbox_dropped_total", "Journaled writes the data API rejected for good, by tenant");
+    batchSize = config.getInteger("outbox.batch", 50);
+    fanOut = config.getInteger("outbox.fanout", 8);
+    retryInitial = config.getLong("outbox.retry.initial", 500L);
+    retryMax = config.getLong("outbox.retry.max", 30000L);
+    compactSize = config.getLong("outbox.compact.size", 1048576L);
+    try {
+      journal = new Journal(file);
+      replay();
+    } catch (IOException e) {
+      throw new IllegalStateException("Outbox journal " + file + " could not be opened", e);
+    }
+  }
+
+  // Starts delivering on the calling verticle's event loop; later calls do nothing
+  public synchronized void start() {
+    if (worker != null || closed) {
+      return;
+    }
+    worker = vertx.getOrCreateContext();
+    client = new DataApiClient(vertx, config, metrics, "outbox");
+    timer = vertx.setPeriodic(config.getLong("outbox.drain.interval", 200L), tick -> drain());
+    worker.runOnContext(now -> drain());
+  }
+
+  public synchronized void close() {
+    closed = true;
+    if (timer != -1) {
+      vertx.cancelTimer(timer);
+    }
+    if (client != null) {
+      client.close();
+    }
+    try {
+      journal.close();
+    } catch (IOException e) {
+      logger.error("Outbox journal " + journal.getFile() + " could not be closed: " + e.getMessage());
+    }
+  }
+
+  // Journals a write; completes once it is on disk
+  public Future<Void> add(HttpMethod method, String uri, String body, String requestId) {
+    JsonObject entry = new JsonObject().put("method", method.name()).put("uri", uri).put("body", body);
+    if (requestId != null) {
+      entry.put("requestId", requestId);
+    }
+    Future<Void> result = Future.future();
+    vertx.<Void>executeBlocking(done -> {
+      long start = System.nanoTime();
+      try {
+        journal.sync(append(entry));
+        metrics.histogram("deliver_outbox_append_seconds", Metrics.labels("tenant", tenant))
+            .recordNanos(System.nanoTime() - start);
+        done.complete();
+      } catch (IOException e) {
+        logger.error("Could not journal " + method + " " + uri + ": " + e.getMessage());
+        done.fail(new CirculationException(500, "Could not journal " + method + " " + uri));
+      }
+    }, false, appended -> {
+      result.completer().handle(appended);
+      Context context = worker;
+      if (appended.succeeded() && context != null) {
+        context.runOnContext(now -> drain());
+      }
+    });
+    return result;
+  }
+
+  // The body of the undelivered write to uri, null if there is none
+  public synchronized String pending(String uri) {
+    JsonObject entry = pending.get(uri);
+    return entry == null ? null : entry.getString("body");
+  }
+
+  public synchronized int size() {
+    return pending.size();
+  }
+
+  public synchronized JsonObject metrics() {
+    long journalBytes;
+    try {
+      journalBytes = journal.size();
+    } catch (IOException e) {
+      journalBytes = -1;
+    }
+    return new JsonObject()
+        .put("journal", journal.getFile().getPath())
+        .put("journalBytes", journalBytes)
+        .put("pending", pending.size())
+        .put("appended", appended.get())
+        .put("sent", sent.get())
+        .put("retries", retries.get())
+        .put("dropped", dropped.get())
+        .put("failuresInRow", failuresInRow)
+        .put("nextAttempt", nextAttempt);
+  }
+
+  private synchronized long append(JsonObject entry) throws IOException {
+    entry.put(SEQ, ++seq);
+    long end = journal.append(entry);
+    pending.remove(entry.getString("uri"));
+    pending.put(entry.getString("uri"), entry);
+    appended.incrementAndGet();
+    pendingChanged();
+    return end;
+  }
+
+  private void replay() throws IOException {
+    Map<Long, String> uris = new HashMap<>();
+    for (JsonObject record : journal.read()) {
+      if (record.containsKey(DONE)) {
+        String uri = uris.get(record.getLong(DONE));
+        JsonObject latest = uri == null ? null : pending.get(uri);
+        if (latest != null && latest.getLong(SEQ).equals(record.getLong(DONE))) {
+          pending.remove(uri);
+        }
+      } else {
+        uris.put(record.getLong(SEQ), record.getString("uri"));
+        pending.remove(record.getString("uri"));
+        pending.put(record.getString("uri"), record);
+        seq = Math.max(seq, record.getLong(SEQ));
+      }
+    }
+    if (pending.isEmpty()) {
+      journal.truncate();
+    } else {
+      compact();
+    }
+    pendingChanged();
+    if (!pending.isEmpty()) {
+      logger.info("Outbox " + journal.getFile() + " replays " + pending.size() + " undelivered writes");
+    }
+  }
+
+  private void drain() {
+    if (draining || closed || System.currentTimeMillis() < nextAttempt) {
+      return;
+    }
+    List<JsonObject> batch;
+    synchronized (this) {
+      batch = pending.values().stream().limit(batchSize).collect(Collectors.toList());
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    draining = true;
+    Futures.settleAll(batch, fanOut, this::send).setHandler(outcomes -> {
+      List<JsonObject> delivered = new ArrayList<>();
+      boolean failed = false;
+      for (int i = 0; i < batch.size(); i++) {
+        AsyncResult<Void> outcome = outcomes.result().get(i);
+        if (outcome.succeeded()) {
+          delivered.add(batch.get(i));
+          sent.incrementAndGet();
+          metrics.counter("deliver_outbox_sent_total", Metrics.labels("tenant", tenant)).increment();
+        } else if (rejected(outcome.cause())) {
+          logger.error("Data API rejected journaled " + batch.get(i).getString("method") + " "
+              + batch.get(i).getString("uri") + ", dropping it: " + outcome.cause().getMessage());
+          delivered.add(batch.get(i));
+          dropped.incrementAndGet();
+          metrics.counter("deliver_outbox_dropped_total", Metrics.labels("tenant", tenant)).increment();
+        } else {
+          failed = true;
+        }
+      }
+      boolean backOff = failed;
+      if (backOff) {
+        failuresInRow++;
+        nextAttempt = System.currentTimeMillis() + Math.min(retryMax, retryInitial << Math.min(failuresInRow - 1, 20));
+        retries.incrementAndGet();
+        metrics.counter("deliver_outbox_retries_total", Metrics.labels("tenant", tenant)).increment();
+      } else {
+        failuresInRow = 0;
+      }
+      vertx.<Void>executeBlocking(done -> {
+        try {
+          markDelivered(delivered);
+          done.complete();
+        } catch (IOException e) {
+          done.fail(e);
+        }
+      }, false, marked -> {
+        if (marked.failed()) {
+          logger.error("Outbox " + journal.getFile() + " could not note deliveries: " + marked.cause().getMessage());
+        }
+        draining = false;
+        if (!backOff && size() > 0) {
+          drain();
+        }
+      });
+    });
+  }
+
+  private Future<Void> send(JsonObject entry) {
+    Future<Void> result = Future.future();
+    HttpClientRequest request = client.request(HttpMethod.valueOf(entry.getString("method")), entry.getString("uri"),
+        response -> {
+          if (response.statusCode() / 100 == 2) {
+            result.complete();
+          } else {
+            result.fail(new CirculationException(response.statusCode(), "Data API answered "
+                + response.statusCode()));
+          }
+        }, result::fail);
+    if (entry.containsKey("requestId")) {
+      request.putHeader(DataApiClient.REQUEST_ID, entry.getString("requestId"));
+    }
+    request.end(entry.getString("body"));
+    return result;
+  }
+
+  // Client errors will not go away by sending the same write again
+  private static boolean rejected(Throwable cause) {
+    if (!(cause instanceof CirculationException)) {
+      return false;
+    }
+    int status = ((CirculationException) cause).getStatusCode();
+    return status / 100 == 4 && status != 408 && status != 429;
+  }
+
+  // Notes writes as delivered; the journal is compacted once it grew too big.
+  // Not forced: after a crash a delivered write is sent once more, which a PUT allows.
+  private synchronized void markDelivered(List<JsonObject> delivered) throws IOException {
+    if (closed) {
+      return;
+    }
+    for (JsonObject entry : delivered) {
+      JsonObject latest = pending.get(entry.getString("uri"));
+      if (latest != null && latest.getLong(SEQ).equals(entry.getLong(SEQ))) {
+        pending.remove(entry.getString("uri"));
+      }
+      journal.append(new JsonObject().put(DONE, entry.getLong(SEQ)));
+    }
+    compact();
+    pendingChanged();
+  }
+
+  // Rewrites the journal with only the pending writes once it outgrew
+  // outbox.compact.size, and twice what the last compaction left, so that a
+  // large backlog is not rewritten with every delivery
+  private synchronized void compact() throws IOException {
+    long size = journal.size();
+    if (size <= compactSize || size <= 2 * compacted) {
+      return;
+    }
+    if (pending.isEmpty()) {
+      journal.truncate();
+    } else {
+      journal.rewrite(new ArrayList<>(pending.values()));
+    }
+    compacted = journal.size();
+    logger.info("Outbox " + journal.getFile() + " compacted from " + size + " to " + compacted + " bytes, "
+        + pending.size() + " writes pending");
+  }
+
+  private void pendingChanged() {
+    metrics.gauge("deliver_outbox_pending", Metrics.labels("tenant", tenant)).set(pending.size());
+  }
+
+}
@@ -0,0 +1,178 @@
+package hbz;
+
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import org.folio.rest.jaxrs.model.Loan;
+
+/**
+ * Courtesy and overdue notices for the open loans of one tenant, found in
+ * its {@link DueDateIndex} instead of by going through the loans of every
+ * patron. Every overdue.interval the notices due are taken from the index
+ * and published on {@link #NOTICES} in batches of overdue.notice.batch, as
+ * { "tenant" : ..., "notices" : [ { "loanId", "patronId", "itemId",
+ * "dueDate", "kind", "reminder" }, ... ] }, for whatever sends them on.
+ *
+ * When started, all open loans are read into the index page by page, in
+ * pages of overdue.scan.page, while lending goes on; with
+ * overdue.rescan.interval they are read again now and then to catch loans
+ * created or ended around this module. In a cluster every node keeps the
+ * whole index, but only the node that has been up longest publishes, see
+ * {@link Cluster#isSenior()}.
+ *
+ * One per tenant, shared by all verticle instances; the scans and the
+ * notices run on the event loop that started it.
+ */
+public class OverdueNotices {
+
+  public static final String NOTICES = "deliver.notices";
+
+  private final Vertx vertx;
+  private final JsonObject config;
+  private final Metrics metrics;
+  private final String tenant;
+  private final DueDateIndex index;
+  private final int batch;
+  private final int scanPage;
+
+  // only touched on the event loop that started the notices
+  private DataApiClient client;
+  private DataApi dataApi;
+  private BooleanSupplier sending;
+  private long noticeTimer = -1;
+  private long rescanTimer = -1;
+  private boolean started;
+  private boolean scanning;
+  // whether a scan got through all loans yet
+  private boolean scanned;
+  private volatile boolean closed;
+  private volatile JsonObject lastScan = new JsonObject();
+
+  private final Logger logger = LoggerFactory.getLogger("hbz-deliver-module");
+
+  public OverdueNotices(Vertx vertx, JsonObject config, Metrics metrics) {
+    this.vertx = vertx;
+    this.config = config;
+    this.tenant = config.getString("data.api.tenant", "hbz");
+    this.metrics = metrics.describe("deliver_notices_total", "Courtesy and overdue notices published, by tenant")
+        .describe("deliver_due_loans", "Open loans in the due date index, by tenant");
+    this.index = new DueDateIndex(config.getLong("overdue.bucket.seconds", 3600L),
+        config.getLong("overdue.courtesy.hours", 48L) * 3600, config.getLong("overdue.repeat.days", 7L) * 86400);
+    this.batch = Math.max(1, config.getInteger("overdue.notice.batch", 200));
+    this.scanPage = Math.max(1, config.getInteger("overdue.scan.page", 1000));
+  }
+
+  public DueDateIndex getIndex() {
+    return index;
+  }
+
+  // Starts the first scan and the notices on the calling verticle's event
+  // loop, through a data API built around a client of its own; sending tells
+  // whether this node publishes the notices. Later calls do nothing.
+  public synchronized void start(Function<DataApiClient, DataApi> dataApiFactory, BooleanSupplier sending) {
+    if (started || closed) {
+      return;
+    }
+    started = true;
+    client = new DataApiClient(vertx, config, metrics, "overdue");
+    dataApi = dataApiFactory.apply(client);
+    this.sending = sending;
+    noticeTimer = vertx.setPeriodic(config.getLong("overdue.interval", 60000L), tick -> notices());
+    long rescan = config.getLong("overdue.rescan.interval", 0L);
+    if (rescan > 0) {
+      rescanTimer = vertx.setPeriodic(rescan, tick -> scan());
+    }
+    scan();
+  }
+
+  public synchronized void close() {
+    closed = true;
+    if (started) {
+      vertx.cancelTimer(noticeTimer);
+      if (rescanTimer != -1) {
+        vertx.cancelTimer(rescanTimer);
+      }
+      try {
+        client.close();
+      } catch (IllegalStateException e) {
+        // closed along with the verticle instance that started it, which may be undeployed first
+      }
+    }
+  }
+
+  public JsonObject status() {
+    return new JsonObject().put("index", index.metrics()).put("lastScan", lastScan)
+        .put("sending", sending != null && sending.getAsBoolean());
+  }
+
+  private void scan() {
+    if (scanning || closed) {
+      return;
+    }
+    scanning = true;
+    index.startScan();
+    page(0, System.currentTimeMillis());
+  }
+
+  private void page(int offset, long scanStarted) {
+    dataApi.scanLoans(offset, scanPage).setHandler(page -> {
+      if (closed) {
+        return;
+      }
+      if (page.failed()) {
+        index.endScan(false);
+        scanning = false;
+        lastScan = new JsonObject().put("started", scanStarted).put("loans", offset)
+            .put("error", page.cause().getMessage());
+        logger.error("Scan of the loans of tenant " + tenant + " failed after " + offset + " loans, retried with "
+            + "the next notices: " + page.cause().getMessage());
+        return;
+      }
+      long now = System.currentTimeMillis() / 1000;
+      for (Loan loan : page.result()) {
+        index.scanned(loan, now);
+      }
+      int read = offset + page.result().size();
+      if (page.result().size() == scanPage) {
+        page(read, scanStarted);
+        return;
+      }
+      int dropped = index.endScan(true);
+      scanning = false;
+      scanned = true;
+      lastScan = new JsonObject().put("started", scanStarted).put("loans", read).put("dropped", dropped)
+          .put("ms", System.currentTimeMillis() - scanStarted);
+      logger.info("Scanned " + read + " loans of tenant " + tenant + " for due dates, " + dropped + " dropped");
+      notices();
+    });
+  }
+
+  private void notices() {
+    if (!scanned) {
+      scan();
+    }
+    long now = System.currentTimeMillis() / 1000;
+    boolean publishing = sending.getAsBoolean();
+    for (List<JsonObject> notices = index.poll(now, batch); !notices.isEmpty(); notices = index.poll(now, batch)) {
+      if (!publishing) {
+        // another node publishes them; this one only keeps its index in step
+        continue;
+      }
+      vertx.eventBus().publish(NOTICES, new JsonObject().put("tenant", tenant).put("notices", new JsonArray(notices)));
+      for (JsonObject notice : notices) {
+        metrics.counter("deliver_notices_total", Metrics.labels("tenant", tenant, "kind", notice.getString("kind")))
+            .increment();
+      }
+      logger.info("Published " + notices.size() + " notices of tenant " + tenant);
+    }
+    metrics.gauge("deliver_due_loans", Metrics.labels("tenant", tenant)).set(index.size());
+  }
+
+}
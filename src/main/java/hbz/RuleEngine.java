@@ -0,0 +1,240 @@
+package hbz;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.Patron;
+import org.kie.api.KieBase;
+import org.kie.api.KieServices;
+import org.kie.api.command.Command;
+import org.kie.api.command.KieCommands;
+import org.kie.api.runtime.ExecutionResults;
+import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.rule.FactHandle;
+
+/**
+ * Evaluates the loan rules against the live KieBase of the rule repository.
+ * Every evaluation runs in its own stateless session on a Vert.x worker
+ * thread, so rule firing never blocks the event loop.
+ *
+ * The decision table of the repository is asked first. A loan one of its
+ * rules permits is answered right away, without a session or a worker
+ * thread; Drools only sees the loans the table does not permit, and only if
+ * the {@link RuleOutcomes} of the live rules do not know the outcome for
+ * patrons and items like these yet.
+ */
+public class RuleEngine {
+
+  private static final String FIRED = "fired";
+
+  private final Vertx vertx;
+  private final KieCommands commands;
+  private final RuleRepository ruleRepository;
+  private final Metrics metrics;
+
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong evaluations = new AtomicLong();
+  private final AtomicLong permitted = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong rulesFired = new AtomicLong();
+  private final AtomicLong tableHits = new AtomicLong();
+  private final AtomicLong outcomeHits = new AtomicLong();
+  private final AtomicLong queuedNanos = new AtomicLong();
+  private final AtomicLong executionNanos = new AtomicLong();
+  private final AtomicLong maxExecutionNanos = new AtomicLong();
+
+  public RuleEngine(Vertx vertx, RuleRepository ruleRepository, Metrics metrics) {
+    this.vertx = vertx;
+    this.ruleRepository = ruleRepository;
+    this.metrics = metrics.describe("deliver_rule_queue_seconds", "Wait for a worker thread before rule evaluation")
+        .describe("deliver_rule_evaluation_seconds", "Time spent firing the loan rules, single or batch")
+        .describe("deliver_rules_fired_total", "Rule activations fired")
+        .describe("deliver_rule_evaluations_total", "Loan permissions evaluated, by outcome")
+        .describe("deliver_rule_table_hits_total", "Loans permitted by the decision table, without Drools")
+        .describe("deliver_rule_outcome_hits_total", "Loans decided by a remembered outcome, without Drools");
+    commands = KieServices.Factory.get().getCommands();
+  }
+
+  public Future<LoanPermission> evaluate(Patron patron, Item item) {
+    if (ruleRepository.getDecisionTable().permits(patron, item)) {
+      return Future.succeededFuture(permittedByTable(1).get(0));
+    }
+    RuleOutcomes outcomes = ruleRepository.getOutcomes();
+    List<Object> key = outcomes.keyOf(patron, item);
+    Boolean known = outcomes.get(key);
+    if (known != null) {
+      return Future.succeededFuture(remembered(known));
+    }
+    return Futures.map(run("single", outcomes, kieBase -> {
+      LoanPermission loanPermission = new LoanPermission();
+      List<Command<?>> batch = Arrays.asList(
+          commands.newInsertElements(Arrays.asList(patron, item, loanPermission)),
+          commands.newFireAllRules(FIRED));
+      ExecutionResults results = kieBase.newStatelessKieSession().execute(commands.newBatchExecution(batch));
+      fired((Integer) results.getValue(FIRED));
+      return Collections.singletonList(loanPermission);
+    }), permissions -> {
+      outcomes.put(key, permissions.get(0).isPermitted());
+      return permissions.get(0);
+    });
+  }
+
+  // Evaluates one patron against many items in a single session. The patron
+  // is inserted once; every item is inserted together with its own
+  // LoanPermission, the rules are fired and both facts are deleted again
+  // before the next item, so a permission never leaks to another item.
+  public Future<List<LoanPermission>> evaluateAll(Patron patron, List<Item> items) {
+    DecisionTable table = ruleRepository.getDecisionTable();
+    RuleOutcomes outcomes = ruleRepository.getOutcomes();
+    List<LoanPermission> permissions = new ArrayList<>(Collections.nCopies(items.size(), null));
+    List<Item> undecided = new ArrayList<>();
+    List<List<Object>> keys = new ArrayList<>();
+    for (int i = 0; i < items.size(); i++) {
+      if (table.permits(patron, items.get(i))) {
+        permissions.set(i, permittedByTable(1).get(0));
+        continue;
+      }
+      List<Object> key = outcomes.keyOf(patron, items.get(i));
+      Boolean known = outcomes.get(key);
+      if (known != null) {
+        permissions.set(i, remembered(known));
+      } else {
+        undecided.add(items.get(i));
+        keys.add(key);
+      }
+    }
+    if (undecided.isEmpty()) {
+      return Future.succeededFuture(permissions);
+    }
+    return Futures.map(evaluateInSession(patron, undecided, outcomes), byDrools -> {
+      Iterator<LoanPermission> fromDrools = byDrools.iterator();
+      for (int i = 0; i < permissions.size(); i++) {
+        if (permissions.get(i) == null) {
+          permissions.set(i, fromDrools.next());
+        }
+      }
+      for (int i = 0; i < keys.size(); i++) {
+        outcomes.put(keys.get(i), byDrools.get(i).isPermitted());
+      }
+      return permissions;
+    });
+  }
+
+  private Future<List<LoanPermission>> evaluateInSession(Patron patron, List<Item> items, RuleOutcomes outcomes) {
+    return run("batch", outcomes, kieBase -> {
+      List<LoanPermission> permissions = new ArrayList<>();
+      KieSession kSession = kieBase.newKieSession();
+      try {
+        kSession.insert(patron);
+        for (Item item : items) {
+          LoanPermission loanPermission = new LoanPermission();
+          FactHandle itemHandle = kSession.insert(item);
+          FactHandle permissionHandle = kSession.insert(loanPermission);
+          fired(kSession.fireAllRules());
+          kSession.delete(itemHandle);
+          kSession.delete(permissionHandle);
+          permissions.add(loanPermission);
+        }
+      } finally {
+        kSession.dispose();
+      }
+      return permissions;
+    });
+  }
+
+  // Runs an evaluation on a worker thread, against the rules the outcomes are for
+  private Future<List<LoanPermission>> run(String kind, RuleOutcomes outcomes,
+      Function<KieBase, List<LoanPermission>> evaluation) {
+    Future<List<LoanPermission>> result = Future.future();
+    final long submitted = System.nanoTime();
+    vertx.<List<LoanPermission>>executeBlocking(future -> {
+      long started = System.nanoTime();
+      queuedNanos.addAndGet(started - submitted);
+      metrics.histogram("deliver_rule_queue_seconds", "").recordNanos(started - submitted);
+      List<LoanPermission> permissions = evaluation.apply(outcomes.getKieBase());
+      long took = System.nanoTime() - started;
+      executionNanos.addAndGet(took);
+      maxExecutionNanos.accumulateAndGet(took, Math::max);
+      metrics.histogram("deliver_rule_evaluation_seconds", Metrics.labels("kind", kind)).recordNanos(took);
+      future.complete(permissions);
+    }, false, done -> {
+      runs.incrementAndGet();
+      if (done.failed()) {
+        failures.incrementAndGet();
+        result.fail(done.cause());
+      } else {
+        for (LoanPermission loanPermission : done.result()) {
+          evaluations.incrementAndGet();
+          if (loanPermission.isPermitted()) {
+            permitted.incrementAndGet();
+          }
+          metrics.counter("deliver_rule_evaluations_total",
+              Metrics.labels("outcome", loanPermission.isPermitted() ? "permitted" : "refused")).increment();
+        }
+        result.complete(done.result());
+      }
+    });
+    return result;
+  }
+
+  private List<LoanPermission> permittedByTable(int count) {
+    List<LoanPermission> permissions = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      LoanPermission loanPermission = new LoanPermission();
+      loanPermission.setPermitted(true);
+      permissions.add(loanPermission);
+    }
+    evaluations.addAndGet(count);
+    permitted.addAndGet(count);
+    tableHits.addAndGet(count);
+    metrics.counter("deliver_rule_evaluations_total", Metrics.labels("outcome", "permitted")).add(count);
+    metrics.counter("deliver_rule_table_hits_total", "").add(count);
+    return permissions;
+  }
+
+  private LoanPermission remembered(boolean permitted) {
+    LoanPermission loanPermission = new LoanPermission();
+    loanPermission.setPermitted(permitted);
+    evaluations.incrementAndGet();
+    if (permitted) {
+      this.permitted.incrementAndGet();
+    }
+    outcomeHits.incrementAndGet();
+    metrics.counter("deliver_rule_evaluations_total",
+        Metrics.labels("outcome", permitted ? "permitted" : "refused")).increment();
+    metrics.counter("deliver_rule_outcome_hits_total", "").increment();
+    return loanPermission;
+  }
+
+  private void fired(int count) {
+    rulesFired.addAndGet(count);
+    metrics.counter("deliver_rules_fired_total", "").add(count);
+  }
+
+  public JsonObject metrics() {
+    long count = runs.get();
+    return new JsonObject()
+        .put("runs", count)
+        .put("evaluations", evaluations.get())
+        .put("permitted", permitted.get())
+        .put("failures", failures.get())
+        .put("rulesFired", rulesFired.get())
+        .put("tableHits", tableHits.get())
+        .put("outcomeHits", outcomeHits.get())
+        .put("outcomes", ruleRepository.getOutcomes().metrics())
+        .put("avgQueuedMs", count == 0 ? 0.0 : queuedNanos.get() / 1e6 / count)
+        .put("avgExecutionMs", count == 0 ? 0.0 : executionNanos.get() / 1e6 / count)
+        .put("maxExecutionMs", maxExecutionNanos.get() / 1e6);
+  }
+
+}
@@ -0,0 +1,249 @@
+package hbz;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import org.drools.core.base.ClassObjectType;
+import org.drools.core.definitions.rule.impl.RuleImpl;
+import org.drools.core.impl.InternalKnowledgeBase;
+import org.drools.core.reteoo.PropertySpecificUtil;
+import org.drools.core.rule.Declaration;
+import org.drools.core.rule.GroupElement;
+import org.drools.core.rule.Pattern;
+import org.drools.core.rule.RuleConditionElement;
+import org.drools.core.rule.constraint.MvelConstraint;
+import org.drools.core.spi.Constraint;
+import org.drools.core.util.bitmask.BitMask;
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.Patron;
+import org.kie.api.KieBase;
+import org.kie.api.definition.KiePackage;
+import org.kie.api.definition.rule.Rule;
+
+/**
+ * The outcomes of one KieBase, remembered by the patron and item attributes
+ * its rules look at. Which attributes those are is read from the compiled
+ * conditions once, when the KieBase goes live: a loan of two patrons and
+ * items that agree in every one of them gets the same permission, so Drools
+ * only runs for combinations it has not seen yet. The combinations used
+ * least recently make room for new ones. A new KieBase gets a new, empty
+ * instance, which is how a rule change invalidates everything.
+ *
+ * Conditions the analysis cannot follow (eval, from, accumulate, forall,
+ * patterns on other types, constraints other than MVEL ones) switch
+ * remembering off for the whole KieBase. The analysis reads the compiled
+ * rules through internal Drools classes; if they are not what it expects,
+ * e.g. with another Drools version, remembering is off as well.
+ * The same analysis tells which fields of a patron have to be bound at all,
+ * see {@link #getPatronFields()}.
+ * Consequences are expected to set the permission only, as the rules the rule
+ * editor writes do, and are not looked at.
+ *
+ * Shared by all verticle instances of a tenant.
+ */
+public class RuleOutcomes {
+
+  // read outside of the rules: by the decision table, and the id by the logs
+  private static final List<String> PATRON_PROPERTIES = Arrays.asList("id", "status", "type");
+
+  private final KieBase kieBase;
+  private final int maxSize;
+  private final List<Method> patronAttributes = new ArrayList<>();
+  private final List<Method> itemAttributes = new ArrayList<>();
+  // bean properties of the patron anything reads
+  private final Set<String> patronRead = new HashSet<>(PATRON_PROPERTIES);
+  private final boolean enabled;
+  private final Set<String> patronFields;
+  // by the JSON of the key
+  private final LruCache<Boolean> outcomes;
+
+  public RuleOutcomes(KieBase kieBase, int maxSize) {
+    this.kieBase = kieBase;
+    this.maxSize = maxSize;
+    outcomes = new LruCache<>(maxSize);
+    boolean understood;
+    try {
+      understood = analyze();
+    } catch (RuntimeException | LinkageError | IntrospectionException e) {
+      // internal Drools API of another version, fall back to always running the rules
+      understood = false;
+    }
+    enabled = understood && maxSize > 0;
+    patronFields = understood ? Collections.unmodifiableSet(Codec.PATRON.jsonNames(patronRead)) : null;
+  }
+
+  public KieBase getKieBase() {
+    return kieBase;
+  }
+
+  // The JSON fields of a patron the rules and the circulation flows read, null
+  // if the rules could not be analyzed and every field may matter
+  public Set<String> getPatronFields() {
+    return patronFields;
+  }
+
+  // The attributes of patron and item the rules look at, null if outcomes are
+  // not remembered for this KieBase
+  public List<Object> keyOf(Patron patron, Item item) {
+    if (!enabled) {
+      return null;
+    }
+    List<Object> key = new ArrayList<>(patronAttributes.size() + itemAttributes.size());
+    read(patron, patronAttributes, key);
+    read(item, itemAttributes, key);
+    return key;
+  }
+
+  // the permission for key, null if not known yet
+  public Boolean get(List<Object> key) {
+    if (key == null) {
+      return null;
+    }
+    return outcomes.get(Json.encode(key));
+  }
+
+  // Once full, the combination used least recently is forgotten
+  public void put(List<Object> key, boolean permitted) {
+    if (key != null) {
+      outcomes.put(Json.encode(key), permitted);
+    }
+  }
+
+  private boolean analyze() throws IntrospectionException {
+    BitSet patron = new BitSet();
+    BitSet item = new BitSet();
+    InternalKnowledgeBase base = (InternalKnowledgeBase) kieBase;
+    List<String> patronProperties = PropertySpecificUtil.getSettableProperties(base, Patron.class);
+    List<String> itemProperties = PropertySpecificUtil.getSettableProperties(base, Item.class);
+    for (KiePackage kiePackage : kieBase.getKiePackages()) {
+      for (Rule rule : kiePackage.getRules()) {
+        if (!collect(((RuleImpl) rule).getLhs(), base, patron, item)) {
+          return false;
+        }
+      }
+    }
+    for (int i = patron.nextSetBit(0); i >= 0; i = patron.nextSetBit(i + 1)) {
+      patronRead.add(patronProperties.get(i));
+    }
+    getters(Patron.class, patronProperties, patron, patronAttributes);
+    getters(Item.class, itemProperties, item, itemAttributes);
+    return true;
+  }
+
+  // Marks the properties the conditions read, by their index in the settable
+  // properties Drools knows of the type; false if a condition cannot be followed
+  static boolean collect(RuleConditionElement element, InternalKnowledgeBase base, BitSet patron,
+      BitSet item) {
+    if (element instanceof GroupElement) {
+      for (RuleConditionElement child : ((GroupElement) element).getChildren()) {
+        if (!collect(child, base, patron, item)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (!(element instanceof Pattern) || !(((Pattern) element).getObjectType() instanceof ClassObjectType)) {
+      return false;
+    }
+    Pattern pattern = (Pattern) element;
+    Class<?> type = ((ClassObjectType) pattern.getObjectType()).getClassType();
+    if (type == LoanPermission.class) {
+      return true;
+    }
+    BitSet read = type == Patron.class ? patron : type == Item.class ? item : null;
+    if (read == null) {
+      return false;
+    }
+    List<String> properties = PropertySpecificUtil.getSettableProperties(base, type);
+    // bindings of single attributes may be used anywhere, e.g. in other patterns
+    if (pattern.getDeclarations().size() > (pattern.getDeclaration() == null ? 0 : 1)) {
+      read.set(0, properties.size());
+    }
+    for (Constraint constraint : pattern.getConstraints()) {
+      if (!(constraint instanceof MvelConstraint)) {
+        return false;
+      }
+      BitMask mask = ((MvelConstraint) constraint).getListenedPropertyMask(properties);
+      if (mask.isAllSet()) {
+        read.set(0, properties.size());
+      }
+      for (int i = 0; i < properties.size(); i++) {
+        if (mask.isSet(i + PropertySpecificUtil.CUSTOM_BITS_OFFSET)) {
+          read.set(i);
+        }
+      }
+      // what a constraint reads of other patterns is not in its mask
+      for (Declaration declaration : constraint.getRequiredDeclarations()) {
+        Class<?> other = ((ClassObjectType) declaration.getPattern().getObjectType()).getClassType();
+        if (other == Patron.class) {
+          patron.set(0, PropertySpecificUtil.getSettableProperties(base, other).size());
+        } else if (other == Item.class) {
+          item.set(0, PropertySpecificUtil.getSettableProperties(base, other).size());
+        } else if (other != LoanPermission.class) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static void getters(Class<?> type, List<String> properties, BitSet read, List<Method> getters)
+      throws IntrospectionException {
+    PropertyDescriptor[] descriptors = Introspector.getBeanInfo(type).getPropertyDescriptors();
+    for (int i = read.nextSetBit(0); i >= 0; i = read.nextSetBit(i + 1)) {
+      String property = properties.get(i);
+      Method getter = Arrays.stream(descriptors).filter(descriptor -> descriptor.getName().equals(property))
+          .map(PropertyDescriptor::getReadMethod).findFirst().orElse(null);
+      if (getter == null) {
+        throw new IllegalStateException("No getter for " + type.getSimpleName() + "." + property);
+      }
+      getters.add(getter);
+    }
+  }
+
+  // Values that are not plain compare by their JSON, e.g. the item status
+  private static void read(Object fact, List<Method> getters, List<Object> key) {
+    for (Method getter : getters) {
+      Object value;
+      try {
+        value = getter.invoke(fact);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        throw new IllegalStateException("Cannot read " + getter.getName() + " of " + fact.getClass(), e);
+      }
+      boolean plain = value == null || value instanceof String || value instanceof Number
+          || value instanceof Boolean || value instanceof Enum;
+      key.add(plain ? value : Json.encode(value));
+    }
+  }
+
+  public JsonObject metrics() {
+    JsonArray attributes = new JsonArray();
+    patronAttributes.forEach(getter -> attributes.add("Patron." + getter.getName()));
+    itemAttributes.forEach(getter -> attributes.add("Item." + getter.getName()));
+    JsonObject cache = outcomes.metrics();
+    return new JsonObject()
+        .put("enabled", enabled)
+        .put("attributes", attributes)
+        .put("patronFields", patronFields == null ? null : new JsonArray(new ArrayList<>(patronFields)))
+        .put("size", cache.getInteger("size"))
+        .put("maxSize", maxSize)
+        .put("hits", cache.getLong("hits"))
+        .put("misses", cache.getLong("misses"))
+        .put("evictions", cache.getLong("evictions"));
+  }
+
+}
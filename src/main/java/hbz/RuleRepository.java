@@ -0,0 +1,291 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import org.kie.api.KieBase;
+import org.kie.api.KieServices;
+import org.kie.api.builder.KieBuilder;
+import org.kie.api.builder.KieFileSystem;
+import org.kie.api.builder.Message;
+import org.kie.api.builder.ReleaseId;
+
+/**
+ * Keeps the live rule base in step with the .drl files in rules.folder. The
+ * folder is scanned periodically; when files were added, changed or removed
+ * only those are rewritten into the rule file system and the rule base is
+ * rebuilt on a worker thread. The new KieBase replaces the live one only if it
+ * compiled without errors, otherwise the errors are kept for the status
+ * endpoint and the previous rules stay in use.
+ *
+ * Simple rules stored as Rule JSON (*.rule.json) are not compiled by Drools
+ * but into a {@link DecisionTable}, which is replaced on the same terms.
+ * Every KieBase comes with its own {@link RuleOutcomes}, so outcomes
+ * remembered for the previous rules are dropped along with them.
+ */
+public class RuleRepository {
+
+  private static final String RULES_PATH = "src/main/resources/rules/";
+  private static final String FOLDER_PATH = RULES_PATH + "folder/";
+  private static final AtomicInteger repositories = new AtomicInteger();
+  private static final String CLASSPATH_RULES = "rules/circulation.drl";
+  public static final String DRL = ".drl";
+  public static final String RULE_JSON = ".rule.json";
+  // names the rule editor turns into file names: letters, digits, spaces, "-" and "_"
+  public static final Pattern RULE_NAME = Pattern.compile("[\\p{L}\\p{N} _-]{1,100}");
+
+  private final Vertx vertx;
+  private final File folder;
+  private final KieServices kieServices = KieServices.Factory.get();
+  private final KieFileSystem kieFileSystem = kieServices.newKieFileSystem();
+  private final Map<String, Long> stamps = new HashMap<>();
+  private final String artifactId = "deliver-rules-" + repositories.incrementAndGet();
+  private final int outcomesSize;
+
+  private volatile RuleOutcomes outcomes;
+  private volatile DecisionTable decisionTable = new DecisionTable(new ArrayList<>());
+  private JsonArray kieErrors = new JsonArray();
+  private volatile JsonObject status = new JsonObject();
+  private ReleaseId releaseId;
+  private int version;
+  private long timerId = -1;
+
+  private final Logger logger = LoggerFactory.getLogger("hbz-deliver-module");
+
+  public RuleRepository(Vertx vertx, String folder) {
+    this(vertx, folder, 1000);
+  }
+
+  // Compiles the classpath rules and everything already in the folder; do not call it on an event loop.
+  // Remembers up to outcomesSize outcomes of the live rules, none if 0.
+  public RuleRepository(Vertx vertx, String folder, int outcomesSize) {
+    this.vertx = vertx;
+    this.folder = new File(folder);
+    this.outcomesSize = outcomesSize;
+    kieFileSystem.write(RULES_PATH + "circulation.drl",
+        kieServices.getResources().newClassPathResource(CLASSPATH_RULES));
+    scan();
+    if (outcomes == null) {
+      throw new IllegalStateException("Rules could not be compiled: " + status.getJsonArray("errors").encode());
+    }
+  }
+
+  public KieBase getKieBase() {
+    return outcomes.getKieBase();
+  }
+
+  // the live KieBase and the outcomes remembered for it
+  public RuleOutcomes getOutcomes() {
+    return outcomes;
+  }
+
+  public DecisionTable getDecisionTable() {
+    return decisionTable;
+  }
+
+  public String getFolder() {
+    return folder.getPath();
+  }
+
+  public JsonObject getStatus() {
+    return status;
+  }
+
+  public void startWatching(long interval) {
+    timerId = vertx.setPeriodic(interval, timer -> refresh());
+  }
+
+  public void stopWatching() {
+    if (timerId != -1) {
+      vertx.cancelTimer(timerId);
+    }
+  }
+
+  // Rescans the folder right away, e.g. after a rule file has been written.
+  // Completes with true if the live rule base compiles, with false if the
+  // current folder content has errors.
+  public Future<Boolean> refresh() {
+    Future<Boolean> result = Future.future();
+    vertx.<Boolean>executeBlocking(future -> future.complete(scan()), true, result.completer());
+    return result;
+  }
+
+  private synchronized boolean scan() {
+    Map<String, Long> current = new HashMap<>();
+    File[] files = folder.listFiles((dir, name) -> name.endsWith(DRL) || name.endsWith(RULE_JSON));
+    if (files != null) {
+      for (File file : files) {
+        current.put(file.getName(), file.lastModified() * 31 + file.length());
+      }
+    }
+    if (outcomes != null && current.equals(stamps)) {
+      return status.getJsonArray("errors").isEmpty();
+    }
+
+    boolean drlChanged = outcomes == null;
+    Set<String> removed = new HashSet<>(stamps.keySet());
+    removed.removeAll(current.keySet());
+    for (String name : removed) {
+      if (name.endsWith(DRL)) {
+        kieFileSystem.delete(FOLDER_PATH + name);
+        drlChanged = true;
+      }
+      logger.info("Rule file removed: " + name);
+    }
+    Set<String> unreadable = new HashSet<>();
+    for (Map.Entry<String, Long> file : current.entrySet()) {
+      if (file.getKey().endsWith(DRL) && !file.getValue().equals(stamps.get(file.getKey()))) {
+        try {
+          byte[] content = Files.readAllBytes(new File(folder, file.getKey()).toPath());
+          kieFileSystem.write(FOLDER_PATH + file.getKey(), content);
+          drlChanged = true;
+          logger.info("Rule file changed: " + file.getKey());
+        } catch (IOException e) {
+          // picked up again on the next scan
+          logger.error("Could not read rule file " + file.getKey(), e);
+          unreadable.add(file.getKey());
+        }
+      }
+    }
+    current.keySet().removeAll(unreadable);
+    stamps.clear();
+    stamps.putAll(current);
+    return build(drlChanged);
+  }
+
+  // Reads all Rule JSON files; the table is rebuilt from scratch, it is cheap
+  private DecisionTable compileTable(JsonArray errors) {
+    List<Rule> rules = new ArrayList<>();
+    for (String name : stamps.keySet()) {
+      if (name.endsWith(RULE_JSON)) {
+        try {
+          rules.add(Json.decodeValue(new String(Files.readAllBytes(new File(folder, name).toPath()), "UTF-8"),
+              Rule.class));
+        } catch (IOException | DecodeException e) {
+          errors.add(new JsonObject().put("file", name).put("line", 0).put("message", e.getMessage()));
+        }
+      }
+    }
+    return new DecisionTable(rules);
+  }
+
+  private boolean build(boolean drlChanged) {
+    long started = System.currentTimeMillis();
+    if (drlChanged) {
+      buildKieBase();
+    }
+    JsonArray tableErrors = new JsonArray();
+    DecisionTable nextTable = compileTable(tableErrors);
+    if (tableErrors.isEmpty()) {
+      decisionTable = nextTable;
+    } else {
+      logger.error("Rule JSON in " + folder + " does not load, keeping the previous table: " + tableErrors.encode());
+    }
+    JsonArray errors = kieErrors.copy().addAll(tableErrors);
+    status = new JsonObject().put("folder", folder.getPath())
+        .put("files", new JsonArray(stamps.keySet().stream().sorted().collect(Collectors.toList())))
+        .put("compiledAt", started).put("compileMs", System.currentTimeMillis() - started).put("errors", errors)
+        .put("version", releaseId == null ? null : releaseId.getVersion())
+        .put("tableRules", decisionTable.size());
+    return errors.isEmpty();
+  }
+
+  private void buildKieBase() {
+    ReleaseId nextReleaseId = kieServices.newReleaseId("hbz", artifactId, "1.0." + (++version));
+    kieFileSystem.generateAndWritePomXML(nextReleaseId);
+    KieBuilder kieBuilder = kieServices.newKieBuilder(kieFileSystem).buildAll();
+    JsonArray errors = new JsonArray();
+    for (Message message : kieBuilder.getResults().getMessages(Message.Level.ERROR)) {
+      errors.add(new JsonObject().put("file", message.getPath()).put("line", message.getLine())
+          .put("message", message.getText()));
+    }
+    if (errors.isEmpty()) {
+      outcomes = new RuleOutcomes(kieServices.newKieContainer(nextReleaseId).getKieBase(), outcomesSize);
+      if (releaseId != null) {
+        kieServices.getRepository().removeKieModule(releaseId);
+      }
+      releaseId = nextReleaseId;
+      logger.info("Rule base " + releaseId.getVersion() + " is live");
+    } else {
+      kieServices.getRepository().removeKieModule(nextReleaseId);
+      logger.error("Rules in " + folder + " do not compile, keeping the previous rule base: " + errors.encode());
+    }
+    kieErrors = errors;
+  }
+
+  // The DRL the rule editor writes for a Rule; attributes that are not set
+  // are left out, so they match anything, as in the decision table. Name and
+  // values are string literals, whatever characters they hold.
+  public static String toDrl(Rule rule) {
+    StringBuilder stringBuilder = new StringBuilder();
+    stringBuilder.append("package rules;\n");
+    stringBuilder.append("import org.folio.rest.jaxrs.model.Patron;\n");
+    stringBuilder.append("import org.folio.rest.jaxrs.model.Item;\n");
+    stringBuilder.append("import hbz.LoanPermission;\n\n");
+    stringBuilder.append("rule " + literal(rule.getRuleName()) + "\n");
+    stringBuilder.append("when\n");
+    stringBuilder.append("$p : Patron(" + conditions("getStatus()", rule.getPatronStatus(), "getType()",
+        rule.getPatronType()) + ")\n");
+    stringBuilder.append("$i : Item(" + conditions("getItemStatus().getValue()", rule.getItemStatus(), "getType()",
+        rule.getItemType()) + ")\n");
+    stringBuilder.append("$l : LoanPermission()\n");
+    stringBuilder.append("then\n");
+    stringBuilder.append("$l.setPermitted(true);\n");
+    stringBuilder.append("end");
+    return stringBuilder.toString();
+  }
+
+  private static String conditions(String... accessorsAndValues) {
+    List<String> conditions = new ArrayList<>();
+    for (int i = 0; i + 1 < accessorsAndValues.length; i += 2) {
+      String value = accessorsAndValues[i + 1];
+      if (value != null && !value.isEmpty()) {
+        conditions.add(accessorsAndValues[i] + ".equals(" + literal(value) + ")");
+      }
+    }
+    return String.join(", ", conditions);
+  }
+
+  // value in double quotes with quotes, backslashes and line breaks escaped,
+  // as DRL and MVEL read string literals
+  private static String literal(String value) {
+    StringBuilder literal = new StringBuilder("\"");
+    for (char c : String.valueOf(value).toCharArray()) {
+      switch (c) {
+      case '"':
+      case '\\':
+        literal.append('\\').append(c);
+        break;
+      case '\n':
+        literal.append("\\n");
+        break;
+      case '\r':
+        literal.append("\\r");
+        break;
+      default:
+        literal.append(c);
+      }
+    }
+    return literal.append('"').toString();
+  }
+
+}
@@ -0,0 +1,64 @@
+package hbz;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * Resources built once per Vert.x instance and used by all verticle instances
+ * deployed in it, e.g. the compiled rules and the caches. The first instance
+ * asking for a name builds the resource, later ones get the same object; the
+ * factory can block, other names are not held up meanwhile. Everything shared
+ * this way has to be safe to use from several event loops.
+ */
+public final class Shared {
+
+  private static final String MAP = "deliver.shared";
+  private static final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+  private Shared() {
+  }
+
+  public static <T> T acquire(Vertx vertx, String name, Supplier<T> factory) {
+    LocalMap<String, Holder> resources = vertx.sharedData().getLocalMap(MAP);
+    synchronized (locks.computeIfAbsent(System.identityHashCode(vertx) + "/" + name, key -> new Object())) {
+      Holder holder = resources.get(name);
+      if (holder == null) {
+        holder = new Holder(factory.get());
+        resources.put(name, holder);
+      }
+      holder.users++;
+      @SuppressWarnings("unchecked")
+      T resource = (T) holder.resource;
+      return resource;
+    }
+  }
+
+  // Gives a resource back; true if that was its last user, who should then close it
+  public static boolean release(Vertx vertx, String name) {
+    LocalMap<String, Holder> resources = vertx.sharedData().getLocalMap(MAP);
+    synchronized (locks.computeIfAbsent(System.identityHashCode(vertx) + "/" + name, key -> new Object())) {
+      Holder holder = resources.get(name);
+      if (holder == null || --holder.users > 0) {
+        return false;
+      }
+      resources.remove(name);
+      return true;
+    }
+  }
+
+  private static class Holder implements Shareable {
+
+    private final Object resource;
+    private int users;
+
+    Holder(Object resource) {
+      this.resource = resource;
+    }
+  }
+
+}
@@ -0,0 +1,80 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The last version of every patron and item the module read from or wrote to
+ * the data API, by URI, to lend from while the data API is unavailable. Unlike
+ * the caches its entries do not expire, an old copy is better than none; the
+ * least recently used entries make room once maxSize is reached. It is saved
+ * to a file now and then and loaded from it on start, so it also covers a
+ * restart during an outage. Safe to share between threads.
+ */
+public class Snapshot {
+
+  private final File file;
+  private final int maxSize;
+  private final LinkedHashMap<String, String> entries;
+  private boolean changed;
+
+  // Loads the last saved snapshot, if there is one; do not call it on an event loop
+  public Snapshot(File file, int maxSize) throws IOException {
+    this.file = file;
+    this.maxSize = maxSize;
+    entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > Snapshot.this.maxSize;
+      }
+    };
+    if (file.exists()) {
+      try {
+        JsonObject saved = new JsonObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        saved.forEach(entry -> entries.put(entry.getKey(), (String) entry.getValue()));
+      } catch (DecodeException | ClassCastException e) {
+        // half written by a crash; the next reads fill it again
+      }
+    }
+  }
+
+  public synchronized void put(String uri, String json) {
+    entries.put(uri, json);
+    changed = true;
+  }
+
+  public synchronized String get(String uri) {
+    return entries.get(uri);
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  // Writes the snapshot if it changed since the last save; blocks
+  public void save() throws IOException {
+    JsonObject copy = new JsonObject();
+    synchronized (this) {
+      if (!changed) {
+        return;
+      }
+      entries.forEach(copy::put);
+      changed = false;
+    }
+    File written = new File(file.getPath() + ".tmp");
+    Files.write(written.toPath(), copy.encode().getBytes(StandardCharsets.UTF_8));
+    Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+}
@@ -0,0 +1,121 @@
+package hbz;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * What one verticle instance keeps for one tenant: its own data API client
+ * and connection pool, the data API steps over its own caches, its rule base
+ * and its loan policies. The caches, the rule base and the policies are
+ * shared with the other instances, see {@link Tenants}.
+ */
+public class Tenant {
+
+  private final String id;
+  private final JsonObject config;
+  private final DataApiClient client;
+  private final DataApi dataApi;
+  private final RuleRepository ruleRepository;
+  private final RuleEngine ruleEngine;
+  private final LoanPolicies policies;
+  private final Outbox outbox;
+  private final OfflineCirculation offline;
+  private final OverdueNotices overdue;
+
+  private long lastUsed = System.currentTimeMillis();
+  private int active;
+
+  Tenant(String id, JsonObject config, DataApiClient client, DataApi dataApi, RuleRepository ruleRepository,
+      RuleEngine ruleEngine, LoanPolicies policies, Outbox outbox, OfflineCirculation offline,
+      OverdueNotices overdue) {
+    this.id = id;
+    this.config = config;
+    this.client = client;
+    this.dataApi = dataApi;
+    this.ruleRepository = ruleRepository;
+    this.ruleEngine = ruleEngine;
+    this.policies = policies;
+    this.outbox = outbox;
+    this.offline = offline;
+    this.overdue = overdue;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  // the module configuration with the tenant's own settings merged in
+  public JsonObject getConfig() {
+    return config;
+  }
+
+  public DataApiClient getClient() {
+    return client;
+  }
+
+  public DataApi getDataApi() {
+    return dataApi;
+  }
+
+  public RuleRepository getRuleRepository() {
+    return ruleRepository;
+  }
+
+  public RuleEngine getRuleEngine() {
+    return ruleEngine;
+  }
+
+  public LoanPolicies getPolicies() {
+    return policies;
+  }
+
+  // null unless outbox.folder is configured
+  public Outbox getOutbox() {
+    return outbox;
+  }
+
+  // null unless offline.folder is configured
+  public OfflineCirculation getOffline() {
+    return offline;
+  }
+
+  // null if overdue.enabled is false
+  public OverdueNotices getOverdue() {
+    return overdue;
+  }
+
+  // Called on the event loop of the owning instance only
+  void begin() {
+    active++;
+    lastUsed = System.currentTimeMillis();
+  }
+
+  void end() {
+    active--;
+    lastUsed = System.currentTimeMillis();
+  }
+
+  boolean isIdleSince(long time) {
+    return active == 0 && lastUsed < time;
+  }
+
+  long getLastUsed() {
+    return lastUsed;
+  }
+
+  public JsonObject metrics() {
+    JsonObject metrics = new JsonObject()
+        .put("rulesFolder", ruleRepository.getFolder())
+        .put("activeRequests", active)
+        .put("lastUsed", lastUsed)
+        .put("dataApi", client.metrics())
+        .put("cache", dataApi.cacheMetrics());
+    if (outbox != null) {
+      metrics.put("outbox", outbox.metrics());
+    }
+    if (overdue != null) {
+      metrics.put("dueDates", overdue.getIndex().metrics());
+    }
+    return metrics;
+  }
+
+}
@@ -0,0 +1,338 @@
+package hbz;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * The tenants one verticle instance has seen, loaded on their first request.
+ * Every tenant gets its own rule base from its own folder, rules.folder/id,
+ * its own patron and item caches and its own pool of data API connections,
+ * so a busy tenant can neither evict another one's cache entries nor take
+ * its connections. The rule base, the loan policies of the same folder, see
+ * {@link LoanPolicies}, and the caches are built once and shared by all
+ * instances; the connections belong to the instance.
+ *
+ * With outbox.folder set, item updates of a tenant go through its
+ * {@link Outbox}, journaled in outbox.folder/id.journal. With offline.folder
+ * set, a tenant can lend from its {@link Snapshot} while its data API is
+ * unavailable, see {@link OfflineCirculation}. Unless overdue.enabled is
+ * false, its open loans are kept in a due date index for notices, see
+ * {@link OverdueNotices}.
+ *
+ * The caches and rule bases are registered with the {@link Cluster}, so that
+ * writes and new rules on other nodes reach them.
+ *
+ * Settings can be overridden per tenant under "tenants" in the configuration,
+ * e.g. "tenants" : { "ubk" : { "data.api.pool.size" : 40 } }. Tenants without
+ * requests for tenants.idle.timeout are unloaded again, and at most
+ * tenants.max are kept per instance.
+ *
+ * Only used from the event loop of the owning instance.
+ */
+public class Tenants {
+
+  // Okapi tenant ids; they name folders and must not climb out of rules.folder
+  static final Pattern TENANT_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+  private final Vertx vertx;
+  private final JsonObject config;
+  private final Metrics metrics;
+  private final String defaultTenant;
+  private final int maxTenants;
+  private final long idleTimeout;
+  private final long evictionTimer;
+  private final Cluster cluster;
+
+  private final Map<String, Tenant> tenants = new HashMap<>();
+  // requests waiting for a tenant that is still being loaded
+  private final Map<String, List<Future<Tenant>>> loading = new HashMap<>();
+
+  private final Logger logger = LoggerFactory.getLogger("hbz-deliver-module");
+
+  public Tenants(Vertx vertx, JsonObject config, Metrics metrics) {
+    this.vertx = vertx;
+    this.config = config;
+    this.metrics = metrics.describe("deliver_tenants_loaded", "Tenants loaded, summed over the verticle instances")
+        .describe("deliver_tenant_evictions_total", "Tenants unloaded because they were idle or to make room");
+    defaultTenant = config.getString("data.api.tenant", "hbz");
+    maxTenants = config.getInteger("tenants.max", 100);
+    idleTimeout = config.getLong("tenants.idle.timeout", 600000L);
+    evictionTimer = vertx.setPeriodic(Math.max(1000, idleTimeout / 10), timer -> evictIdle());
+    cluster = Shared.acquire(vertx, "cluster", () -> new Cluster(vertx, config, this::rulesFolder));
+  }
+
+  public Cluster getCluster() {
+    return cluster;
+  }
+
+  // the tenant requests without X-Okapi-Tenant belong to, e.g. the screens opened directly
+  public String getDefaultTenant() {
+    return defaultTenant;
+  }
+
+  public Future<Tenant> get(String id) {
+    if (id == null) {
+      id = defaultTenant;
+    }
+    if (!TENANT_ID.matcher(id).matches()) {
+      return Future.failedFuture(new CirculationException(400, "Invalid tenant"));
+    }
+    Tenant tenant = tenants.get(id);
+    if (tenant != null) {
+      return Future.succeededFuture(tenant);
+    }
+    Future<Tenant> result = Future.future();
+    List<Future<Tenant>> waiting = loading.get(id);
+    if (waiting != null) {
+      waiting.add(result);
+      return result;
+    }
+    if (tenants.size() + loading.size() >= maxTenants && !evictLeastRecentlyUsed()) {
+      return Future.failedFuture(new CirculationException(503, "Too many tenants, try again later"));
+    }
+    waiting = new ArrayList<>();
+    waiting.add(result);
+    loading.put(id, waiting);
+    load(id);
+    return result;
+  }
+
+  public void purgeExpired() {
+    tenants.values().forEach(tenant -> tenant.getDataApi().purgeExpired());
+  }
+
+  public JsonObject metrics() {
+    JsonObject loaded = new JsonObject();
+    tenants.forEach((id, tenant) -> loaded.put(id, tenant.metrics()));
+    return new JsonObject().put("maxTenants", maxTenants).put("idleTimeout", idleTimeout).put("tenants", loaded);
+  }
+
+  public void close() {
+    vertx.cancelTimer(evictionTimer);
+    new ArrayList<>(tenants.keySet()).forEach(this::unload);
+    if (Shared.release(vertx, "cluster")) {
+      cluster.close();
+    }
+  }
+
+  // Compiles the rules and replays the outbox off the event loop; the clients
+  // have to be created on it
+  private void load(String id) {
+    JsonObject tenantConfig = configOf(id);
+    String rulesFolder = rulesFolder(id);
+    String outboxFolder = tenantConfig.getString("outbox.folder");
+    String offlineFolder = tenantConfig.getString("offline.folder");
+    Future<RuleRepository> compiled = blocking(() -> Shared.acquire(vertx, "rules:" + rulesFolder, () -> {
+      RuleRepository rules = new RuleRepository(vertx, rulesFolder,
+          tenantConfig.getInteger("rules.outcomes.size", 1000));
+      rules.startWatching(tenantConfig.getLong("rules.scan.interval", 2000L));
+      return rules;
+    }));
+    Future<LoanPolicies> policies = blocking(() -> Shared.acquire(vertx, "policies:" + rulesFolder, () -> {
+      LoanPolicies loanPolicies = new LoanPolicies(vertx, rulesFolder, tenantConfig);
+      loanPolicies.startWatching(tenantConfig.getLong("rules.scan.interval", 2000L));
+      return loanPolicies;
+    }));
+    Future<Outbox> outbox = outboxFolder == null || outboxFolder.isEmpty() ? Future.succeededFuture()
+        : blocking(() -> Shared.acquire(vertx, "outbox:" + id,
+            () -> new Outbox(vertx, new File(outboxFolder, id + ".journal"), tenantConfig, metrics)));
+    Future<OfflineCirculation> offline = offlineFolder == null || offlineFolder.isEmpty() ? Future.succeededFuture()
+        : blocking(() -> Shared.acquire(vertx, "offline:" + id,
+            () -> new OfflineCirculation(vertx, new File(offlineFolder), tenantConfig, metrics)));
+    Futures.join(Futures.join(Futures.join(compiled, policies), outbox), offline).setHandler(loaded -> {
+      List<Future<Tenant>> waiting = loading.remove(id);
+      if (loaded.failed()) {
+        logger.error("Tenant " + id + " could not be loaded: " + loaded.cause().getMessage());
+        if (compiled.succeeded() && Shared.release(vertx, "rules:" + rulesFolder)) {
+          compiled.result().stopWatching();
+        }
+        if (policies.succeeded() && Shared.release(vertx, "policies:" + rulesFolder)) {
+          policies.result().stopWatching();
+        }
+        if (outbox.succeeded() && outbox.result() != null && Shared.release(vertx, "outbox:" + id)) {
+          outbox.result().close();
+        }
+        if (offline.succeeded() && offline.result() != null && Shared.release(vertx, "offline:" + id)) {
+          offline.result().close();
+        }
+        waiting.forEach(future -> future.fail(loaded.cause()));
+        return;
+      }
+      if (outbox.result() != null) {
+        outbox.result().start();
+      }
+      LruCache<String> patronCache = cache(id, "patrons", tenantConfig, 300000L);
+      LruCache<String> itemCache = cache(id, "items", tenantConfig, 60000L);
+      LruCache<DataApi.LoanList> loanCache = cache(id, "loans", tenantConfig, 5000L);
+      Snapshot snapshot = offline.result() == null ? null : offline.result().getSnapshot();
+      OverdueNotices overdue = !tenantConfig.getBoolean("overdue.enabled", true) ? null
+          : Shared.acquire(vertx, "overdue:" + id, () -> {
+            OverdueNotices notices = new OverdueNotices(vertx, tenantConfig, metrics);
+            cluster.register(id, notices.getIndex());
+            return notices;
+          });
+      // codec.patron.bind: "all" fields, or only those the live rules and the loan policies of the tenant "need"
+      Supplier<Set<String>> patronFields = "needed".equals(tenantConfig.getString("codec.patron.bind", "all"))
+          ? neededPatronFields(() -> compiled.result().getOutcomes().getPatronFields(),
+              policies.result().getPatronFields())
+          : () -> null;
+      Function<DataApiClient, DataApi> dataApiOf = client -> new DataApi(client,
+          tenantConfig.getString("data.api.patrons", DataApiClient.PATRON_API),
+          tenantConfig.getString("data.api.items", DataApiClient.ITEM_API),
+          tenantConfig.getString("data.api.loans", DataApiClient.LOAN_API), patronCache, itemCache, loanCache,
+          outbox.result(), snapshot, overdue == null ? null : overdue.getIndex(), patronFields);
+      if (offline.result() != null) {
+        offline.result().start(dataApiOf, policies.result());
+      }
+      if (overdue != null) {
+        overdue.start(dataApiOf, cluster::isSenior);
+      }
+      DataApiClient client = new DataApiClient(vertx, tenantConfig, metrics);
+      Tenant tenant = new Tenant(id, tenantConfig, client, dataApiOf.apply(client), compiled.result(),
+          new RuleEngine(vertx, compiled.result(), metrics), policies.result(), outbox.result(), offline.result(),
+          overdue);
+      tenants.put(id, tenant);
+      cluster.register(id, compiled.result());
+      metrics.gauge("deliver_tenants_loaded", "").incrementAndGet();
+      logger.info("Loaded tenant " + id + " with rules from " + rulesFolder);
+      waiting.forEach(future -> future.complete(tenant));
+    });
+  }
+
+  private void unload(String id) {
+    Tenant tenant = tenants.remove(id);
+    if (Shared.release(vertx, "rules:" + tenant.getRuleRepository().getFolder())) {
+      tenant.getRuleRepository().stopWatching();
+      cluster.unregister(id);
+    }
+    if (Shared.release(vertx, "policies:" + tenant.getRuleRepository().getFolder())) {
+      tenant.getPolicies().stopWatching();
+    }
+    for (String name : new String[] { "patrons", "items", "loans" }) {
+      if (Shared.release(vertx, "cache." + name + ":" + id)) {
+        cluster.unregister(id, name);
+      }
+    }
+    if (tenant.getOutbox() != null && Shared.release(vertx, "outbox:" + id)) {
+      tenant.getOutbox().close();
+    }
+    if (tenant.getOffline() != null && Shared.release(vertx, "offline:" + id)) {
+      tenant.getOffline().close();
+    }
+    if (tenant.getOverdue() != null && Shared.release(vertx, "overdue:" + id)) {
+      cluster.unregister(id, tenant.getOverdue().getIndex());
+      tenant.getOverdue().close();
+    }
+    tenant.getClient().close();
+    metrics.gauge("deliver_tenants_loaded", "").decrementAndGet();
+    logger.info("Unloaded tenant " + id);
+  }
+
+  private void evictIdle() {
+    long idleSince = System.currentTimeMillis() - idleTimeout;
+    List<String> idle = new ArrayList<>();
+    tenants.forEach((id, tenant) -> {
+      if (tenant.isIdleSince(idleSince)) {
+        idle.add(id);
+      }
+    });
+    idle.forEach(this::evict);
+  }
+
+  // Makes room for another tenant; false if every loaded tenant is busy
+  private boolean evictLeastRecentlyUsed() {
+    String oldest = null;
+    for (Map.Entry<String, Tenant> tenant : tenants.entrySet()) {
+      if (tenant.getValue().isIdleSince(Long.MAX_VALUE)
+          && (oldest == null || tenant.getValue().getLastUsed() < tenants.get(oldest).getLastUsed())) {
+        oldest = tenant.getKey();
+      }
+    }
+    if (oldest == null) {
+      return false;
+    }
+    evict(oldest);
+    return true;
+  }
+
+  private void evict(String id) {
+    unload(id);
+    metrics.counter("deliver_tenant_evictions_total", "").increment();
+  }
+
+  // cache.<name>.size and cache.<name>.ttl of the tenant, shared by the instances
+  private <V> LruCache<V> cache(String id, String name, JsonObject tenantConfig, long defaultTtl) {
+    return Shared.acquire(vertx, "cache." + name + ":" + id, () -> {
+      LruCache<V> cache = new LruCache<>(tenantConfig.getInteger("cache." + name + ".size", 10000),
+          tenantConfig.getLong("cache." + name + ".ttl", defaultTtl));
+      cluster.register(id, name, cache);
+      return cache;
+    });
+  }
+
+  // The fields the rules read, null for all, with those the policies read;
+  // joined again only when the rules changed
+  static Supplier<Set<String>> neededPatronFields(Supplier<Set<String>> ruleFields, Set<String> policyFields) {
+    AtomicReference<Set<String>[]> joined = new AtomicReference<>();
+    return () -> {
+      Set<String> rules = ruleFields.get();
+      if (rules == null) {
+        return null;
+      }
+      Set<String>[] last = joined.get();
+      if (last == null || last[0] != rules) {
+        Set<String> fields = new HashSet<>(rules);
+        fields.addAll(policyFields);
+        @SuppressWarnings("unchecked")
+        Set<String>[] next = new Set[] { rules, Collections.unmodifiableSet(fields) };
+        joined.set(next);
+        last = next;
+      }
+      return last[1];
+    };
+  }
+
+  private <T> Future<T> blocking(Supplier<T> task) {
+    Future<T> result = Future.future();
+    vertx.<T>executeBlocking(done -> done.complete(task.get()), false, result.completer());
+    return result;
+  }
+
+  private JsonObject configOf(String id) {
+    JsonObject tenantConfig = config.copy();
+    JsonObject overrides = config.getJsonObject("tenants", new JsonObject()).getJsonObject(id);
+    if (overrides != null) {
+      tenantConfig.mergeIn(overrides);
+    }
+    return tenantConfig.put("data.api.tenant", id);
+  }
+
+  // rules.folder/id; the default tenant keeps using rules.folder itself until
+  // it has a folder of its own, as before there were several tenants
+  String rulesFolder(String id) {
+    JsonObject overrides = config.getJsonObject("tenants", new JsonObject()).getJsonObject(id);
+    if (overrides != null && overrides.containsKey("rules.folder")) {
+      return overrides.getString("rules.folder");
+    }
+    String base = config.getString("rules.folder", "/tmp");
+    File own = new File(base, id);
+    return own.isDirectory() || !id.equals(defaultTenant) ? own.getPath() : base;
+  }
+
+}
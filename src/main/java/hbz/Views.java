@@ -0,0 +1,90 @@
+package hbz;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.templ.TemplateEngine;
+
+/**
+ * The screens of the module. They only differ by tenant, whose id the page
+ * sends along with its calls; everything else a page shows it loads itself
+ * from the JSON endpoints. So every template is rendered once per tenant and
+ * the output is served from memory from then on, with an ETag that lets
+ * browsers keep their copy and ask with If-None-Match.
+ *
+ * Shared by all verticle instances.
+ */
+public class Views {
+
+  private final TemplateEngine engine;
+  // rendered pages by template and tenant
+  private final Map<String, View> rendered = new ConcurrentHashMap<>();
+
+  private final Logger logger = LoggerFactory.getLogger("hbz-deliver-module");
+
+  public Views(TemplateEngine engine) {
+    this.engine = engine;
+  }
+
+  // Answers with the page template renders for tenant
+  public void serve(RoutingContext routingContext, String template, String tenant) {
+    String key = template + ":" + tenant;
+    View view = rendered.get(key);
+    if (view != null) {
+      send(routingContext, view);
+      return;
+    }
+    engine.render(routingContext, template, result -> {
+      if (result.failed()) {
+        logger.error("Could not render " + template + ": " + result.cause().getMessage());
+        routingContext.response().setStatusCode(500).putHeader(HttpHeaders.CONTENT_TYPE, "text/plain")
+            .end("Could not render page");
+        return;
+      }
+      View fresh = new View(result.result());
+      View existing = rendered.putIfAbsent(key, fresh);
+      send(routingContext, existing == null ? fresh : existing);
+    });
+  }
+
+  private static void send(RoutingContext routingContext, View view) {
+    HttpServerResponse response = routingContext.response().putHeader(HttpHeaders.ETAG, view.etag)
+        .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+    if (view.etag.equals(routingContext.request().getHeader(HttpHeaders.IF_NONE_MATCH))) {
+      response.setStatusCode(304).end();
+    } else {
+      response.setStatusCode(200).putHeader(HttpHeaders.CONTENT_TYPE, "text/html; charset=UTF-8").end(view.page);
+    }
+  }
+
+  // The tag of a response body, for ETag and If-None-Match
+  static String etagOf(Buffer body) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(body.getBytes());
+      return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + "\"";
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class View {
+
+    private final Buffer page;
+    private final String etag;
+
+    View(Buffer page) {
+      this.page = page;
+      this.etag = etagOf(page);
+    }
+  }
+
+}
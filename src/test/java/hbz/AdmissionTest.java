@@ -0,0 +1,106 @@
+package hbz;
+
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(VertxUnitRunner.class)
+public class AdmissionTest {
+
+  private static final int DELIVER_PORT = 8086;
+  private static final int DATA_API_PORT = 9136;
+  private static final int REQUESTS = 20;
+
+  private Vertx vertx;
+  private HttpClient client;
+
+  @Before
+  public void setUp(TestContext context) {
+    vertx = Vertx.vertx();
+    new StubDataApi(vertx).setMaxDelay(100).start(DATA_API_PORT, context.asyncAssertSuccess());
+    DeploymentOptions options = new DeploymentOptions().setConfig(new JsonObject().put("http.port", DELIVER_PORT)
+        .put("data.api.port", DATA_API_PORT).put("data.api.patrons", "/patrons/").put("data.api.items", "/items/")
+        .put("admission.endpoint.limit", 2).put("admission.queue.size", 3).put("admission.queue.timeout", 300));
+    vertx.deployVerticle(MainVerticle.class.getName(), options, context.asyncAssertSuccess());
+    client = vertx.createHttpClient(new HttpClientOptions().setMaxPoolSize(REQUESTS));
+  }
+
+  @After
+  public void tearDown(TestContext context) {
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test
+  public void testShedsWhatItCannotHandle(TestContext context) {
+    Async async = context.async();
+    int[] loaned = { 0 };
+    int[] shed = { 0 };
+    for (int i = 0; i < REQUESTS; i++) {
+      String itemId = "item-" + i;
+      client.post(DELIVER_PORT, "localhost", "/deliver/loan", response -> response.bodyHandler(body -> {
+        if (response.statusCode() == 503) {
+          context.assertEquals("Too many requests, try again later", body.toString());
+          context.assertNotNull(response.getHeader("Retry-After"), "Retry-After of " + itemId);
+          shed[0]++;
+        } else {
+          context.assertEquals(200, response.statusCode(), "loan of " + itemId + ": " + body);
+          loaned[0]++;
+        }
+        if (loaned[0] + shed[0] == REQUESTS) {
+          checkMetrics(context, loaned[0], shed[0], async);
+        }
+      })).end(Json.encode(new Delivery("patron-" + i, itemId)));
+    }
+  }
+
+  private void checkMetrics(TestContext context, int loaned, int shed, Async async) {
+    // the two in progress at least, and the ones the full queue did not take
+    context.assertTrue(loaned >= 2, "loaned " + loaned);
+    context.assertTrue(shed >= REQUESTS - 2 - 3, "shed " + shed);
+    client.getNow(DELIVER_PORT, "localhost", "/deliver/metrics/admission", response -> response.bodyHandler(body -> {
+      context.assertEquals(200, response.statusCode());
+      JsonObject admission = new JsonObject(body.toString());
+      context.assertEquals((long) shed, admission.getLong("shed"));
+      context.assertEquals(0, admission.getInteger("queued"));
+      async.complete();
+    }));
+  }
+
+  @Test
+  public void testLimitFollowsLatency() {
+    AdaptiveLimit limit = new AdaptiveLimit(64, 1, 64);
+    for (int i = 0; i < 100; i++) {
+      limit.sample(TimeUnit.MILLISECONDS.toNanos(1), false);
+    }
+    Assert.assertEquals(64, limit.get());
+    // the data API takes ten times as long, requests queue up there
+    for (int i = 0; i < 200; i++) {
+      limit.sample(TimeUnit.MILLISECONDS.toNanos(10), false);
+    }
+    int congested = limit.get();
+    Assert.assertTrue("congested " + congested, congested < 32);
+    for (int i = 0; i < 20; i++) {
+      limit.sample(TimeUnit.MILLISECONDS.toNanos(1), i == 0);
+    }
+    Assert.assertTrue(limit.get() < congested);
+    for (int i = 0; i < 2000; i++) {
+      limit.sample(TimeUnit.MILLISECONDS.toNanos(1), false);
+    }
+    Assert.assertEquals(64, limit.get());
+  }
+
+}
@@ -0,0 +1,103 @@
+package hbz;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loan, return and renewal end to end: HTTP into the deployed MainVerticle,
+ * which talks to the in-process stub data API at its shortest delay. Every
+ * loan is for another item, so the stub never refuses one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CirculationBenchmark {
+
+  private static final int DELIVER_PORT = 8083;
+  private static final int DATA_API_PORT = 9133;
+
+  private final AtomicLong items = new AtomicLong();
+
+  private Vertx vertx;
+  private StubDataApi dataApi;
+  private HttpClient client;
+  private String renewal;
+
+  @Setup
+  public void setUp() throws Exception {
+    vertx = Vertx.vertx();
+    dataApi = new StubDataApi(vertx).setMaxDelay(1);
+    CompletableFuture<Void> started = new CompletableFuture<>();
+    dataApi.start(DATA_API_PORT, listening -> {
+      DeploymentOptions options = new DeploymentOptions()
+          .setConfig(new JsonObject().put("http.port", DELIVER_PORT).put("data.api.port", DATA_API_PORT)
+              .put("data.api.patrons", "/patrons/").put("data.api.items", "/items/"));
+      vertx.deployVerticle(MainVerticle.class.getName(), options, deployed -> started.complete(null));
+    });
+    started.get(60, TimeUnit.SECONDS);
+    client = vertx.createHttpClient(new HttpClientOptions().setDefaultPort(DELIVER_PORT).setMaxPoolSize(16));
+    post("/deliver/loan", Json.encode(new Delivery("renewing-patron", "renewed-item")));
+    renewal = Json.encode(new ReturnRenewal("renewing-patron", StubDataApi.loanIdFor("renewing-patron",
+        "renewed-item")));
+  }
+
+  @TearDown
+  public void tearDown() {
+    vertx.close();
+  }
+
+  @Benchmark
+  public String loan() throws Exception {
+    return post("/deliver/loan", Json.encode(new Delivery("patron", "item-" + items.incrementAndGet())));
+  }
+
+  @Benchmark
+  public String loanAndReturn() throws Exception {
+    String itemId = "returned-item-" + items.incrementAndGet();
+    post("/deliver/loan", Json.encode(new Delivery("patron", itemId)));
+    return post("/deliver/return", Json.encode(new ReturnRenewal("patron", StubDataApi.loanIdFor("patron", itemId))));
+  }
+
+  @Benchmark
+  public String renew() throws Exception {
+    return post("/deliver/renew", renewal);
+  }
+
+  private String post(String uri, String body) throws Exception {
+    CompletableFuture<String> answer = new CompletableFuture<>();
+    client.post(uri, response -> response.bodyHandler(buffer -> {
+      if (response.statusCode() == 200) {
+        answer.complete(buffer.toString());
+      } else {
+        answer.completeExceptionally(new IllegalStateException(response.statusCode() + " " + buffer));
+      }
+    })).exceptionHandler(answer::completeExceptionally).end(body);
+    return answer.get(10, TimeUnit.SECONDS);
+  }
+
+}
@@ -0,0 +1,124 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+// Two nodes on the event bus of one Vert.x instance, which is what a cluster
+// looks like to them; ClusteredNodesTest runs them on a real one
+@RunWith(VertxUnitRunner.class)
+public class ClusterTest {
+
+  private static final String RULE = "package rules;\n"
+      + "import hbz.LoanPermission;\n\n"
+      + "rule \"Everything goes\"\n"
+      + "when\n"
+      + "  $l : LoanPermission()\n"
+      + "then\n"
+      + "  $l.setPermitted(true);\n"
+      + "end";
+
+  private Vertx vertx;
+  private File folder;
+  private Cluster first;
+  private Cluster second;
+
+  @Before
+  public void setUp() throws IOException {
+    vertx = Vertx.vertx();
+    folder = Files.createTempDirectory("deliver-cluster").toFile();
+    JsonObject config = new JsonObject().put("cluster.heartbeat.interval", 100);
+    first = new Cluster(vertx, config, tenant -> new File(folder, "first").getPath());
+    second = new Cluster(vertx, config, tenant -> new File(folder, "second").getPath());
+  }
+
+  @After
+  public void tearDown(TestContext context) {
+    first.close();
+    second.close();
+    for (File node : folder.listFiles()) {
+      for (File file : node.listFiles()) {
+        file.delete();
+      }
+      node.delete();
+    }
+    folder.delete();
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test
+  public void testWritesInvalidateTheOtherNode(TestContext context) {
+    LruCache<String> here = new LruCache<>(10, 60000);
+    LruCache<String> there = new LruCache<>(10, 60000);
+    first.register("hbz", "items", here);
+    second.register("hbz", "items", there);
+    there.put("item-1", "{\"status\":\"Available\"}");
+    there.put("item-2", "{\"status\":\"Available\"}");
+    here.update("item-1", "{\"status\":\"Checked out\"}");
+    Async async = context.async();
+    waitFor(() -> there.get("item-1") == null, () -> {
+      context.assertEquals("{\"status\":\"Checked out\"}", here.get("item-1"));
+      context.assertNotNull(there.get("item-2"));
+      context.assertEquals(1L, first.members().getLong("invalidationsSent"));
+      context.assertEquals(1L, second.members().getLong("invalidationsReceived"));
+      async.complete();
+    });
+  }
+
+  @Test
+  public void testNodesSeeEachOther(TestContext context) {
+    Async async = context.async();
+    waitFor(() -> nodesOf(first).size() == 2 && nodesOf(second).size() == 2, () -> {
+      context.assertTrue(nodesOf(first).contains(second.getNode()));
+      context.assertEquals("UP", first.health().getString("status"));
+      second.close();
+      waitFor(() -> nodesOf(first).size() == 1, async::complete);
+    });
+  }
+
+  @Test
+  public void testRuleFilesReachTheOtherNode(TestContext context) throws IOException {
+    File rules = new File(folder, "second");
+    rules.mkdirs();
+    RuleRepository ruleRepository = new RuleRepository(vertx, rules.getPath());
+    second.register("hbz", ruleRepository);
+    first.ruleFileCreated("hbz", "../everything.drl", RULE);
+    Async async = context.async();
+    waitFor(() -> ruleRepository.getStatus().getJsonArray("files").size() == 1, () -> {
+      context.assertTrue(new File(rules, "everything.drl").exists());
+      context.assertFalse(new File(folder, "everything.drl").exists());
+      context.assertFalse(new File(folder, "first").exists());
+      async.complete();
+    });
+  }
+
+  private static Set<Object> nodesOf(Cluster cluster) {
+    Set<Object> nodes = new HashSet<>();
+    cluster.members().getJsonArray("members").forEach(member -> nodes.add(((JsonObject) member).getString("node")));
+    return nodes;
+  }
+
+  private void waitFor(BooleanSupplier condition, Runnable then) {
+    vertx.setPeriodic(20, timer -> {
+      if (condition.getAsBoolean()) {
+        vertx.cancelTimer(timer);
+        then.run();
+      }
+    });
+  }
+
+}
@@ -0,0 +1,186 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.config.NetworkConfig;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+// Two nodes, each a clustered Vert.x instance of its own, joined by Hazelcast
+// over loopback as they would be behind one Okapi
+@RunWith(VertxUnitRunner.class)
+public class ClusteredNodesTest {
+
+  private static final int FIRST_PORT = 8085;
+  private static final int SECOND_PORT = 8086;
+  private static final int DATA_API_PORT = 9136;
+
+  private static Vertx vertx;
+  private static StubDataApi dataApi;
+  private static HttpClient client;
+  private static File folder;
+  private static Vertx first;
+  private static Vertx second;
+
+  @BeforeClass
+  public static void setUp(TestContext context) throws IOException {
+    vertx = Vertx.vertx();
+    dataApi = new StubDataApi(vertx);
+    dataApi.start(DATA_API_PORT, context.asyncAssertSuccess());
+    client = vertx.createHttpClient();
+    folder = Files.createTempDirectory("deliver-clustered").toFile();
+    String group = "deliver-test-" + UUID.randomUUID();
+    Async started = context.async(2);
+    Vertx.clusteredVertx(options(group), context.asyncAssertSuccess(node -> {
+      first = node;
+      deploy(context, node, FIRST_PORT, "first", started);
+    }));
+    Vertx.clusteredVertx(options(group), context.asyncAssertSuccess(node -> {
+      second = node;
+      deploy(context, node, SECOND_PORT, "second", started);
+    }));
+  }
+
+  @AfterClass
+  public static void tearDown(TestContext context) {
+    first.close(context.asyncAssertSuccess());
+    second.close(context.asyncAssertSuccess());
+    vertx.close(context.asyncAssertSuccess());
+    delete(folder);
+  }
+
+  @Test
+  public void testRulesReachTheOtherNode(TestContext context) {
+    Rule rule = new Rule();
+    rule.setRuleName("Clustered rule");
+    rule.setPatronStatus("ACTIVE");
+    Async async = context.async();
+    client.post(FIRST_PORT, "localhost", "/deliver/createRule", created -> {
+      context.assertEquals(201, created.statusCode());
+      poll(context, SECOND_PORT, "/deliver/rules/status",
+          status -> status.getJsonArray("files").contains("Clustered_rule.drl"), status -> {
+            context.assertTrue(status.getJsonArray("errors").isEmpty(), status.encode());
+            context.assertTrue(new File(folder, "second/Clustered_rule.drl").exists());
+            async.complete();
+          });
+    }).end(Json.encode(rule));
+  }
+
+  @Test
+  public void testLoansInvalidateTheOtherNode(TestContext context) {
+    String uri = "/deliver/loans/clustered-patron/enriched";
+    Async async = context.async();
+    client.getNow(SECOND_PORT, "localhost", uri, before -> before.bodyHandler(empty -> {
+      context.assertEquals(0, new JsonObject(empty.toString()).getInteger("total"));
+      // the second node keeps that listing for cache.loans.ttl unless the first one tells it otherwise
+      client.post(FIRST_PORT, "localhost", "/deliver/loan", lent -> lent.bodyHandler(done -> {
+        context.assertEquals(200, lent.statusCode(), done.toString());
+        poll(context, SECOND_PORT, uri, listing -> listing.getInteger("total") == 1, listing -> {
+          context.assertEquals("clustered-item",
+              listing.getJsonArray("loans").getJsonObject(0).getString("itemId"));
+          async.complete();
+        });
+      })).end(Json.encode(new Delivery("clustered-patron", "clustered-item")));
+    }));
+  }
+
+  @Test
+  public void testBatchChunksReachBothNodes(TestContext context) {
+    List<String> items = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      items.add("chunked-item-" + i);
+    }
+    Async async = context.async();
+    client.getNow(SECOND_PORT, "localhost", "/deliver/metrics/dataApi", before -> before.bodyHandler(earlier -> {
+      long requestsBefore = new JsonObject(earlier.toString()).getLong("requests");
+      client.post(FIRST_PORT, "localhost", "/deliver/loans/batch", response -> response.bodyHandler(buffer -> {
+        context.assertEquals(200, response.statusCode());
+        JsonArray results = new JsonArray(buffer.toString());
+        context.assertEquals(items.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+          context.assertEquals(200, results.getJsonObject(i).getInteger("status"), results.encode());
+        }
+        for (String itemId : items) {
+          context.assertNotNull(dataApi.getLoans().get(StubDataApi.loanIdFor("chunked-patron", itemId)));
+        }
+        // the batch went to the first node; the second only calls the data API for chunks it took
+        client.getNow(SECOND_PORT, "localhost", "/deliver/metrics/dataApi", after -> after.bodyHandler(later -> {
+          context.assertTrue(new JsonObject(later.toString()).getLong("requests") > requestsBefore, later.toString());
+          async.complete();
+        }));
+      })).end(Json.encode(new BatchDelivery("chunked-patron", items)));
+    }));
+  }
+
+  private static VertxOptions options(String group) {
+    Config config = new Config();
+    config.getGroupConfig().setName(group);
+    config.setProperty("hazelcast.phone.home.enabled", "false");
+    NetworkConfig network = config.getNetworkConfig().setPort(5801).setPortAutoIncrement(true);
+    network.getInterfaces().setEnabled(true).addInterface("127.0.0.1");
+    JoinConfig join = network.getJoin();
+    join.getMulticastConfig().setEnabled(false);
+    join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+    return new VertxOptions().setClusterManager(new HazelcastClusterManager(config)).setClusterHost("127.0.0.1");
+  }
+
+  private static void deploy(TestContext context, Vertx node, int port, String name, Async started) {
+    JsonObject config = new JsonObject().put("http.port", port).put("data.api.port", DATA_API_PORT)
+        .put("data.api.patrons", "/patrons/").put("data.api.items", "/items/").put("data.api.loans", "/loans")
+        .put("rules.folder", new File(folder, name).getPath()).put("cluster.heartbeat.interval", 100)
+        .put("batch.chunk.size", 2).put("cache.loans.ttl", 600000).put("overdue.enabled", false);
+    node.deployVerticle(MainVerticle.class.getName(), new DeploymentOptions().setConfig(config),
+        context.asyncAssertSuccess(deployed -> started.countDown()));
+  }
+
+  // Asks for uri every 50 ms until its JSON satisfies condition, for at most ten seconds
+  private static void poll(TestContext context, int port, String uri, Predicate<JsonObject> condition,
+      Handler<JsonObject> then) {
+    long deadline = System.currentTimeMillis() + 10000;
+    vertx.setPeriodic(50, timer -> client.getNow(port, "localhost", uri, response -> response.bodyHandler(body -> {
+      JsonObject json = new JsonObject(body.toString());
+      if (condition.test(json)) {
+        if (vertx.cancelTimer(timer)) {
+          then.handle(json);
+        }
+      } else if (System.currentTimeMillis() > deadline && vertx.cancelTimer(timer)) {
+        context.fail(uri + " still answers " + body);
+      }
+    })));
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+}
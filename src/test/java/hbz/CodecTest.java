@@ -0,0 +1,73 @@
+package hbz;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.Loan;
+import org.folio.rest.jaxrs.model.Patron;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CodecTest {
+
+  @Test
+  public void testLoansAreReadFromTheListing() {
+    Item item = new Item();
+    item.setId("item-1");
+    item.setBarcode("barcode-1");
+    Loan first = MainVerticle.createLoanObject("patron-1", item, LoanPolicies.defaultTerms(),
+        System.currentTimeMillis());
+    first.setId("loan-1");
+    Loan second = MainVerticle.createLoanObject("patron-1", item, LoanPolicies.defaultTerms(),
+        System.currentTimeMillis());
+    second.setId("loan-2");
+    String listing = "{ \"total_records\" : 2, \"loans\" : [ " + Json.encode(first) + ", " + Json.encode(second)
+        + " ], \"next\" : { \"loans\" : [ ] } }";
+    for (List<Loan> loans : Arrays.asList(Codec.LOAN.decodeList(listing, "loans"),
+        Codec.LOAN.decodeList(Buffer.buffer(listing), "loans"))) {
+      Assert.assertEquals(2, loans.size());
+      Assert.assertEquals("loan-2", loans.get(1).getId());
+      Assert.assertEquals(Json.encode(second), Codec.LOAN.encode(loans.get(1)));
+    }
+    Assert.assertEquals(Collections.emptyList(), Codec.LOAN.decodeList("{ \"loans\" : null }", "loans"));
+    try {
+      Codec.LOAN.decodeList("{ \"loans\" : { } }", "loans");
+      Assert.fail("loans must be an array");
+    } catch (DecodeException e) {
+      // as expected
+    }
+  }
+
+  @Test
+  public void testPatronIsBoundWithTheFieldsAskedFor() throws IOException {
+    String sample = new String(Files.readAllBytes(Paths.get("patron_sample.json")), "UTF-8");
+    Patron patron = Codec.PATRON.decode(sample, new HashSet<>(Arrays.asList("status", "no_such_field")));
+    Assert.assertEquals("ACTIVE", patron.getStatus());
+    Assert.assertNull(patron.getId());
+    patron = Codec.PATRON.decode(new JsonObject(sample).put("id", "patron-1").encode(),
+        Codec.PATRON.jsonNames(Arrays.asList("id", "noSuchProperty")));
+    Assert.assertEquals("patron-1", patron.getId());
+    Assert.assertNull(patron.getStatus());
+  }
+
+  @Test
+  public void testToJsonIsWhatEncodeWrites() {
+    Item item = new Item();
+    item.setId("item-1");
+    Loan loan = MainVerticle.createLoanObject("patron-1", item, LoanPolicies.defaultTerms(),
+        System.currentTimeMillis());
+    Assert.assertEquals(new JsonObject(Json.encode(loan)), Codec.LOAN.toJson(loan));
+  }
+
+}
@@ -0,0 +1,293 @@
+package hbz;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(VertxUnitRunner.class)
+public class ConcurrentCirculationTest {
+
+  private static final int DELIVER_PORT = 8082;
+  private static final int DATA_API_PORT = 9132;
+  private static final int REQUESTS = 200;
+
+  private Vertx vertx;
+  private StubDataApi dataApi;
+  private HttpClient client;
+
+  @Before
+  public void setUp(TestContext context) {
+    vertx = Vertx.vertx();
+    dataApi = new StubDataApi(vertx);
+    dataApi.start(DATA_API_PORT, context.asyncAssertSuccess());
+    DeploymentOptions options = new DeploymentOptions().setInstances(4)
+        .setConfig(new JsonObject().put("http.port", DELIVER_PORT).put("data.api.port", DATA_API_PORT)
+            .put("data.api.patrons", "/patrons/").put("data.api.items", "/items/").put("data.api.loans", "/loans")
+            .put("batch.return.lookup", 4).put("admission.queue.size", 4 * REQUESTS));
+    vertx.deployVerticle(MainVerticle.class.getName(), options, context.asyncAssertSuccess());
+    client = vertx.createHttpClient(new HttpClientOptions().setMaxPoolSize(REQUESTS));
+  }
+
+  @After
+  public void tearDown(TestContext context) {
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test
+  public void testConcurrentLoansAndReturns(TestContext context) {
+    Async async = context.async();
+    fireConcurrently(context, "/deliver/loan/", i -> Json.encode(new Delivery("patron-" + i, "item-" + i)),
+        i -> "Updated item status for item item-" + i + " to ITEM_STATUS_ON_LOAN", loaned -> {
+          for (int i = 0; i < REQUESTS; i++) {
+            JsonObject loan = dataApi.getLoans().get(StubDataApi.loanIdFor("patron-" + i, "item-" + i));
+            context.assertEquals("patron-" + i, loan.getString("patronId"));
+            context.assertEquals("item-" + i, loan.getString("itemId"));
+            context.assertEquals("barcode-item-" + i, loan.getString("itemBarcode"));
+            JsonObject item = dataApi.getItems().get("item-" + i);
+            context.assertEquals("item-" + i, item.getString("id"));
+            context.assertEquals("02", item.getJsonObject("itemStatus").getString("value"));
+          }
+          fireConcurrently(context, "/deliver/return/",
+              i -> Json.encode(new ReturnRenewal("patron-" + i, StubDataApi.loanIdFor("patron-" + i, "item-" + i))),
+              i -> "Updated item status for item item-" + i + " to ITEM_STATUS_AVAILABLE", returned -> {
+                context.assertTrue(dataApi.getLoans().isEmpty());
+                for (int i = 0; i < REQUESTS; i++) {
+                  JsonObject item = dataApi.getItems().get("item-" + i);
+                  context.assertEquals("03", item.getJsonObject("itemStatus").getString("value"));
+                }
+                async.complete();
+              });
+        });
+  }
+
+  @Test
+  public void testBatchLoan(TestContext context) {
+    List<String> items = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      items.add("batch-item-" + i);
+    }
+    Async async = context.async();
+    client.post(DELIVER_PORT, "localhost", "/deliver/loans/batch", response -> response.bodyHandler(buffer -> {
+      context.assertEquals(200, response.statusCode());
+      JsonArray results = new JsonArray(buffer.toString());
+      context.assertEquals(items.size(), results.size());
+      for (int i = 0; i < results.size(); i++) {
+        context.assertEquals(200, results.getJsonObject(i).getInteger("status"));
+      }
+      for (String itemId : items) {
+        JsonObject loan = dataApi.getLoans().get(StubDataApi.loanIdFor("batch-patron", itemId));
+        context.assertEquals(itemId, loan.getString("itemId"));
+        context.assertEquals("02", dataApi.getItems().get(itemId).getJsonObject("itemStatus").getString("value"));
+      }
+      async.complete();
+    })).end(Json.encode(new BatchDelivery("batch-patron", items)));
+  }
+
+  @Test
+  public void testBatchReturn(TestContext context) {
+    List<String> items = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      items.add("dropped-item-" + i);
+    }
+    List<String> byId = new ArrayList<>(items.subList(0, 6));
+    byId.add("never-lent");
+    // one of them listed by id and by barcode
+    List<String> byBarcode = items.subList(5, 10).stream().map(item -> "barcode-" + item)
+        .collect(Collectors.toList());
+    Async async = context.async();
+    client.post(DELIVER_PORT, "localhost", "/deliver/loans/batch", loaned -> loaned.bodyHandler(done -> {
+      client.post(DELIVER_PORT, "localhost", "/deliver/returns/batch", response -> response.bodyHandler(buffer -> {
+        context.assertEquals(200, response.statusCode());
+        JsonArray results = new JsonArray(buffer.toString());
+        context.assertEquals(items.size() + 1, results.size(), buffer.toString());
+        for (int i = 0; i < results.size(); i++) {
+          JsonObject result = results.getJsonObject(i);
+          context.assertEquals("never-lent".equals(result.getString("item")) ? 404 : 200, result.getInteger("status"));
+        }
+        for (String itemId : items) {
+          context.assertNull(dataApi.getLoans().get(StubDataApi.loanIdFor("dropping-patron", itemId)));
+          context.assertEquals("03", dataApi.getItems().get(itemId).getJsonObject("itemStatus").getString("value"));
+        }
+        async.complete();
+      })).end(Json.encode(new BatchReturn(byId, byBarcode)));
+    })).end(Json.encode(new BatchDelivery("dropping-patron", items)));
+  }
+
+  @Test
+  public void testEnrichedLoanListing(TestContext context) {
+    List<String> items = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      items.add("enriched-item-" + i);
+    }
+    String uri = "/deliver/loans/enriched-patron/enriched";
+    Async async = context.async();
+    client.post(DELIVER_PORT, "localhost", "/deliver/loans/batch", batch -> batch.bodyHandler(done -> {
+      dataApi.getLoans().get(StubDataApi.loanIdFor("enriched-patron", "enriched-item-3")).put("dueDate", 1000.0);
+      client.getNow(DELIVER_PORT, "localhost", uri + "?limit=2", first -> first.bodyHandler(firstPage -> {
+        context.assertEquals(200, first.statusCode(), firstPage.toString());
+        JsonObject page = new JsonObject(firstPage.toString());
+        context.assertEquals(5, page.getInteger("total"));
+        JsonObject overdue = page.getJsonArray("loans").getJsonObject(0);
+        context.assertEquals("enriched-item-3", overdue.getString("itemId"));
+        context.assertTrue(overdue.getBoolean("overdue"));
+        context.assertEquals("barcode-enriched-item-3", overdue.getJsonObject("item").getString("barcode"));
+        context.assertFalse(page.getJsonArray("loans").getJsonObject(1).getBoolean("overdue"));
+        String etag = first.getHeader("ETag");
+        client.getNow(DELIVER_PORT, "localhost", uri + "?limit=2&after=" + page.getString("next"),
+            second -> second.bodyHandler(secondPage -> {
+              JsonObject next = new JsonObject(secondPage.toString());
+              context.assertEquals(2, next.getJsonArray("loans").size());
+              context.assertTrue(next.containsKey("next"));
+              client.get(DELIVER_PORT, "localhost", uri + "?limit=2", unchanged -> {
+                context.assertEquals(304, unchanged.statusCode());
+                String returned = Json.encode(new ReturnRenewal("enriched-patron",
+                    StubDataApi.loanIdFor("enriched-patron", "enriched-item-0")));
+                client.post(DELIVER_PORT, "localhost", "/deliver/return", back -> back.bodyHandler(ended -> {
+                  client.get(DELIVER_PORT, "localhost", uri + "?limit=2", changed -> changed.bodyHandler(fresh -> {
+                    context.assertEquals(200, changed.statusCode());
+                    context.assertEquals(4, new JsonObject(fresh.toString()).getInteger("total"));
+                    context.assertNotEquals(etag, changed.getHeader("ETag"));
+                    client.getNow(DELIVER_PORT, "localhost", uri + "?overdue=true", filtered -> filtered.bodyHandler(
+                        only -> {
+                          context.assertEquals(1, new JsonObject(only.toString()).getInteger("total"));
+                          async.complete();
+                        }));
+                  })).putHeader("If-None-Match", etag).end();
+                })).end(returned);
+              }).putHeader("If-None-Match", etag).end();
+            }));
+      }));
+    })).end(Json.encode(new BatchDelivery("enriched-patron", items)));
+  }
+
+  @Test
+  public void testSampleDataListing(TestContext context) {
+    Async async = context.async();
+    client.post(DELIVER_PORT, "localhost", "/deliver/loan", loaned -> loaned.bodyHandler(done -> {
+      client.getNow(DELIVER_PORT, "localhost", "/deliver/sampleData/items", response -> response.bodyHandler(body -> {
+        context.assertEquals(200, response.statusCode());
+        context.assertEquals("application/json", response.getHeader("Content-Type"));
+        JsonArray items = new JsonArray(body.toString());
+        context.assertTrue(items.stream().anyMatch(item -> "listed-sample".equals(((JsonObject) item).getString("id"))),
+            body.toString());
+        // the stub has no patron listing; its 404 is no empty list
+        client.getNow(DELIVER_PORT, "localhost", "/deliver/sampleData/patrons", patrons -> {
+          context.assertEquals(502, patrons.statusCode());
+          async.complete();
+        });
+      }));
+    })).end(Json.encode(new Delivery("sample-patron", "listed-sample")));
+  }
+
+  @Test
+  public void testLoanListing(TestContext context) {
+    List<String> items = new ArrayList<>();
+    for (int i = 0; i < 12; i++) {
+      items.add("listed-item-" + i);
+    }
+    Async async = context.async();
+    client.post(DELIVER_PORT, "localhost", "/deliver/loans/batch", batch -> batch.bodyHandler(done -> {
+      client.getNow(DELIVER_PORT, "localhost", "/deliver/loans/listing-patron",
+          response -> response.bodyHandler(all -> {
+            context.assertEquals(200, response.statusCode());
+            context.assertEquals(items.size(), new JsonArray(all.toString()).size());
+            client.getNow(DELIVER_PORT, "localhost", "/deliver/loans/listing-patron?limit=5&offset=10",
+                paged -> paged.bodyHandler(page -> {
+                  context.assertEquals(2, new JsonArray(page.toString()).size());
+                  client.getNow(DELIVER_PORT, "localhost", "/deliver/loans/nobody", none -> {
+                    context.assertEquals(404, none.statusCode());
+                    async.complete();
+                  });
+                }));
+          }));
+    })).end(Json.encode(new BatchDelivery("listing-patron", items)));
+  }
+
+  @Test
+  public void testRequestIdAndMetrics(TestContext context) {
+    Async async = context.async();
+    client.post(DELIVER_PORT, "localhost", "/deliver/loan", response -> response.bodyHandler(buffer -> {
+      context.assertEquals(200, response.statusCode(), buffer.toString());
+      context.assertEquals("traced-loan", response.getHeader("X-Okapi-Request-Id"));
+      // patron, item, loan and item status
+      context.assertEquals(4, Collections.frequency(dataApi.getRequestIds(), "traced-loan"));
+      client.getNow(DELIVER_PORT, "localhost", "/deliver/metrics", scrape -> scrape.bodyHandler(metrics -> {
+        String text = metrics.toString();
+        context.assertTrue(text.contains(
+            "deliver_http_request_seconds_count{endpoint=\"/deliver/loan\",method=\"POST\",status=\"200\"} "), text);
+        context.assertTrue(text.contains("deliver_upstream_request_seconds_count{api=\"loans\",method=\"POST\""), text);
+        context.assertTrue(text.contains("deliver_rules_fired_total"), text);
+        context.assertTrue(text.contains("deliver_event_loop_delay_seconds_bucket"), text);
+        async.complete();
+      }));
+    })).putHeader("X-Okapi-Request-Id", "traced-loan").end(Json.encode(new Delivery("traced-patron", "traced-item")));
+  }
+
+  @Test
+  public void testTenantFromHeader(TestContext context) {
+    Async async = context.async();
+    client.post(DELIVER_PORT, "localhost", "/deliver/loan", response -> response.bodyHandler(buffer -> {
+      context.assertEquals(200, response.statusCode(), buffer.toString());
+      context.assertEquals("ubk", dataApi.getTenants().get("ubk-loan"));
+      client.getNow(DELIVER_PORT, "localhost", "/deliver/metrics", scrape -> scrape.bodyHandler(metrics -> {
+        context.assertTrue(metrics.toString().contains(",tenant=\"ubk\"}"), metrics.toString());
+        client.get(DELIVER_PORT, "localhost", "/deliver/rules/status", invalid -> {
+          context.assertEquals(400, invalid.statusCode());
+          async.complete();
+        }).putHeader("X-Okapi-Tenant", "../etc").end();
+      }));
+    })).putHeader("X-Okapi-Tenant", "ubk").putHeader("X-Okapi-Request-Id", "ubk-loan")
+        .end(Json.encode(new Delivery("ubk-patron", "ubk-item")));
+  }
+
+  @Test
+  public void testRuleNamesStayInTheTenantsFolder(TestContext context) {
+    Rule rule = new Rule();
+    rule.setRuleName("../hbz/planted");
+    rule.setPatronStatus("ACTIVE");
+    Async async = context.async();
+    client.post(DELIVER_PORT, "localhost", "/deliver/createRule", response -> {
+      context.assertEquals(400, response.statusCode());
+      context.assertFalse(new File("/tmp/hbz/planted.drl").exists());
+      context.assertFalse(new File("/tmp/planted.drl").exists());
+      async.complete();
+    }).putHeader("X-Okapi-Tenant", "ubk").end(Json.encode(rule));
+  }
+
+  private void fireConcurrently(TestContext context, String uri, IntFunction<String> body,
+      IntFunction<String> expected, Handler<Void> done) {
+    Async all = context.async(REQUESTS);
+    for (int i = 0; i < REQUESTS; i++) {
+      final int index = i;
+      client.post(DELIVER_PORT, "localhost", uri, response -> response.bodyHandler(buffer -> {
+        context.assertEquals(200, response.statusCode(), buffer.toString());
+        context.assertEquals(expected.apply(index), buffer.toString());
+        all.countDown();
+        if (all.count() == 0) {
+          done.handle(null);
+        }
+      })).end(body.apply(index));
+    }
+  }
+
+}
@@ -0,0 +1,128 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.Json;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.ItemStatus;
+import org.folio.rest.jaxrs.model.Patron;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The same generated Rules once as one DRL file per rule, as the rule editor
+ * writes them in drools mode, and once as Rule JSON for the decision table.
+ * Every rule permits another item status; "Hit" asks for a loan one rule in
+ * the middle permits, "Miss" for one no generated rule permits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DecisionTableBenchmark {
+
+  @Param({ "10", "1000", "10000" })
+  public int rules;
+
+  private Vertx vertx;
+  private Path droolsFolder;
+  private Path tableFolder;
+  private RuleRepository drools;
+  private RuleRepository table;
+  private Patron patron;
+  private Item hit;
+  private Item miss;
+
+  @Setup
+  public void setUp() throws IOException {
+    vertx = Vertx.vertx();
+    droolsFolder = Files.createTempDirectory("deliver-rules-drools");
+    tableFolder = Files.createTempDirectory("deliver-rules-table");
+    for (int i = 0; i < rules; i++) {
+      Rule rule = new Rule();
+      rule.setRuleName("generated " + i);
+      rule.setPatronStatus("ACTIVE");
+      rule.setItemStatus("generated-" + i);
+      Files.write(droolsFolder.resolve("generated_" + i + RuleRepository.DRL),
+          RuleRepository.toDrl(rule).getBytes("UTF-8"));
+      Files.write(tableFolder.resolve("generated_" + i + RuleRepository.RULE_JSON),
+          Json.encode(rule).getBytes("UTF-8"));
+    }
+    drools = new RuleRepository(vertx, droolsFolder.toString());
+    table = new RuleRepository(vertx, tableFolder.toString());
+    patron = new Patron();
+    patron.setStatus("ACTIVE");
+    hit = item("generated-" + rules / 2);
+    miss = item("none");
+  }
+
+  @TearDown
+  public void tearDown() {
+    vertx.close();
+    for (Path folder : new Path[] { droolsFolder, tableFolder }) {
+      for (File file : folder.toFile().listFiles()) {
+        file.delete();
+      }
+      folder.toFile().delete();
+    }
+  }
+
+  @Benchmark
+  public boolean droolsHit() {
+    return fire(hit);
+  }
+
+  @Benchmark
+  public boolean droolsMiss() {
+    return fire(miss);
+  }
+
+  @Benchmark
+  public boolean tableHit() {
+    return table.getDecisionTable().permits(patron, hit);
+  }
+
+  @Benchmark
+  public boolean tableMiss() {
+    return table.getDecisionTable().permits(patron, miss);
+  }
+
+  private boolean fire(Item item) {
+    LoanPermission loanPermission = new LoanPermission();
+    List<Object> facts = new ArrayList<>();
+    facts.add(patron);
+    facts.add(item);
+    facts.add(loanPermission);
+    drools.getKieBase().newStatelessKieSession().execute(facts);
+    return loanPermission.isPermitted();
+  }
+
+  private static Item item(String status) {
+    ItemStatus itemStatus = new ItemStatus();
+    itemStatus.setValue(status);
+    Item item = new Item();
+    item.setItemStatus(itemStatus);
+    return item;
+  }
+
+}
@@ -0,0 +1,183 @@
+package hbz;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.Loan;
+import org.folio.rest.jaxrs.model.Patron;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding and encoding of the patrons, items and loans the circulation flows
+ * exchange with the data API, plus building a new loan. The patron and item
+ * are the sample files in the project directory. Every benchmark on the plain
+ * Json path has a counterpart on the {@link Codec} the data API calls use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JsonBenchmark {
+
+  private static final int LISTED_LOANS = 20;
+
+  private String patronAsJson;
+  private String itemAsJson;
+  private String loanAsJson;
+  private Buffer loanAsBuffer;
+  private String listing;
+  private Buffer listingAsBuffer;
+  private Set<String> patronFields;
+  private Patron patron;
+  private Item item;
+  private Loan loan;
+
+  @Setup
+  public void setUp() throws IOException {
+    patronAsJson = new String(Files.readAllBytes(Paths.get("patron_sample.json")), "UTF-8");
+    itemAsJson = new String(Files.readAllBytes(Paths.get("item_sample.json")), "UTF-8");
+    patron = Json.decodeValue(patronAsJson, Patron.class);
+    item = Json.decodeValue(itemAsJson, Item.class);
+    loan = MainVerticle.createLoanObject("patron-1", item, LoanPolicies.defaultTerms(),
+        System.currentTimeMillis());
+    loanAsJson = Json.encode(loan);
+    loanAsBuffer = Buffer.buffer(loanAsJson);
+    JsonArray loans = new JsonArray();
+    for (int i = 0; i < LISTED_LOANS; i++) {
+      loans.add(new JsonObject(loanAsJson).put("id", "loan-" + i));
+    }
+    listing = new JsonObject().put("loans", loans).put("total_records", LISTED_LOANS).encode();
+    listingAsBuffer = Buffer.buffer(listing);
+    patronFields = Codec.PATRON.jsonNames(Arrays.asList("id", "status", "type"));
+  }
+
+  @Benchmark
+  public Patron decodePatron() {
+    return Json.decodeValue(patronAsJson, Patron.class);
+  }
+
+  @Benchmark
+  public Item decodeItem() {
+    return Json.decodeValue(itemAsJson, Item.class);
+  }
+
+  @Benchmark
+  public Patron decodePatronCodec() {
+    return Codec.PATRON.decode(patronAsJson);
+  }
+
+  // only the fields the decision table and the sample rules read
+  @Benchmark
+  public Patron decodePatronNeededFields() {
+    return Codec.PATRON.decode(patronAsJson, patronFields);
+  }
+
+  @Benchmark
+  public Item decodeItemCodec() {
+    return Codec.ITEM.decode(itemAsJson);
+  }
+
+  @Benchmark
+  public Loan decodeLoan() {
+    return Json.decodeValue(loanAsJson, Loan.class);
+  }
+
+  // a response body as the data API calls decoded it before the codecs
+  @Benchmark
+  public Loan decodeLoanFromBuffer() {
+    return Json.decodeValue(loanAsBuffer.toString(), Loan.class);
+  }
+
+  @Benchmark
+  public Loan decodeLoanFromBufferCodec() {
+    return Codec.LOAN.decode(loanAsBuffer);
+  }
+
+  // a listing as the data API calls decoded it before the codecs
+  @Benchmark
+  public List<Loan> decodeListing() {
+    JsonArray found = new JsonObject(listingAsBuffer.toString()).getJsonArray("loans");
+    List<Loan> loans = new ArrayList<>();
+    for (int i = 0; i < found.size(); i++) {
+      loans.add(Json.decodeValue(found.getJsonObject(i).encode(), Loan.class));
+    }
+    return loans;
+  }
+
+  @Benchmark
+  public List<Loan> decodeListingCodec() {
+    return Codec.LOAN.decodeList(listingAsBuffer, "loans");
+  }
+
+  // a cached listing
+  @Benchmark
+  public List<Loan> decodeListingFromStringCodec() {
+    return Codec.LOAN.decodeList(listing, "loans");
+  }
+
+  @Benchmark
+  public String encodePatron() {
+    return Json.encode(patron);
+  }
+
+  @Benchmark
+  public String encodeItem() {
+    return Json.encode(item);
+  }
+
+  @Benchmark
+  public String encodeItemCodec() {
+    return Codec.ITEM.encode(item);
+  }
+
+  @Benchmark
+  public String encodeLoan() {
+    return Json.encode(loan);
+  }
+
+  @Benchmark
+  public String encodeLoanCodec() {
+    return Codec.LOAN.encode(loan);
+  }
+
+  // a loan of the enriched listing
+  @Benchmark
+  public JsonObject loanToJson() {
+    return new JsonObject(Json.encode(loan));
+  }
+
+  @Benchmark
+  public JsonObject loanToJsonCodec() {
+    return Codec.LOAN.toJson(loan);
+  }
+
+  @Benchmark
+  public Loan createLoanObject() {
+    return MainVerticle.createLoanObject("patron-1", item, LoanPolicies.defaultTerms(),
+        System.currentTimeMillis());
+  }
+
+}
@@ -0,0 +1,411 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Load test of the deliver module against the in-process stub data API, to
+ * find out what it can take without going near the production data API.
+ * The stub is seeded with patrons and items made from patron_sample.json and
+ * item_sample.json; loans, returns and renewals are sent in the shape of
+ * loan_sample.json and return_renewal_sample.json.
+ *
+ * Requests go out at the target rate whether or not the earlier ones were
+ * answered, and their latency counts from when they were due, so a module
+ * that falls behind shows it in the percentiles rather than in a lower rate.
+ * Returns and renewals are for loans made during the run; while there are
+ * none, a loan is sent instead.
+ *
+ * Run from the project directory with
+ * mvn -P load test -Dload.args="rate=200 duration=60 mix=50:30:20", see
+ * {@link #DEFAULTS} for all settings. Without deliver=host:port the module is
+ * deployed in-process. The report goes to stdout and to out, by default
+ * target/load-result.json.
+ */
+public class LoadGenerator {
+
+  private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+  static {
+    // requests per second, and for how long they are sent and recorded
+    DEFAULTS.put("rate", "100");
+    DEFAULTS.put("duration", "30");
+    // seconds of load before recording starts, e.g. to compile the rules and fill the caches
+    DEFAULTS.put("warmup", "5");
+    // weights of loan:return:renew
+    DEFAULTS.put("mix", "50:30:20");
+    DEFAULTS.put("patrons", "100");
+    DEFAULTS.put("items", "10000");
+    // milliseconds the stub takes per call, from-to, and the share of its calls answered with 503
+    DEFAULTS.put("latency", "1-20");
+    DEFAULTS.put("errors", "0");
+    // requests sent but not answered yet beyond which due requests are skipped
+    DEFAULTS.put("maxInFlight", "2000");
+    // a running module to test, configured with data.api.port=<dataApiPort>, instead of one in-process
+    DEFAULTS.put("deliver", "");
+    DEFAULTS.put("dataApiPort", "9137");
+    // for the in-process module: instances and a JSON file merged over its configuration
+    DEFAULTS.put("deliverPort", "8087");
+    DEFAULTS.put("instances", "1");
+    DEFAULTS.put("config", "");
+    DEFAULTS.put("out", "target/load-result.json");
+  }
+
+  private static final String[] OPERATIONS = { "loan", "return", "renew" };
+  private static final long TICK = 10;
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> settings = new LinkedHashMap<>(DEFAULTS);
+    for (String arg : args) {
+      String[] setting = arg.split("=", 2);
+      if (setting.length != 2 || !DEFAULTS.containsKey(setting[0])) {
+        System.err.println("Unknown setting " + arg + ", known are " + DEFAULTS.keySet());
+        System.exit(2);
+      }
+      settings.put(setting[0], setting[1]);
+    }
+    JsonObject report = new LoadGenerator(settings).run();
+    String out = settings.get("out");
+    File file = new File(out);
+    if (file.getParentFile() != null) {
+      file.getParentFile().mkdirs();
+    }
+    Files.write(file.toPath(), report.encodePrettily().getBytes(StandardCharsets.UTF_8));
+    System.out.println(table(report));
+    System.out.println("Report written to " + out);
+    System.exit(0);
+  }
+
+  private final Map<String, String> settings;
+
+  public LoadGenerator(Map<String, String> settings) {
+    this.settings = settings;
+  }
+
+  public JsonObject run() throws Exception {
+    Vertx vertx = Vertx.vertx();
+    try {
+      int dataApiPort = Integer.parseInt(settings.get("dataApiPort"));
+      String[] latency = settings.get("latency").split("-");
+      StubDataApi dataApi = new StubDataApi(vertx).setMinDelay(Integer.parseInt(latency[0]))
+          .setMaxDelay(Integer.parseInt(latency[latency.length - 1]))
+          .setErrorRate(Double.parseDouble(settings.get("errors")))
+          .seed("patron", sample("patron_sample.json"), Integer.parseInt(settings.get("patrons")), "item",
+              sample("item_sample.json"), Integer.parseInt(settings.get("items")));
+      CompletableFuture<Void> started = new CompletableFuture<>();
+      dataApi.start(dataApiPort, listening -> {
+        if (listening.failed()) {
+          started.completeExceptionally(listening.cause());
+        } else if (!settings.get("deliver").isEmpty()) {
+          started.complete(null);
+        } else {
+          deployDeliver(vertx, dataApiPort, started);
+        }
+      });
+      started.get(60, TimeUnit.SECONDS);
+      CompletableFuture<JsonObject> finished = new CompletableFuture<>();
+      vertx.deployVerticle(new Driver(finished), deployed -> {
+        if (deployed.failed()) {
+          finished.completeExceptionally(deployed.cause());
+        }
+      });
+      long duration = Long.parseLong(settings.get("warmup")) + Long.parseLong(settings.get("duration"));
+      JsonObject report = finished.get(duration + 120, TimeUnit.SECONDS);
+      return report.put("settings", new JsonObject(new LinkedHashMap<>(settings))).put("dataApi", dataApi.metrics());
+    } finally {
+      CompletableFuture<Void> closed = new CompletableFuture<>();
+      vertx.close(done -> closed.complete(null));
+      closed.get(30, TimeUnit.SECONDS);
+    }
+  }
+
+  private void deployDeliver(Vertx vertx, int dataApiPort, CompletableFuture<Void> started) {
+    int instances = Integer.parseInt(settings.get("instances"));
+    JsonObject config = new JsonObject().put("http.port", Integer.parseInt(settings.get("deliverPort")))
+        .put("data.api.port", dataApiPort).put("data.api.patrons", "/patrons/").put("data.api.items", "/items/")
+        .put("instances", instances);
+    try {
+      if (!settings.get("config").isEmpty()) {
+        config.mergeIn(new JsonObject(new String(Files.readAllBytes(Paths.get(settings.get("config"))),
+            StandardCharsets.UTF_8)));
+      }
+    } catch (IOException e) {
+      started.completeExceptionally(e);
+      return;
+    }
+    vertx.deployVerticle(MainVerticle.class.getName(),
+        new DeploymentOptions().setConfig(config).setInstances(instances), deployed -> {
+          if (deployed.failed()) {
+            started.completeExceptionally(deployed.cause());
+          } else {
+            started.complete(null);
+          }
+        });
+  }
+
+  private static JsonObject sample(String name) throws IOException {
+    return new JsonObject(new String(Files.readAllBytes(Paths.get(name)), StandardCharsets.UTF_8));
+  }
+
+  // Sends the requests and records their answers, all on its own event loop
+  private class Driver extends AbstractVerticle {
+
+    private final CompletableFuture<JsonObject> finished;
+    private final Random random = new Random();
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+    private final Deque<String> available = new ArrayDeque<>();
+    // patron and item of the loans made, in no particular order
+    private final List<String[]> loaned = new ArrayList<>();
+    private final int[] mix = new int[OPERATIONS.length];
+    private JsonObject loanSample;
+    private JsonObject returnRenewalSample;
+    private HttpClient client;
+    private int rate;
+    private int patrons;
+    private int maxInFlight;
+    private long started;
+    private long recordFrom;
+    private long stopAt;
+    private long sent;
+    private long skipped;
+    private int inFlight;
+
+    Driver(CompletableFuture<JsonObject> finished) {
+      this.finished = finished;
+    }
+
+    @Override
+    public void start(Future<Void> startFuture) throws Exception {
+      loanSample = sample("loan_sample.json");
+      returnRenewalSample = sample("return_renewal_sample.json");
+      rate = Integer.parseInt(settings.get("rate"));
+      patrons = Integer.parseInt(settings.get("patrons"));
+      maxInFlight = Integer.parseInt(settings.get("maxInFlight"));
+      String[] weights = settings.get("mix").split(":");
+      for (int i = 0; i < mix.length; i++) {
+        mix[i] = (i == 0 ? 0 : mix[i - 1]) + (i < weights.length ? Integer.parseInt(weights[i]) : 0);
+      }
+      for (String name : OPERATIONS) {
+        operations.put(name, new Operation());
+      }
+      List<String> items = new ArrayList<>();
+      for (int i = 1; i <= Integer.parseInt(settings.get("items")); i++) {
+        items.add("item-" + i);
+      }
+      Collections.shuffle(items, random);
+      available.addAll(items);
+      String deliver = settings.get("deliver");
+      String host = deliver.isEmpty() ? "localhost" : deliver.substring(0, deliver.lastIndexOf(':'));
+      int port = Integer.parseInt(deliver.isEmpty() ? settings.get("deliverPort")
+          : deliver.substring(deliver.lastIndexOf(':') + 1));
+      client = vertx.createHttpClient(new HttpClientOptions().setDefaultHost(host).setDefaultPort(port)
+          .setMaxPoolSize(maxInFlight).setKeepAlive(true));
+      started = System.nanoTime();
+      recordFrom = started + TimeUnit.SECONDS.toNanos(Long.parseLong(settings.get("warmup")));
+      stopAt = recordFrom + TimeUnit.SECONDS.toNanos(Long.parseLong(settings.get("duration")));
+      vertx.setPeriodic(TICK, this::tick);
+      startFuture.complete();
+    }
+
+    // Sends what has become due since the last tick; timers are late now and
+    // then, the rate is kept all the same
+    private void tick(long timer) {
+      long now = System.nanoTime();
+      long due = Math.min(now, stopAt) - started;
+      while (sent * 1000000000L / rate < due) {
+        long scheduled = started + sent * 1000000000L / rate;
+        sent++;
+        if (inFlight >= maxInFlight) {
+          if (scheduled >= recordFrom) {
+            skipped++;
+          }
+          continue;
+        }
+        send(scheduled);
+      }
+      if (now >= stopAt) {
+        vertx.cancelTimer(timer);
+        whenIdle(System.nanoTime() + TimeUnit.SECONDS.toNanos(60));
+      }
+    }
+
+    private void send(long scheduled) {
+      int pick = random.nextInt(Math.max(1, mix[mix.length - 1]));
+      String name = pick < mix[0] || loaned.isEmpty() ? "loan" : pick < mix[1] ? "return" : "renew";
+      if (name.equals("loan") && available.isEmpty()) {
+        if (loaned.isEmpty()) {
+          skipped++;
+          return;
+        }
+        name = "return";
+      }
+      String patronId;
+      String itemId;
+      String body;
+      if (name.equals("loan")) {
+        patronId = "patron-" + (1 + random.nextInt(patrons));
+        itemId = available.poll();
+        body = loanSample.copy().put("patron", patronId).put("item", itemId).encode();
+      } else {
+        // the last one takes the place of the one picked, so that removing it stays cheap
+        int picked = random.nextInt(loaned.size());
+        String[] loan = loaned.get(picked);
+        loaned.set(picked, loaned.get(loaned.size() - 1));
+        loaned.remove(loaned.size() - 1);
+        patronId = loan[0];
+        itemId = loan[1];
+        body = returnRenewalSample.copy().put("patron", patronId)
+            .put("loan", StubDataApi.loanIdFor(patronId, itemId)).encode();
+      }
+      String operation = name;
+      inFlight++;
+      client.post("/deliver/" + operation, response -> response.bodyHandler(answer -> {
+        answered(operation, scheduled, response.statusCode(), patronId, itemId);
+      })).exceptionHandler(e -> answered(operation, scheduled, 0, patronId, itemId))
+          .putHeader("Content-Type", "application/json").end(body);
+    }
+
+    // Puts the item back where it now belongs: lent after a loan or renewal,
+    // available after a return; what failed stays as it was
+    private void answered(String operation, long scheduled, int status, String patronId, String itemId) {
+      inFlight--;
+      boolean ok = status >= 200 && status < 300;
+      if (operation.equals("loan") && !ok || operation.equals("return") && ok) {
+        available.add(itemId);
+      } else {
+        loaned.add(new String[] { patronId, itemId });
+      }
+      if (scheduled >= recordFrom) {
+        operations.get(operation).record(status, System.nanoTime() - scheduled);
+      }
+    }
+
+    // waits for the answers still out, up to the deadline
+    private void whenIdle(long deadline) {
+      if (inFlight > 0 && System.nanoTime() < deadline) {
+        vertx.setTimer(100, timer -> whenIdle(deadline));
+        return;
+      }
+      double seconds = (Math.max(stopAt, recordFrom) - recordFrom) / 1e9;
+      JsonObject report = new JsonObject().put("seconds", seconds).put("targetRate", rate)
+          .put("sent", sent).put("skipped", skipped).put("unanswered", inFlight);
+      Operation all = new Operation();
+      JsonObject byOperation = new JsonObject();
+      operations.forEach((name, operation) -> {
+        byOperation.put(name, operation.report(seconds));
+        all.add(operation);
+      });
+      report.put("operations", byOperation).put("all", all.report(seconds));
+      client.get("/deliver/metrics/admission", response -> response.bodyHandler(body -> {
+        if (response.statusCode() == 200) {
+          report.put("admission", new JsonObject(body.toString()));
+        }
+        finished.complete(report);
+      })).exceptionHandler(e -> finished.complete(report)).end();
+    }
+  }
+
+  // The answers to one kind of request: statuses and latencies, 0 for no answer
+  private static class Operation {
+
+    private long[] latencies = new long[1024];
+    private int count;
+    private final Map<Integer, Integer> statuses = new TreeMap<>();
+
+    void record(int status, long nanos) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = nanos;
+      statuses.merge(status, 1, Integer::sum);
+    }
+
+    void add(Operation other) {
+      for (int i = 0; i < other.count; i++) {
+        if (count == latencies.length) {
+          latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = other.latencies[i];
+      }
+      other.statuses.forEach((status, times) -> statuses.merge(status, times, Integer::sum));
+    }
+
+    JsonObject report(double seconds) {
+      long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      int ok = 0;
+      JsonObject byStatus = new JsonObject();
+      for (Map.Entry<Integer, Integer> status : statuses.entrySet()) {
+        byStatus.put(String.valueOf(status.getKey()), status.getValue());
+        if (status.getKey() >= 200 && status.getKey() < 300) {
+          ok += status.getValue();
+        }
+      }
+      JsonObject latency = new JsonObject();
+      for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+        latency.put("p" + (percentile % 1 == 0 ? String.valueOf((int) percentile) : String.valueOf(percentile)),
+            millis(sorted, percentile));
+      }
+      latency.put("max", count == 0 ? 0 : sorted[count - 1] / 1e6);
+      return new JsonObject()
+          .put("count", count)
+          .put("ok", ok)
+          .put("errors", count - ok)
+          .put("errorRate", count == 0 ? 0 : (double) (count - ok) / count)
+          .put("throughput", seconds == 0 ? 0 : ok / seconds)
+          .put("statuses", byStatus)
+          .put("latencyMs", latency);
+    }
+
+    private static double millis(long[] sorted, double percentile) {
+      if (sorted.length == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+      return sorted[Math.max(0, index)] / 1e6;
+    }
+  }
+
+  private static String table(JsonObject report) {
+    StringBuilder table = new StringBuilder(String.format("%-8s %8s %8s %8s %8s %9s %9s %9s %9s %9s%n",
+        "", "count", "errors", "error %", "ok/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+    List<String> names = new ArrayList<>(Arrays.asList(OPERATIONS));
+    names.add("all");
+    for (String name : names) {
+      JsonObject operation = name.equals("all") ? report.getJsonObject("all")
+          : report.getJsonObject("operations").getJsonObject(name);
+      JsonObject latency = operation.getJsonObject("latencyMs");
+      table.append(String.format("%-8s %8d %8d %8.2f %8.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n", name,
+          operation.getInteger("count"), operation.getInteger("errors"), 100 * operation.getDouble("errorRate"),
+          operation.getDouble("throughput"), latency.getDouble("p50"), latency.getDouble("p90"),
+          latency.getDouble("p99"), latency.getDouble("p99.9"), latency.getDouble("max")));
+    }
+    return table.append(String.format("target %d/s for %.0f s, %d skipped, %d unanswered, statuses %s",
+        report.getInteger("targetRate"), report.getDouble("seconds"), report.getLong("skipped"),
+        report.getInteger("unanswered"), report.getJsonObject("all").getJsonObject("statuses").encode())).toString();
+  }
+
+}
@@ -0,0 +1,157 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.Set;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.Patron;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(VertxUnitRunner.class)
+public class LoanPoliciesTest {
+
+  private static final ZoneId ZONE = ZoneId.of("Europe/Berlin");
+  // the patron status and the item barcode stand in for the types
+  private static final JsonObject CONFIG = new JsonObject().put("policies.timezone", ZONE.getId())
+      .put("policies.patron.type", "status").put("policies.item.type", "barcode")
+      .put("policies.item.library", "id");
+
+  private Vertx vertx;
+  private File folder;
+  private LocalDate today;
+
+  @Before
+  public void setUp() throws IOException {
+    vertx = Vertx.vertx();
+    folder = Files.createTempDirectory("deliver-policies").toFile();
+    today = LocalDate.now(ZONE);
+  }
+
+  @After
+  public void tearDown(TestContext context) {
+    for (File file : folder.listFiles()) {
+      file.delete();
+    }
+    folder.delete();
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test
+  public void testDueDateMovesOnToTheNextOpenDay() throws IOException {
+    write(new JsonArray().add(policy("students", "S", null, 7)), new JsonArray().add(day(7)).add(day(8)));
+    LoanPolicies policies = new LoanPolicies(vertx, folder.getPath(), CONFIG);
+    long loaned = today.atTime(10, 30).atZone(ZONE).toInstant().toEpochMilli();
+    LoanTerms terms = policies.termsFor(patron("S"), item(null));
+    Assert.assertEquals("students", terms.getPolicy().getName());
+    ZonedDateTime due = Instant.ofEpochSecond(terms.dueDate(loaned)).atZone(ZONE);
+    Assert.assertEquals(today.plusDays(9), due.toLocalDate());
+    Assert.assertEquals(10, due.getHour());
+    Assert.assertEquals(30, due.getMinute());
+    // any other patron gets the default of 14 days
+    Assert.assertEquals(today.plusDays(14),
+        Instant.ofEpochSecond(policies.termsFor(patron("X"), item(null)).dueDate(loaned)).atZone(ZONE).toLocalDate());
+  }
+
+  @Test
+  public void testMostSpecificPolicyWinsAndLimitsRenewals() throws IOException {
+    write(new JsonArray().add(policy("students", "S", null, 28).put("maxRenewals", 2))
+        .add(policy("student dvds", "S", "DVD", 7).put("maxRenewals", 0)), new JsonArray());
+    LoanPolicies policies = new LoanPolicies(vertx, folder.getPath(), CONFIG);
+    LoanTerms books = policies.termsFor(patron("S"), item("BOOK"));
+    Assert.assertTrue(books.mayRenew(null));
+    Assert.assertTrue(books.mayRenew(1));
+    Assert.assertFalse(books.mayRenew(2));
+    LoanTerms dvds = policies.termsFor(patron("S"), item("DVD"));
+    Assert.assertEquals("student dvds", dvds.getPolicy().getName());
+    Assert.assertFalse(dvds.mayRenew(0));
+    Assert.assertSame(dvds, policies.termsFor(patron("S"), item("DVD")));
+    Assert.assertTrue(LoanPolicies.defaultTerms().mayRenew(100));
+  }
+
+  @Test
+  public void testFineCountsOpenDaysOnlyUpToTheLimit() throws IOException {
+    write(new JsonArray().add(policy("fined", null, null, 7).put("finePerDay", 50).put("maxFine", 120)),
+        new JsonArray().add(day(9)));
+    LoanTerms terms = new LoanPolicies(vertx, folder.getPath(), CONFIG).termsFor(null, item(null));
+    double due = terms.dueDate(today.atTime(12, 0).atZone(ZONE).toInstant().toEpochMilli());
+    Assert.assertEquals(0, terms.fine(due, millis(6)));
+    Assert.assertEquals(0, terms.fine(due, millis(7)));
+    // days 8 and 10 are open, 9 is not
+    Assert.assertEquals(100, terms.fine(due, millis(10)));
+    Assert.assertEquals(120, terms.fine(due, millis(30)));
+    Assert.assertEquals(0, terms.fine(null, millis(30)));
+  }
+
+  @Test
+  public void testInvalidFileKeepsThePreviousPolicies(TestContext context) throws IOException {
+    write(new JsonArray().add(policy("students", "S", null, 28)), new JsonArray());
+    LoanPolicies policies = new LoanPolicies(vertx, folder.getPath(), CONFIG);
+    write(new JsonArray().add(policy("broken", "S", null, -1)), new JsonArray().add("no date"));
+    policies.refresh().setHandler(context.asyncAssertSuccess(loaded -> {
+      context.assertFalse(loaded);
+      context.assertEquals(2, policies.getStatus().getJsonArray("errors").size());
+      context.assertEquals("students", policies.termsFor(patron("S"), item(null)).getPolicy().getName());
+    }));
+  }
+
+  @Test
+  public void testPatronsBoundWithTheNeededFieldsKeepTheirType() throws IOException {
+    write(new JsonArray().add(policy("students", "S", null, 28)), new JsonArray());
+    LoanPolicies policies = new LoanPolicies(vertx, folder.getPath(), CONFIG);
+    // the rules only need the id; the policies add the status
+    Set<String> fields = Tenants.neededPatronFields(() -> Collections.singleton("id"), policies.getPatronFields())
+        .get();
+    Patron patron = Codec.PATRON.decode("{\"id\":\"p\",\"status\":\"S\",\"other\":1}", fields);
+    Assert.assertEquals("students", policies.termsFor(patron, item(null)).getPolicy().getName());
+    Assert.assertNull(Tenants.neededPatronFields(() -> null, policies.getPatronFields()).get());
+  }
+
+  private void write(JsonArray policies, JsonArray closedDays) throws IOException {
+    JsonObject content = new JsonObject().put("policies", policies).put("calendars",
+        new JsonObject().put(LoanPolicies.ANY_LIBRARY, new JsonObject().put("closedDays", closedDays)));
+    Files.write(new File(folder, LoanPolicies.FILE).toPath(), content.encodePrettily().getBytes("UTF-8"));
+  }
+
+  private static JsonObject policy(String name, String patronType, String itemType, int loanDays) {
+    return new JsonObject().put("name", name).put("patronType", patronType).put("itemType", itemType)
+        .put("loanDays", loanDays);
+  }
+
+  private String day(int fromToday) {
+    return today.plusDays(fromToday).toString();
+  }
+
+  private long millis(int fromToday) {
+    return today.plusDays(fromToday).atTime(16, 0).atZone(ZONE).toInstant().toEpochMilli();
+  }
+
+  private static Patron patron(String type) {
+    Patron patron = new Patron();
+    patron.setStatus(type);
+    return patron;
+  }
+
+  private static Item item(String type) {
+    Item item = new Item();
+    item.setBarcode(type);
+    return item;
+  }
+
+}
@@ -0,0 +1,130 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(VertxUnitRunner.class)
+public class OfflineTest {
+
+  private static final int DELIVER_PORT = 8085;
+  private static final int DATA_API_PORT = 9135;
+
+  private Vertx vertx;
+  private StubDataApi dataApi;
+  private HttpClient client;
+  private File folder;
+
+  @Before
+  public void setUp(TestContext context) throws IOException {
+    vertx = Vertx.vertx();
+    dataApi = new StubDataApi(vertx).setMaxDelay(5);
+    dataApi.start(DATA_API_PORT, context.asyncAssertSuccess());
+    folder = Files.createTempDirectory("deliver-offline").toFile();
+    // seen before the last restart
+    JsonObject snapshot = new JsonObject()
+        .put("/patrons/known", new JsonObject().put("id", "known").put("status", "ACTIVE").encode())
+        .put("/items/shelved", item("shelved", "01")).put("/items/contested", item("contested", "01"));
+    Files.write(new File(folder, "hbz.snapshot").toPath(), snapshot.encode().getBytes(StandardCharsets.UTF_8));
+    DeploymentOptions options = new DeploymentOptions().setConfig(new JsonObject().put("http.port", DELIVER_PORT)
+        .put("data.api.port", DATA_API_PORT).put("data.api.patrons", "/patrons/").put("data.api.items", "/items/")
+        .put("data.api.breaker.failures", 2).put("data.api.breaker.open", 100)
+        .put("offline.folder", folder.getPath()).put("offline.sync.interval", 50));
+    vertx.deployVerticle(MainVerticle.class.getName(), options, context.asyncAssertSuccess());
+    client = vertx.createHttpClient();
+  }
+
+  @After
+  public void tearDown(TestContext context) {
+    vertx.close(context.asyncAssertSuccess(closed -> {
+      for (File file : folder.listFiles()) {
+        file.delete();
+      }
+      folder.delete();
+    }));
+  }
+
+  @Test
+  public void testLendsOfflineAndSyncsLater(TestContext context) {
+    Async async = context.async();
+    loan(context, "reader", "first", 200, online -> {
+      dataApi.setFailures(Integer.MAX_VALUE);
+      loan(context, "known", "shelved", 202, offline -> {
+        // the snapshot knows it is lent now, and from the online loan that "first" is
+        loan(context, "reader", "shelved", 400, again -> loan(context, "reader", "first", 400, lent -> {
+          loan(context, "known", "unknown", 503, unknown -> loan(context, "known", "contested", 202, contested -> {
+            dataApi.getItems().put("contested", new JsonObject(item("contested", "02")));
+            dataApi.setFailures(0);
+            whenSynced(status -> {
+              JsonObject loan = dataApi.getLoans().get(StubDataApi.loanIdFor("known", "shelved"));
+              context.assertEquals("shelved", loan.getString("itemId"));
+              context.assertEquals("02",
+                  dataApi.getItems().get("shelved").getJsonObject("itemStatus").getString("value"));
+              context.assertNull(dataApi.getLoans().get(StubDataApi.loanIdFor("known", "contested")));
+              context.assertEquals(1, status.getJsonArray("conflicts").size());
+              context.assertEquals("contested",
+                  status.getJsonArray("conflicts").getJsonObject(0).getString("itemId"));
+              async.complete();
+            });
+          }));
+        }));
+      });
+    });
+  }
+
+  @Test
+  public void testSyncCutOffAfterTheLoanDoesNotLendTwice(TestContext context) {
+    Async async = context.async();
+    dataApi.getItems().put("shelved", new JsonObject(item("shelved", "01")));
+    dataApi.setFailures(Integer.MAX_VALUE);
+    loan(context, "known", "shelved", 202, offline -> {
+      // the loan is created, setting the item status fails
+      dataApi.setFailuresAfterLoan(3).setFailures(0);
+      whenSynced(status -> {
+        context.assertEquals(1, dataApi.metrics().getInteger("postedLoans"));
+        context.assertEquals("02", dataApi.getItems().get("shelved").getJsonObject("itemStatus").getString("value"));
+        context.assertTrue(status.getJsonArray("conflicts").isEmpty());
+        async.complete();
+      });
+    });
+  }
+
+  private void loan(TestContext context, String patronId, String itemId, int expectedStatus, Handler<Void> next) {
+    client.post(DELIVER_PORT, "localhost", "/deliver/loan", response -> response.bodyHandler(body -> {
+      context.assertEquals(expectedStatus, response.statusCode(), "loan of " + itemId + ": " + body);
+      next.handle(null);
+    })).end(Json.encode(new Delivery(patronId, itemId)));
+  }
+
+  private void whenSynced(Handler<JsonObject> synced) {
+    vertx.setPeriodic(50, timer -> client.getNow(DELIVER_PORT, "localhost", "/deliver/offline",
+        response -> response.bodyHandler(body -> {
+          JsonObject status = new JsonObject(body.toString());
+          if (status.getJsonArray("pending").isEmpty() && vertx.cancelTimer(timer)) {
+            synced.handle(status);
+          }
+        })));
+  }
+
+  private static String item(String id, String status) {
+    return new JsonObject().put("id", id).put("barcode", "barcode-" + id)
+        .put("itemStatus", new JsonObject().put("value", status)).encode();
+  }
+
+}
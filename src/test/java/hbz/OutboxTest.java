@@ -0,0 +1,173 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(VertxUnitRunner.class)
+public class OutboxTest {
+
+  private static final int DATA_API_PORT = 9134;
+
+  private Vertx vertx;
+  private StubDataApi dataApi;
+  private File folder;
+  private JsonObject config;
+
+  @Before
+  public void setUp(TestContext context) throws IOException {
+    vertx = Vertx.vertx();
+    dataApi = new StubDataApi(vertx).setMaxDelay(5);
+    dataApi.start(DATA_API_PORT, context.asyncAssertSuccess());
+    folder = Files.createTempDirectory("deliver-outbox").toFile();
+    config = new JsonObject().put("data.api.port", DATA_API_PORT).put("outbox.drain.interval", 20)
+        .put("outbox.retry.initial", 20);
+  }
+
+  @After
+  public void tearDown(TestContext context) {
+    for (File file : folder.listFiles()) {
+      file.delete();
+    }
+    folder.delete();
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test
+  public void testDeliversLatestWritePerItem(TestContext context) {
+    Outbox outbox = open();
+    Async async = context.async();
+    Futures.then(outbox.add(HttpMethod.PUT, "/items/a", item("a", "02"), null), first -> {
+      outbox.add(HttpMethod.PUT, "/items/b", item("b", "02"), null);
+      return outbox.add(HttpMethod.PUT, "/items/a", item("a", "03"), null);
+    }).setHandler(context.asyncAssertSuccess(latest -> {
+      // the worker is not started yet, so nothing can have been delivered
+      context.assertEquals(item("a", "03"), outbox.pending("/items/a"));
+      start(outbox);
+      whenDrained(outbox, drained -> {
+        context.assertEquals("03", dataApi.getItems().get("a").getJsonObject("itemStatus").getString("value"));
+        context.assertEquals("02", dataApi.getItems().get("b").getJsonObject("itemStatus").getString("value"));
+        context.assertNull(outbox.pending("/items/a"));
+        async.complete();
+      });
+    }));
+  }
+
+  @Test
+  public void testReplaysUndeliveredWritesAfterRestart(TestContext context) {
+    Outbox before = open();
+    Async async = context.async();
+    before.add(HttpMethod.PUT, "/items/c", item("c", "02"), "replayed").setHandler(context.asyncAssertSuccess(
+        journaled -> {
+          before.close();
+          Outbox after = open();
+          context.assertEquals(1, after.size());
+          context.assertEquals(item("c", "02"), after.pending("/items/c"));
+          start(after);
+          whenDrained(after, drained -> {
+            context.assertEquals("02", dataApi.getItems().get("c").getJsonObject("itemStatus").getString("value"));
+            context.assertTrue(dataApi.getRequestIds().contains("replayed"));
+            after.close();
+            context.assertEquals(0, open().size());
+            async.complete();
+          });
+        }));
+  }
+
+  @Test
+  public void testRetriesWhileDataApiFails(TestContext context) {
+    dataApi.setFailures(3);
+    Outbox outbox = open();
+    start(outbox);
+    Async async = context.async();
+    outbox.add(HttpMethod.PUT, "/items/d", item("d", "02"), null).setHandler(context.asyncAssertSuccess(
+        journaled -> whenDrained(outbox, drained -> {
+          context.assertEquals("02", dataApi.getItems().get("d").getJsonObject("itemStatus").getString("value"));
+          context.assertEquals(3L, outbox.metrics().getLong("retries"));
+          async.complete();
+        })));
+  }
+
+  @Test
+  public void testCompactsJournalWhileWritesArePending(TestContext context) {
+    config.put("outbox.compact.size", 1000);
+    File file = new File(folder, "hbz.journal");
+    Outbox before = open();
+    // one after the other, so that the last is the latest
+    Future<Void> added = before.add(HttpMethod.PUT, "/items/f", item("f", "02"), null);
+    for (int i = 0; i < 30; i++) {
+      String status = String.valueOf(i);
+      added = Futures.then(added, previous -> before.add(HttpMethod.PUT, "/items/e", item("e", status), null));
+    }
+    Async async = context.async();
+    added.setHandler(context.asyncAssertSuccess(journaled -> {
+      before.close();
+      context.assertTrue(file.length() > 1000);
+      // nothing was delivered, the replay keeps only the latest write per item
+      Outbox after = open();
+      context.assertTrue(file.length() < 1000, "journal has " + file.length() + " bytes");
+      context.assertEquals(item("e", "29"), after.pending("/items/e"));
+      after.close();
+      Outbox again = open();
+      context.assertEquals(2, again.size());
+      context.assertEquals(item("f", "02"), again.pending("/items/f"));
+      start(again);
+      whenDrained(again, drained -> {
+        context.assertEquals("29", dataApi.getItems().get("e").getJsonObject("itemStatus").getString("value"));
+        async.complete();
+      });
+    }));
+  }
+
+  @Test
+  public void testWorkerCallsStayOutOfTheTenantLimit(TestContext context) {
+    Metrics metrics = new Metrics();
+    Outbox outbox = new Outbox(vertx, new File(folder, "hbz.journal"), config, metrics);
+    start(outbox);
+    Async async = context.async();
+    outbox.add(HttpMethod.PUT, "/items/g", item("g", "02"), null).setHandler(context.asyncAssertSuccess(
+        journaled -> whenDrained(outbox, drained -> {
+          String scraped = metrics.scrape();
+          context.assertTrue(scraped.contains("tenant=\"hbz\",worker=\"outbox\"}"), scraped);
+          context.assertFalse(scraped.contains("deliver_upstream_limit{"), scraped);
+          async.complete();
+        })));
+  }
+
+  private Outbox open() {
+    return new Outbox(vertx, new File(folder, "hbz.journal"), config, new Metrics());
+  }
+
+  // like a verticle would, on an event loop
+  private void start(Outbox outbox) {
+    vertx.runOnContext(now -> outbox.start());
+  }
+
+  private void whenDrained(Outbox outbox, Handler<Void> drained) {
+    vertx.setPeriodic(10, timer -> {
+      if (outbox.size() == 0) {
+        vertx.cancelTimer(timer);
+        drained.handle(null);
+      }
+    });
+  }
+
+  private static String item(String id, String status) {
+    return new JsonObject().put("id", id).put("itemStatus", new JsonObject().put("value", status)).encode();
+  }
+
+}
@@ -0,0 +1,135 @@
+package hbz;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+
+import org.folio.rest.jaxrs.model.Loan;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(VertxUnitRunner.class)
+public class OverdueTest {
+
+  private static final int DELIVER_PORT = 8087;
+  private static final int DATA_API_PORT = 9137;
+  private static final long HOUR = 3600;
+  private static final long DAY = 24 * HOUR;
+  private static final long NOW = 1790000000;
+
+  private Vertx vertx;
+  private StubDataApi dataApi;
+
+  @Before
+  public void setUp(TestContext context) {
+    vertx = Vertx.vertx();
+    dataApi = new StubDataApi(vertx).setMaxDelay(5);
+    dataApi.start(DATA_API_PORT, context.asyncAssertSuccess());
+  }
+
+  @After
+  public void tearDown(TestContext context) {
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test
+  public void testNoticesComeDueCourtesyFirst() {
+    DueDateIndex index = new DueDateIndex(HOUR, 2 * DAY, 7 * DAY);
+    index.put("loan-1", loan("loan-1", NOW + 5 * DAY), NOW);
+    index.put("late", loan("late", NOW - HOUR), NOW);
+    assertNotices(index.poll(NOW, 10), "late", DueDateIndex.OVERDUE);
+    Assert.assertTrue(index.poll(NOW + 3 * DAY - 1, 10).isEmpty());
+    assertNotices(index.poll(NOW + 3 * DAY, 10), "loan-1", DueDateIndex.COURTESY);
+    assertNotices(index.poll(NOW + 5 * DAY, 10), "loan-1", DueDateIndex.OVERDUE);
+    // both are reminded a week after their due dates; the return takes one out
+    index.remove("late");
+    List<JsonObject> reminders = index.poll(NOW + 12 * DAY, 10);
+    assertNotices(reminders, "loan-1", DueDateIndex.OVERDUE);
+    Assert.assertEquals(1, (int) reminders.get(0).getInteger("reminder"));
+    // a renewal starts over
+    index.put("loan-1", loan("loan-1", NOW + 40 * DAY), NOW + 12 * DAY);
+    Assert.assertTrue(index.poll(NOW + 30 * DAY, 10).isEmpty());
+    Assert.assertEquals(1, index.size());
+  }
+
+  @Test
+  public void testScanKeepsChangesMadeMeanwhile() {
+    DueDateIndex index = new DueDateIndex(HOUR, 0, 0);
+    index.put("gone", loan("gone", NOW + DAY), NOW);
+    index.startScan();
+    index.scanned(loan("returned", NOW - DAY), NOW);
+    index.remove("returned");
+    index.put("renewed", loan("renewed", NOW + 30 * DAY), NOW);
+    index.scanned(loan("renewed", NOW - DAY), NOW);
+    index.remove("lent");
+    index.scanned(loan("lent", NOW - DAY), NOW);
+    index.scanned(loan("overdue", NOW - DAY), NOW);
+    // "gone" was not read, but may just have slipped between two pages
+    Assert.assertEquals(0, index.endScan(true));
+    assertNotices(index.poll(NOW, 10), "overdue", DueDateIndex.OVERDUE);
+    index.startScan();
+    Assert.assertEquals(1, index.endScan(true));
+    Assert.assertEquals(2, index.size());
+  }
+
+  @Test
+  public void testOverdueLoansFoundByTheScanAreNoticed(TestContext context) {
+    long now = System.currentTimeMillis() / 1000;
+    for (String id : new String[] { "a", "b", "c" }) {
+      dataApi.getLoans().put(id, new JsonObject(Json.encode(loan(id, now - DAY))));
+    }
+    Set<String> noticed = new HashSet<>();
+    Async async = context.async();
+    MessageConsumer<JsonObject> notices = vertx.eventBus().consumer(OverdueNotices.NOTICES, message -> {
+      for (Object notice : message.body().getJsonArray("notices")) {
+        context.assertEquals(DueDateIndex.OVERDUE, ((JsonObject) notice).getString("kind"));
+        noticed.add(((JsonObject) notice).getString("loanId"));
+      }
+      if (noticed.size() == 3) {
+        async.complete();
+      }
+    });
+    notices.completionHandler(context.asyncAssertSuccess(registered -> {
+      DeploymentOptions options = new DeploymentOptions().setConfig(new JsonObject().put("http.port", DELIVER_PORT)
+          .put("data.api.port", DATA_API_PORT).put("data.api.patrons", "/patrons/").put("data.api.items", "/items/")
+          .put("data.api.loans", "/loans").put("overdue.interval", 50).put("overdue.scan.page", 2)
+          .put("overdue.notice.batch", 2));
+      vertx.deployVerticle(MainVerticle.class.getName(), options, context.asyncAssertSuccess(deployed -> {
+        // the tenant is loaded with its first request
+        HttpClient client = vertx.createHttpClient();
+        client.post(DELIVER_PORT, "localhost", "/deliver/loan", response -> response.bodyHandler(body -> {
+          context.assertEquals(200, response.statusCode(), body.toString());
+        })).end(Json.encode(new Delivery("reader", "first")));
+      }));
+    }));
+  }
+
+  private static Loan loan(String id, long dueDate) {
+    Loan loan = new Loan();
+    loan.setId(id);
+    loan.setPatronId("patron-" + id);
+    loan.setItemId("item-" + id);
+    loan.setDueDate((double) dueDate);
+    return loan;
+  }
+
+  private static void assertNotices(List<JsonObject> notices, String loanId, String kind) {
+    Assert.assertEquals(1, notices.size());
+    Assert.assertEquals(loanId, notices.get(0).getString("loanId"));
+    Assert.assertEquals(kind, notices.get(0).getString("kind"));
+  }
+
+}
@@ -0,0 +1,126 @@
+package hbz;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.Json;
+
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.Patron;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loan rule evaluation with circulation.drl alone and with a number of
+ * generated rules next to it. The generated rules look like the ones the rule
+ * editor writes, each for another item status, so only circulation.drl fires.
+ * "evaluate" goes through the RuleEngine and its worker thread hand-off,
+ * "statelessSession" measures the rule base alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RuleBenchmark {
+
+  @Param({ "0", "100", "1000" })
+  public int generatedRules;
+
+  private Vertx vertx;
+  private Path folder;
+  private RuleRepository ruleRepository;
+  private RuleEngine ruleEngine;
+  private Patron patron;
+  private Item item;
+
+  @Setup
+  public void setUp() throws IOException {
+    vertx = Vertx.vertx();
+    folder = Files.createTempDirectory("deliver-rules-benchmark");
+    StringBuilder rules = new StringBuilder("package rules;\n")
+        .append("import org.folio.rest.jaxrs.model.Patron;\n")
+        .append("import org.folio.rest.jaxrs.model.Item;\n")
+        .append("import hbz.LoanPermission;\n\n");
+    for (int i = 0; i < generatedRules; i++) {
+      rules.append("rule \"generated ").append(i).append("\"\n")
+          .append("when\n")
+          .append("$p : Patron(getStatus().equals(\"ACTIVE\"))\n")
+          .append("$i : Item(getItemStatus().getValue().equals(\"generated-").append(i).append("\"))\n")
+          .append("$l : LoanPermission()\n")
+          .append("then\n")
+          .append("$l.setPermitted(true);\n")
+          .append("end\n\n");
+    }
+    Files.write(folder.resolve("generated.drl"), rules.toString().getBytes("UTF-8"));
+    ruleRepository = new RuleRepository(vertx, folder.toString());
+    ruleEngine = new RuleEngine(vertx, ruleRepository, new Metrics());
+    patron = Json.decodeValue(new String(Files.readAllBytes(Paths.get("patron_sample.json")), "UTF-8"),
+        Patron.class);
+    item = Json.decodeValue(new String(Files.readAllBytes(Paths.get("item_sample.json")), "UTF-8"), Item.class);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    vertx.close();
+    Files.deleteIfExists(folder.resolve("generated.drl"));
+    Files.deleteIfExists(folder);
+  }
+
+  @Benchmark
+  public LoanPermission evaluate() throws Exception {
+    return await(ruleEngine.evaluate(patron, item));
+  }
+
+  @Benchmark
+  public List<LoanPermission> evaluateAllOfTen() throws Exception {
+    List<Item> items = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      items.add(item);
+    }
+    return await(ruleEngine.evaluateAll(patron, items));
+  }
+
+  @Benchmark
+  public LoanPermission statelessSession() {
+    LoanPermission loanPermission = new LoanPermission();
+    List<Object> facts = new ArrayList<>();
+    facts.add(patron);
+    facts.add(item);
+    facts.add(loanPermission);
+    ruleRepository.getKieBase().newStatelessKieSession().execute(facts);
+    return loanPermission;
+  }
+
+  static <T> T await(Future<T> future) throws Exception {
+    CompletableFuture<T> done = new CompletableFuture<>();
+    future.setHandler(result -> {
+      if (result.succeeded()) {
+        done.complete(result.result());
+      } else {
+        done.completeExceptionally(result.cause());
+      }
+    });
+    return done.get(10, TimeUnit.SECONDS);
+  }
+
+}
@@ -0,0 +1,219 @@
+package hbz;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import io.vertx.core.Vertx;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+
+import org.drools.core.base.ClassObjectType;
+import org.drools.core.impl.InternalKnowledgeBase;
+import org.drools.core.rule.Declaration;
+import org.drools.core.rule.Pattern;
+import org.drools.core.spi.Constraint;
+import org.folio.rest.jaxrs.model.Item;
+import org.folio.rest.jaxrs.model.ItemStatus;
+import org.folio.rest.jaxrs.model.Patron;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.kie.api.KieBase;
+
+@RunWith(VertxUnitRunner.class)
+public class RuleRepositoryTest {
+
+  private static final String RULE = "package rules;\n"
+      + "import hbz.LoanPermission;\n\n"
+      + "rule \"Everything goes\"\n"
+      + "when\n"
+      + "  $l : LoanPermission()\n"
+      + "then\n"
+      + "  $l.setPermitted(true);\n"
+      + "end";
+
+  private Vertx vertx;
+  private File folder;
+  private RuleRepository ruleRepository;
+
+  @Before
+  public void setUp() throws IOException {
+    vertx = Vertx.vertx();
+    folder = Files.createTempDirectory("deliver-rules").toFile();
+    ruleRepository = new RuleRepository(vertx, folder.getPath());
+  }
+
+  @After
+  public void tearDown(TestContext context) {
+    for (File file : folder.listFiles()) {
+      file.delete();
+    }
+    folder.delete();
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test
+  public void testNewRuleFileBecomesLive(TestContext context) throws IOException {
+    KieBase before = ruleRepository.getKieBase();
+    Files.write(new File(folder, "everything.drl").toPath(), RULE.getBytes());
+    Async async = context.async();
+    ruleRepository.refresh().setHandler(context.asyncAssertSuccess(compiled -> {
+      context.assertTrue(compiled);
+      context.assertNotEquals(before, ruleRepository.getKieBase());
+      context.assertNotNull(ruleRepository.getKieBase().getRule("rules", "Everything goes"));
+      context.assertEquals("1.0.2", ruleRepository.getStatus().getString("version"));
+      async.complete();
+    }));
+  }
+
+  @Test
+  public void testBrokenRuleFileKeepsPreviousRuleBase(TestContext context) throws IOException {
+    KieBase before = ruleRepository.getKieBase();
+    Files.write(new File(folder, "broken.drl").toPath(), RULE.replace("then", "").getBytes());
+    Async async = context.async();
+    ruleRepository.refresh().setHandler(context.asyncAssertSuccess(compiled -> {
+      context.assertFalse(compiled);
+      context.assertEquals(before, ruleRepository.getKieBase());
+      context.assertFalse(ruleRepository.getStatus().getJsonArray("errors").isEmpty());
+      context.assertEquals("1.0.1", ruleRepository.getStatus().getString("version"));
+      async.complete();
+    }));
+  }
+
+  @Test
+  public void testRuleJsonGoesIntoDecisionTable(TestContext context) throws IOException {
+    KieBase before = ruleRepository.getKieBase();
+    Files.write(new File(folder, "missing.rule.json").toPath(),
+        "{\"ruleName\" : \"missing\", \"patronStatus\" : \"ACTIVE\", \"itemStatus\" : \"03\"}".getBytes());
+    Async async = context.async();
+    ruleRepository.refresh().setHandler(context.asyncAssertSuccess(compiled -> {
+      context.assertTrue(compiled);
+      // no DRL changed, so Drools is left alone
+      context.assertEquals(before, ruleRepository.getKieBase());
+      context.assertEquals(1, ruleRepository.getStatus().getInteger("tableRules"));
+      Patron patron = new Patron();
+      patron.setStatus("ACTIVE");
+      context.assertEquals("missing", ruleRepository.getDecisionTable().match(patron, item("03")));
+      context.assertNull(ruleRepository.getDecisionTable().match(patron, item("01")));
+      async.complete();
+    }));
+  }
+
+  @Test
+  public void testOutcomesAreRememberedUntilTheRulesChange(TestContext context) throws IOException {
+    RuleEngine ruleEngine = new RuleEngine(vertx, ruleRepository, Metrics.shared(vertx));
+    // the classpath rule looks at the patron status and the item status only
+    context.assertEquals("[\"Patron.getStatus\",\"Item.getItemStatus\"]",
+        ruleRepository.getOutcomes().metrics().getJsonArray("attributes").encode());
+    context.assertTrue(ruleRepository.getOutcomes().getPatronFields().contains("status"));
+    Patron patron = new Patron();
+    patron.setStatus("ACTIVE");
+    Item shelved = item("01");
+    shelved.setId("shelved");
+    Item other = item("01");
+    other.setId("other");
+    Async async = context.async();
+    ruleEngine.evaluate(patron, shelved).setHandler(context.asyncAssertSuccess(first -> {
+      context.assertTrue(first.isPermitted());
+      ruleEngine.evaluateAll(patron, Arrays.asList(other, item("03"), item("03")))
+          .setHandler(context.asyncAssertSuccess(permissions -> {
+            context.assertTrue(permissions.get(0).isPermitted());
+            context.assertFalse(permissions.get(1).isPermitted());
+            context.assertFalse(permissions.get(2).isPermitted());
+            // one for each combination, both items with status 01 are the same
+            context.assertEquals(1L, ruleEngine.metrics().getLong("outcomeHits"));
+            context.assertEquals(2, ruleRepository.getOutcomes().metrics().getInteger("size"));
+            try {
+              Files.write(new File(folder, "everything.drl").toPath(), RULE.getBytes());
+            } catch (IOException e) {
+              context.fail(e);
+            }
+            ruleRepository.refresh().setHandler(context.asyncAssertSuccess(compiled -> {
+              context.assertEquals(0, ruleRepository.getOutcomes().metrics().getInteger("size"));
+              ruleEngine.evaluate(patron, item("03")).setHandler(context.asyncAssertSuccess(changed -> {
+                context.assertTrue(changed.isPermitted());
+                async.complete();
+              }));
+            }));
+          }));
+    }));
+  }
+
+  @Test
+  public void testLeastRecentOutcomesMakeRoom(TestContext context) {
+    RuleOutcomes outcomes = new RuleOutcomes(ruleRepository.getKieBase(), 2);
+    Patron patron = new Patron();
+    patron.setStatus("ACTIVE");
+    List<Object> shelved = outcomes.keyOf(patron, item("01"));
+    List<Object> lent = outcomes.keyOf(patron, item("02"));
+    List<Object> missing = outcomes.keyOf(patron, item("03"));
+    outcomes.put(shelved, true);
+    outcomes.put(lent, false);
+    context.assertTrue(outcomes.get(shelved));
+    // lent was used least recently and goes; missing is remembered all the same
+    outcomes.put(missing, false);
+    context.assertNull(outcomes.get(lent));
+    context.assertTrue(outcomes.get(shelved));
+    context.assertFalse(outcomes.get(missing));
+    context.assertEquals(1L, outcomes.metrics().getLong("evictions"));
+  }
+
+  @Test
+  public void testUnknownConstraintsSwitchRememberingOff(TestContext context) {
+    Constraint unknown = (Constraint) Proxy.newProxyInstance(Constraint.class.getClassLoader(),
+        new Class<?>[] { Constraint.class }, (proxy, method, args) -> {
+          switch (method.getName()) {
+          case "getType":
+            return Constraint.ConstraintType.ALPHA;
+          case "getRequiredDeclarations":
+            return new Declaration[0];
+          default:
+            return null;
+          }
+        });
+    Pattern pattern = new Pattern(0, new ClassObjectType(Item.class));
+    pattern.addConstraint(unknown);
+    context.assertFalse(RuleOutcomes.collect(pattern, (InternalKnowledgeBase) ruleRepository.getKieBase(),
+        new BitSet(), new BitSet()));
+  }
+
+  @Test
+  public void testQuotesInRulesStayInsideTheirLiterals(TestContext context) throws IOException {
+    Rule rule = new Rule();
+    rule.setRuleName("Say \"yes\" \\ to 04");
+    rule.setPatronStatus("ACTIVE");
+    // without escaping this permits every item
+    rule.setItemStatus("04\") || true || (\"");
+    Files.write(new File(folder, "quoted.drl").toPath(), RuleRepository.toDrl(rule).getBytes("UTF-8"));
+    RuleEngine ruleEngine = new RuleEngine(vertx, ruleRepository, Metrics.shared(vertx));
+    Patron patron = new Patron();
+    patron.setStatus("ACTIVE");
+    Async async = context.async();
+    ruleRepository.refresh().setHandler(context.asyncAssertSuccess(compiled -> {
+      context.assertTrue(compiled, ruleRepository.getStatus().encode());
+      context.assertNotNull(ruleRepository.getKieBase().getRule("rules", "Say \"yes\" \\ to 04"));
+      ruleEngine.evaluateAll(patron, Arrays.asList(item("04"), item(rule.getItemStatus())))
+          .setHandler(context.asyncAssertSuccess(permissions -> {
+            context.assertFalse(permissions.get(0).isPermitted());
+            context.assertTrue(permissions.get(1).isPermitted());
+            async.complete();
+          }));
+    }));
+  }
+
+  private static Item item(String status) {
+    ItemStatus itemStatus = new ItemStatus();
+    itemStatus.setValue(status);
+    Item item = new Item();
+    item.setItemStatus(itemStatus);
+    return item;
+  }
+
+}
@@ -0,0 +1,274 @@
+package hbz;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.BodyHandler;
+
+/**
+ * Minimal in-process stand-in for the patron, item and loan APIs. Patrons and
+ * items are made up from their ids unless seeded, every answer is delayed by a
+ * random amount so that concurrent requests interleave, and every write is
+ * recorded. A share of the calls can be answered with 503, as by a data API
+ * under load, see {@link #setErrorRate(double)}.
+ */
+public class StubDataApi {
+
+  private final Vertx vertx;
+  private final Random random = new Random();
+  private final Map<String, JsonObject> patrons = new ConcurrentHashMap<>();
+  private final Map<String, JsonObject> loans = new ConcurrentHashMap<>();
+  private final Map<String, JsonObject> items = new ConcurrentHashMap<>();
+  private final List<String> requestIds = new CopyOnWriteArrayList<>();
+  private final Map<String, String> tenants = new ConcurrentHashMap<>();
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicInteger calls = new AtomicInteger();
+  private final AtomicInteger injectedErrors = new AtomicInteger();
+  private final AtomicInteger postedLoans = new AtomicInteger();
+  private final AtomicInteger failuresAfterLoan = new AtomicInteger();
+  private HttpServer server;
+  private int minDelay = 1;
+  private int maxDelay = 20;
+  private double errorRate;
+
+  public StubDataApi(Vertx vertx) {
+    this.vertx = vertx;
+  }
+
+  public StubDataApi setMaxDelay(int maxDelay) {
+    this.maxDelay = maxDelay;
+    return this;
+  }
+
+  public StubDataApi setMinDelay(int minDelay) {
+    this.minDelay = minDelay;
+    return this;
+  }
+
+  // this share of all calls, picked at random, is answered with 503
+  public StubDataApi setErrorRate(double errorRate) {
+    this.errorRate = errorRate;
+    return this;
+  }
+
+  // the next calls are answered with 503, as by an overloaded data API
+  public StubDataApi setFailures(int failures) {
+    this.failures.set(failures);
+    return this;
+  }
+
+  // the calls after the next loan created are answered with 503, as by a
+  // data API that goes down right after it
+  public StubDataApi setFailuresAfterLoan(int failures) {
+    this.failuresAfterLoan.set(failures);
+    return this;
+  }
+
+  public void start(int port, Handler<AsyncResult<HttpServer>> handler) {
+    Router router = Router.router(vertx);
+    router.route().handler(routingContext -> {
+      String requestId = routingContext.request().getHeader("X-Okapi-Request-Id");
+      if (requestId != null) {
+        requestIds.add(requestId);
+        tenants.put(requestId, String.valueOf(routingContext.request().getHeader("X-Okapi-Tenant")));
+      }
+      calls.incrementAndGet();
+      if (failures.get() > 0 && failures.getAndDecrement() > 0) {
+        routingContext.response().setStatusCode(503).end();
+        return;
+      }
+      if (errorRate > 0 && random.nextDouble() < errorRate) {
+        injectedErrors.incrementAndGet();
+        answer(routingContext, 503, null);
+        return;
+      }
+      routingContext.next();
+    });
+    router.route().handler(BodyHandler.create());
+    router.get("/patrons/:patronId").handler(this::getPatron);
+    router.get("/items/").handler(this::listItems);
+    router.get("/items/:itemId").handler(this::getItem);
+    router.put("/items/:itemId").handler(this::putItem);
+    router.get("/patrons/:patronId/loans").handler(this::listLoans);
+    router.post("/patrons/:patronId/loans").handler(this::postLoan);
+    router.post("/patrons/:patronId/loans/").handler(this::postLoan);
+    router.get("/patrons/:patronId/loans/:loanId").handler(this::getLoan);
+    router.put("/patrons/:patronId/loans/:loanId").handler(this::putLoan);
+    router.delete("/patrons/:patronId/loans/:loanId").handler(this::deleteLoan);
+    router.get("/loans").handler(this::findLoans);
+    server = vertx.createHttpServer().requestHandler(router::accept).listen(port, handler);
+  }
+
+  public void stop() {
+    server.close();
+  }
+
+  // Patrons id-1 to id-count and items id-1 to id-count, with the status and
+  // barcode of the samples in the shape this stub answers with; items are
+  // available whatever the sample says, so that they can be lent
+  public StubDataApi seed(String patronId, JsonObject patronSample, int patronCount, String itemId,
+      JsonObject itemSample, int itemCount) {
+    for (int i = 1; i <= patronCount; i++) {
+      String id = patronId + "-" + i;
+      patrons.put(id, new JsonObject().put("id", id).put("status", patronSample.getString("status", "ACTIVE")));
+    }
+    String barcode = itemSample.getString("barcode", "barcode");
+    for (int i = 1; i <= itemCount; i++) {
+      String id = itemId + "-" + i;
+      items.put(id, new JsonObject().put("id", id).put("barcode", barcode + "-" + i)
+          .put("itemStatus", new JsonObject().put("value", "01").put("desc", "ITEM_STATUS_AVAILABLE")));
+    }
+    return this;
+  }
+
+  // calls received, calls answered with 503 by setErrorRate and loans created
+  public JsonObject metrics() {
+    return new JsonObject().put("calls", calls.get()).put("injectedErrors", injectedErrors.get())
+        .put("openLoans", loans.size()).put("postedLoans", postedLoans.get());
+  }
+
+  // the open loans by loan id
+  public Map<String, JsonObject> getLoans() {
+    return loans;
+  }
+
+  // the last item written for every item id
+  public Map<String, JsonObject> getItems() {
+    return items;
+  }
+
+  // the request ids sent along, one per call
+  public List<String> getRequestIds() {
+    return requestIds;
+  }
+
+  // the tenant the calls of a request were made for, by request id
+  public Map<String, String> getTenants() {
+    return tenants;
+  }
+
+  public static String loanIdFor(String patronId, String itemId) {
+    return "loan-" + patronId + "-" + itemId;
+  }
+
+  private void getPatron(RoutingContext routingContext) {
+    String patronId = routingContext.request().getParam("patronId");
+    JsonObject patron = patrons.get(patronId);
+    answer(routingContext, 200, patron != null ? patron : new JsonObject().put("id", patronId).put("status", "ACTIVE"));
+  }
+
+  private void getItem(RoutingContext routingContext) {
+    String itemId = routingContext.request().getParam("itemId");
+    JsonObject item = items.get(itemId);
+    if (item == null) {
+      item = new JsonObject().put("id", itemId).put("barcode", "barcode-" + itemId)
+          .put("itemStatus", new JsonObject().put("value", "01").put("desc", "ITEM_STATUS_AVAILABLE"));
+    }
+    answer(routingContext, 200, item);
+  }
+
+  private void listItems(RoutingContext routingContext) {
+    JsonArray all = new JsonArray();
+    items.values().forEach(all::add);
+    answer(routingContext, 200, new JsonObject().put("items", all).put("total_records", all.size()));
+  }
+
+  private void putItem(RoutingContext routingContext) {
+    items.put(routingContext.request().getParam("itemId"), routingContext.getBodyAsJson());
+    answer(routingContext, 204, null);
+  }
+
+  private void postLoan(RoutingContext routingContext) {
+    String patronId = routingContext.request().getParam("patronId");
+    JsonObject loan = routingContext.getBodyAsJson();
+    loan.put("id", loanIdFor(patronId, loan.getString("itemId")));
+    loans.put(loan.getString("id"), loan);
+    postedLoans.incrementAndGet();
+    failures.set(failuresAfterLoan.getAndSet(0));
+    answer(routingContext, 201, loan);
+  }
+
+  // written one loan per chunk, so that the listing arrives in pieces
+  private void listLoans(RoutingContext routingContext) {
+    String patronId = routingContext.request().getParam("patronId");
+    String limit = routingContext.request().getParam("limit");
+    String offset = routingContext.request().getParam("offset");
+    List<JsonObject> patronLoans = loans.values().stream()
+        .filter(loan -> patronId.equals(loan.getString("patronId")))
+        .skip(offset == null ? 0 : Long.parseLong(offset))
+        .limit(limit == null ? Long.MAX_VALUE : Long.parseLong(limit))
+        .collect(Collectors.toList());
+    HttpServerResponse response = routingContext.response().setChunked(true)
+        .putHeader("content-type", "application/json");
+    response.write("{\"loans\" : [");
+    for (int i = 0; i < patronLoans.size(); i++) {
+      response.write((i == 0 ? "" : ", ") + patronLoans.get(i).encode());
+    }
+    response.end("], \"total_records\" : " + patronLoans.size() + "}");
+  }
+
+  private void getLoan(RoutingContext routingContext) {
+    JsonObject loan = loans.get(routingContext.request().getParam("loanId"));
+    if (loan == null) {
+      answer(routingContext, 404, null);
+    } else {
+      answer(routingContext, 200, loan);
+    }
+  }
+
+  private void putLoan(RoutingContext routingContext) {
+    loans.put(routingContext.request().getParam("loanId"), routingContext.getBodyAsJson());
+    answer(routingContext, 204, null);
+  }
+
+  private void deleteLoan(RoutingContext routingContext) {
+    loans.remove(routingContext.request().getParam("loanId"));
+    answer(routingContext, 204, null);
+  }
+
+  // open loans by any number of itemId and itemBarcode parameters; without
+  // any, a page of all open loans by offset and limit, in the order of their ids
+  private void findLoans(RoutingContext routingContext) {
+    List<String> itemIds = routingContext.request().params().getAll("itemId");
+    List<String> barcodes = routingContext.request().params().getAll("itemBarcode");
+    JsonArray found = new JsonArray();
+    if (itemIds.isEmpty() && barcodes.isEmpty()) {
+      String limit = routingContext.request().getParam("limit");
+      String offset = routingContext.request().getParam("offset");
+      loans.values().stream().sorted((first, second) -> first.getString("id").compareTo(second.getString("id")))
+          .skip(offset == null ? 0 : Long.parseLong(offset))
+          .limit(limit == null ? Long.MAX_VALUE : Long.parseLong(limit)).forEach(found::add);
+      answer(routingContext, 200, new JsonObject().put("loans", found).put("total_records", loans.size()));
+      return;
+    }
+    loans.values().stream().filter(loan -> itemIds.contains(loan.getString("itemId"))
+        || barcodes.contains(loan.getString("itemBarcode"))).forEach(found::add);
+    answer(routingContext, 200, new JsonObject().put("loans", found).put("total_records", found.size()));
+  }
+
+  private void answer(RoutingContext routingContext, int status, JsonObject body) {
+    vertx.setTimer(minDelay + random.nextInt(Math.max(1, maxDelay - minDelay + 1)), timer -> {
+      routingContext.response().setStatusCode(status);
+      if (body == null) {
+        routingContext.response().end();
+      } else {
+        routingContext.response().putHeader("content-type", "application/json").end(body.encode());
+      }
+    });
+  }
+
+}